@@ -1,101 +1,72 @@
 package com.atlassian.hamcrest;
 
-import static com.google.common.collect.Iterables.size;
-import static com.google.common.collect.Iterables.transform;
-
 import java.lang.reflect.Array;
 
 import org.hamcrest.Description;
-import org.hamcrest.DiagnosingMatcher;
 import org.hamcrest.Matcher;
 
-import com.google.common.base.Function;
-import static com.atlassian.hamcrest.Functions.cache;
-
 /**
  * {@link Matcher} for arrays.  It is composed of {@code Matcher}s for each element in the array  The element
  * matchers are created from the {@code MatcherFactory} provided when the ArrayDeepIsEqualMatcher is created.
- * The element matchers are also lazily created and cached for future use.
+ * The element matchers are created lazily, and kept by position in an {@link ElementMatchers}.
  * 
  * @param <T> type of the elements in the array
  */
-class ArrayDeepIsEqualMatcher<T> extends DiagnosingMatcher<T>
+class ArrayDeepIsEqualMatcher<T> extends DeepMatcher<T>
 {
     private final int expectedSize;
-    private final Iterable<Matcher<?>> matchers;
-    private final DisjointSet<Object> equiv;
+    private final ElementMatchers matchers;
 
-    public ArrayDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+    public ArrayDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory)
     {
-        this.expectedSize = size(expected);
-        this.matchers = transform(expected, cache(toMatchers(baseMatcherFactory)));
-        this.equiv = equiv;
-    }
-
-    private Function<Object, Matcher<?>> toMatchers(final MatcherFactory matcherFactory)
-    {
-        return new Function<Object, Matcher<?>>()
-        {
-            public Matcher<?> apply(Object element)
-            {
-                return matcherFactory.newEqualMatcher(element, matcherFactory, equiv);
-            }
-        };
+        this.matchers = new ElementMatchers(expected, baseMatcherFactory);
+        this.expectedSize = matchers.size();
     }
 
     @Override
-    protected boolean matches(Object actual, Description mismatchDescription)
+    Match startMatch(final Object actual)
     {
-        if (actual == null)
+        return new ElementsMatch(matchers)
         {
-            mismatchDescription.appendText("is null");
-            return false;
-        }
+            @Override
+            boolean canCompareElements(MatchContext context)
+            {
+                if (actual == null)
+                {
+                    context.appendText("is null");
+                    return false;
+                }
 
 
-        if (! actual.getClass().isArray())
-        {
-            mismatchDescription.appendText("not an array, but a ")
-                    .appendText(actual.getClass().getName());
-            return false;
-        }
-        if (expectedSize != Array.getLength(actual))
-        {
-            mismatchDescription.appendText("size should be ")
-                    .appendText(String.valueOf(expectedSize))
-                    .appendText(", but is ")
-                    .appendValue(Array.getLength(actual));
-            return false;
-        }
-        boolean mismatchFound = false;
-        int index = 0;
-        for (Matcher<?> matcher : matchers)
-        {
-            Object element = Array.get(actual, index);
-            if (matcher.matches(element))
-            {
-                index++;
-                continue;
+                if (! actual.getClass().isArray())
+                {
+                    context.appendText("not an array, but a ")
+                            .appendText(actual.getClass().getName());
+                    return false;
+                }
+                if (expectedSize != Array.getLength(actual))
+                {
+                    context.appendText("size should be ")
+                            .appendText(String.valueOf(expectedSize))
+                            .appendText(", but is ")
+                            .appendValue(Array.getLength(actual));
+                    return false;
+                }
+                return true;
             }
-            if (!mismatchFound)
-            {
-                mismatchDescription.appendText("[");
-                mismatchFound = true;
-            }
-            else
+
+            @Override
+            Object actualElement(int index)
             {
-                mismatchDescription.appendText(", ");
+                return Array.get(actual, index);
             }
-            mismatchDescription.appendText("[").appendValue(index).appendText("] => ");
-            matcher.describeMismatch(element, mismatchDescription);
-            index++;
-        }
-        if (mismatchFound)
-        {
-            mismatchDescription.appendText("]");
-        }
+        };
+    }
 
-        return !mismatchFound;
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        return matchers;
     }
 
     public void describeTo(Description desc)
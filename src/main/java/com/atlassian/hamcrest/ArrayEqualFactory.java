@@ -6,9 +6,12 @@ import java.util.Arrays;
 
 import org.hamcrest.Matcher;
 
+import com.google.common.primitives.Primitives;
+
 /**
  * A {@code MatcherFactory} which creates a {@link Matcher} for array objects.  The returned {@code Matcher} is
- * an instance of {@link ArrayDeepIsEqualMatcher}.
+ * an instance of {@link ArrayDeepIsEqualMatcher}, or of {@link PrimitiveArrayDeepIsEqualMatcher} for arrays of primitives
+ * whose elements are compared with {@link MatcherFactories#isEqual()}.
  * 
  * <p>Note: This factory is a bit painful to look at because of the crappy way generics, arrays, and primitives
  * all interact in Java.  If the array is an array of primitive values, we need a big gnarly 
@@ -22,6 +25,10 @@ final class ArrayEqualFactory implements MatcherFactory
         
         // cast to appropriate array type
         Class<?> elementType = expected.getClass().getComponentType();
+        if (elementType.isPrimitive() && comparesWithEquals(Primitives.wrap(elementType), baseMatcherFactory))
+        {
+            return new PrimitiveArrayDeepIsEqualMatcher<T>(expected);
+        }
         if (!elementType.isPrimitive())
         {
             elements = Arrays.asList((Object[]) expected);
@@ -65,6 +72,16 @@ final class ArrayEqualFactory implements MatcherFactory
                 throw new InternalError("Umm... did you add a new primitive type to Java or something?");
             }
         }
-        return new ArrayDeepIsEqualMatcher<T>(elements, baseMatcherFactory, equiv);
+        return new ArrayDeepIsEqualMatcher<T>(elements, baseMatcherFactory);
+    }
+
+    /**
+     * Returns whether elements of the given type are compared with {@link MatcherFactories#isEqual()}, in which case
+     * arrays of them can be compared without a {@code Matcher} for each element.
+     */
+    private static boolean comparesWithEquals(Class<?> elementType, MatcherFactory matcherFactory)
+    {
+        return matcherFactory instanceof ResolvingMatcherFactory
+            && ((ResolvingMatcherFactory) matcherFactory).factoryFor(elementType) == MatcherFactories.isEqual();
     }
-}
\ No newline at end of file
+}
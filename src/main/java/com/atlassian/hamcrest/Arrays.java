@@ -2,6 +2,7 @@ package com.atlassian.hamcrest;
 
 import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * Utility methods for handling arrays.
@@ -26,7 +27,7 @@ final class Arrays
         return new BooleanList(array);
     }
     
-    private static final class BooleanList extends AbstractList<Boolean>
+    private static final class BooleanList extends AbstractList<Boolean> implements RandomAccess
     {
         private final boolean[] array;
 
@@ -59,7 +60,7 @@ final class Arrays
         return new ByteList(array);
     }
     
-    private static final class ByteList extends AbstractList<Byte>
+    private static final class ByteList extends AbstractList<Byte> implements RandomAccess
     {
         private final byte[] array;
 
@@ -92,7 +93,7 @@ final class Arrays
         return new ShortList(array);
     }
     
-    private static final class ShortList extends AbstractList<Short>
+    private static final class ShortList extends AbstractList<Short> implements RandomAccess
     {
         private final short[] array;
 
@@ -125,7 +126,7 @@ final class Arrays
         return new IntegerList(array);
     }
     
-    private static final class IntegerList extends AbstractList<Integer>
+    private static final class IntegerList extends AbstractList<Integer> implements RandomAccess
     {
         private final int[] array;
 
@@ -158,7 +159,7 @@ final class Arrays
         return new LongList(array);
     }
     
-    private static final class LongList extends AbstractList<Long>
+    private static final class LongList extends AbstractList<Long> implements RandomAccess
     {
         private final long[] array;
 
@@ -191,7 +192,7 @@ final class Arrays
         return new FloatList(array);
     }
     
-    private static final class FloatList extends AbstractList<Float>
+    private static final class FloatList extends AbstractList<Float> implements RandomAccess
     {
         private final float[] array;
 
@@ -224,7 +225,7 @@ final class Arrays
         return new DoubleList(array);
     }
     
-    private static final class DoubleList extends AbstractList<Double>
+    private static final class DoubleList extends AbstractList<Double> implements RandomAccess
     {
         private final double[] array;
 
@@ -257,7 +258,7 @@ final class Arrays
         return new CharacterList(array);
     }
     
-    private static final class CharacterList extends AbstractList<Character>
+    private static final class CharacterList extends AbstractList<Character> implements RandomAccess
     {
         private final char[] array;
 
@@ -0,0 +1,282 @@
+package com.atlassian.hamcrest;
+
+import java.util.Arrays;
+
+/**
+ * Maximum matching of a bipartite graph whose edges are expensive to discover, such as "this matcher matches this
+ * element".  Each left vertex has a list of candidate right vertices, and whether a candidate is really connected is
+ * only asked for when the algorithm needs to know, and never more than once.
+ *
+ * <p>A greedy pass first matches each left vertex to its first free connected candidate, which usually finds most of
+ * the matching while only probing a few candidates.  The rest is found with the Hopcroft-Karp algorithm, so finding the
+ * matching takes at most O(E &middot; &radic;V) steps, with E the number of candidate pairs and V the number of
+ * vertices.  The searches use explicit stacks, so large graphs don't overflow the call stack.
+ */
+final class BipartiteMatching
+{
+    /**
+     * Tells whether a left and a right vertex are connected.
+     */
+    interface Edges
+    {
+        boolean connected(int left, int right);
+    }
+
+    private static final int FREE = -1;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final int[][] candidates;
+    private final Edges edges;
+
+    /** Number of candidates of each left vertex probed so far. */
+    private final int[] probed;
+    /** Candidates of each left vertex found to be connected so far, in the first {@code degree[left]} slots. */
+    private final int[][] adjacency;
+    private final int[] degree;
+
+    private final int[] leftMatch;
+    private final int[] rightMatch;
+    private final int[] layer;
+    private final int[] next;
+
+    private BipartiteMatching(int[][] candidates, int rightCount, Edges edges)
+    {
+        this.candidates = candidates;
+        this.edges = edges;
+        this.probed = new int[candidates.length];
+        this.adjacency = new int[candidates.length][];
+        this.degree = new int[candidates.length];
+        this.leftMatch = new int[candidates.length];
+        this.rightMatch = new int[rightCount];
+        this.layer = new int[candidates.length];
+        this.next = new int[candidates.length];
+        Arrays.fill(leftMatch, FREE);
+        Arrays.fill(rightMatch, FREE);
+    }
+
+    /**
+     * Finds a maximum matching.
+     *
+     * @param candidates the right vertices each left vertex might be connected to
+     * @param rightCount the number of right vertices
+     * @param edges tells which candidates are really connected
+     * @return a maximum matching
+     */
+    static BipartiteMatching maximum(int[][] candidates, int rightCount, Edges edges)
+    {
+        BipartiteMatching matching = new BipartiteMatching(candidates, rightCount, edges);
+        matching.matchGreedily();
+        while (matching.layerFromFreeLeftVertices())
+        {
+            matching.augmentAlongShortestPaths();
+        }
+        return matching;
+    }
+
+    /**
+     * Returns whether there is a matching which matches every left vertex, giving up as soon as some left vertex turns
+     * out to have no connected candidates at all.
+     *
+     * @param candidates the right vertices each left vertex might be connected to
+     * @param rightCount the number of right vertices
+     * @param edges tells which candidates are really connected
+     * @return {@code true} if every left vertex can be matched
+     */
+    static boolean perfect(int[][] candidates, int rightCount, Edges edges)
+    {
+        if (candidates.length > rightCount)
+        {
+            return false;
+        }
+        BipartiteMatching matching = new BipartiteMatching(candidates, rightCount, edges);
+        if (!matching.matchGreedily())
+        {
+            return false;
+        }
+        while (matching.layerFromFreeLeftVertices())
+        {
+            matching.augmentAlongShortestPaths();
+        }
+        for (int left = 0; left < candidates.length; left++)
+        {
+            if (!matching.isLeftMatched(left))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the left vertex is matched.
+     */
+    boolean isLeftMatched(int left)
+    {
+        return leftMatch[left] != FREE;
+    }
+
+    /**
+     * Returns whether the right vertex is matched.
+     */
+    boolean isRightMatched(int right)
+    {
+        return rightMatch[right] != FREE;
+    }
+
+    /**
+     * Matches each left vertex to its first free connected candidate, if it has one.
+     *
+     * @return {@code false} if some left vertex has no connected candidates at all
+     */
+    private boolean matchGreedily()
+    {
+        boolean everyLeftConnected = true;
+        for (int left = 0; left < candidates.length; left++)
+        {
+            while (leftMatch[left] == FREE && probed[left] < candidates[left].length)
+            {
+                int right = probeNext(left);
+                if (right != FREE && rightMatch[right] == FREE)
+                {
+                    leftMatch[left] = right;
+                    rightMatch[right] = left;
+                }
+            }
+            everyLeftConnected &= degree[left] > 0;
+        }
+        return everyLeftConnected;
+    }
+
+    /**
+     * Breadth first search from the free left vertices, giving each reachable left vertex the length of the shortest
+     * alternating path to it.  The search stops at the layer where the first free right vertex is found.
+     *
+     * @return {@code true} if there is an augmenting path
+     */
+    private boolean layerFromFreeLeftVertices()
+    {
+        int[] queue = new int[candidates.length];
+        int head = 0;
+        int tail = 0;
+        for (int left = 0; left < candidates.length; left++)
+        {
+            if (leftMatch[left] == FREE)
+            {
+                layer[left] = 0;
+                queue[tail++] = left;
+            }
+            else
+            {
+                layer[left] = UNREACHED;
+            }
+        }
+        int freeRightLayer = UNREACHED;
+        while (head < tail)
+        {
+            int left = queue[head++];
+            if (layer[left] >= freeRightLayer)
+            {
+                break;
+            }
+            probeAll(left);
+            for (int i = 0; i < degree[left]; i++)
+            {
+                int matchedLeft = rightMatch[adjacency[left][i]];
+                if (matchedLeft == FREE)
+                {
+                    freeRightLayer = layer[left];
+                }
+                else if (layer[matchedLeft] == UNREACHED)
+                {
+                    layer[matchedLeft] = layer[left] + 1;
+                    queue[tail++] = matchedLeft;
+                }
+            }
+        }
+        return freeRightLayer != UNREACHED;
+    }
+
+    private void augmentAlongShortestPaths()
+    {
+        Arrays.fill(next, 0);
+        int[] path = new int[candidates.length];
+        for (int left = 0; left < candidates.length; left++)
+        {
+            if (leftMatch[left] == FREE && layer[left] == 0)
+            {
+                augmentFrom(left, path);
+            }
+        }
+    }
+
+    /**
+     * Depth first search along the layers for a path from the free left vertex {@code root} to a free right vertex,
+     * flipping the matching along the path if one is found.  Left vertices which turn out to be dead ends are taken out
+     * of the layers so they aren't searched again in this phase.
+     */
+    private boolean augmentFrom(int root, int[] path)
+    {
+        int depth = 0;
+        path[0] = root;
+        while (depth >= 0)
+        {
+            int left = path[depth];
+            if (next[left] == degree[left])
+            {
+                layer[left] = UNREACHED;
+                depth--;
+                continue;
+            }
+            int right = adjacency[left][next[left]++];
+            int matchedLeft = rightMatch[right];
+            if (matchedLeft == FREE)
+            {
+                for (int i = depth; i >= 0; i--)
+                {
+                    int previousRight = leftMatch[path[i]];
+                    leftMatch[path[i]] = right;
+                    rightMatch[right] = path[i];
+                    right = previousRight;
+                }
+                return true;
+            }
+            if (layer[matchedLeft] == layer[left] + 1)
+            {
+                path[++depth] = matchedLeft;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Probes the next candidate of the left vertex.
+     *
+     * @return the candidate if it is connected, {@link #FREE} otherwise
+     */
+    private int probeNext(int left)
+    {
+        int right = candidates[left][probed[left]++];
+        if (!edges.connected(left, right))
+        {
+            return FREE;
+        }
+        if (adjacency[left] == null)
+        {
+            adjacency[left] = new int[Math.min(candidates[left].length, 4)];
+        }
+        else if (degree[left] == adjacency[left].length)
+        {
+            adjacency[left] = Arrays.copyOf(adjacency[left], Math.min(candidates[left].length, degree[left] * 2));
+        }
+        adjacency[left][degree[left]++] = right;
+        return right;
+    }
+
+    private void probeAll(int left)
+    {
+        while (probed[left] < candidates[left].length)
+        {
+            probeNext(left);
+        }
+    }
+}
@@ -1,44 +1,188 @@
 package com.atlassian.hamcrest;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import org.hamcrest.Matcher;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
 /**
+ * A {@code MatcherFactory} which remembers the {@code Matcher} it created for each expected value, so a value which is
+ * reached more than once in the expected graph, as values in cycles are, only gets one {@code Matcher}.  Expected
+ * values are told apart by identity.
+ *
+ * <p>The matchers are kept in an open addressing table for as long as the factory lives, which is as long as the
+ * matcher it was created for.  The expected values are held by that matcher anyway, so there's no need for weak
+ * references, which the garbage collector would have to process for every value in the graph.
+ *
+ * <p>The factory can also be told which values of the expected graph aren't part of any cycle, so the matchers for
+ * them don't have to be ready for cycles.
+ *
  * @author Matt Drees
  */
-public class CachingMatcherFactory implements MatcherFactory {
+public class CachingMatcherFactory extends ResolvingMatcherFactory {
 
-    private MatcherFactory actualFactory;
+    private static final int INITIAL_CAPACITY = 64;
 
-    private Cache<Object, Object> cache;
+    private final MatcherFactory actualFactory;
+    private final Predicate<Object> outsideCycles;
 
-    public CachingMatcherFactory(MatcherFactory actualFactory) {
+    /**
+     * The expected values, at the slots their identity hash codes probe to, with their matchers at the same slots in
+     * {@link #matchers}.  Never more than half full, and only allocated when the first matcher is kept, as matching
+     * a single value, like a number, doesn't need any.
+     */
+    private Object[] expectedValues;
+    private Matcher<?>[] matchers;
+    private int size;
+
+    private long hits;
+    private long misses;
+    private long created;
 
-        cache = CacheBuilder.newBuilder()
-            .weakKeys()
-            .build();
+    public CachingMatcherFactory(MatcherFactory actualFactory) {
+        this(actualFactory, Predicates.alwaysFalse());
+    }
 
+    /**
+     * @param outsideCycles tells whether an expected value is known not to be part of a cycle
+     */
+    CachingMatcherFactory(MatcherFactory actualFactory, Predicate<Object> outsideCycles) {
         this.actualFactory = actualFactory;
+        this.outsideCycles = outsideCycles;
     }
 
     @Override
+    @SuppressWarnings("unchecked") //the cached matcher was created for this same expected value
     public <T> Matcher<? super T> newEqualMatcher(
         final T expected, final MatcherFactory baseMatcherFactory, final DisjointSet<Object> equiv) {
 
         if (expected == null)
             return actualFactory.newEqualMatcher(expected, this, equiv);
 
-        Object cachedMatcher = cache.getIfPresent(expected);
+        Matcher<?> cachedMatcher = get(expected);
         if (cachedMatcher != null)
             return (Matcher<? super T>) cachedMatcher;
-        else
-        {
-            Matcher<? super T> matcher =
-                actualFactory.newEqualMatcher(expected, this, equiv);
-            cache.put(expected, matcher);
-            return matcher;
+
+        // created without holding the lock, as creating a matcher may create matchers for other values
+        Matcher<? super T> matcher = actualFactory.newEqualMatcher(expected, this, equiv);
+        return (Matcher<? super T>) putIfAbsent(expected, matcher);
+    }
+
+    /**
+     * Returns the number of times a matcher was asked for an expected value which already had one.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of times a matcher was asked for an expected value which didn't have one yet.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of matchers created for non-null expected values.  This can be more than the number of
+     * {@link #misses()} if threads race to create the matcher for the same value, in which case only one of the
+     * matchers is kept.
+     */
+    public synchronized long matchersCreated() {
+        return created;
+    }
+
+    private synchronized Matcher<?> get(Object expected) {
+        if (expectedValues == null) {
+            misses++;
+            return null;
+        }
+        int slot = slotOf(expected, expectedValues);
+        if (expectedValues[slot] == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return matchers[slot];
+    }
+
+    /**
+     * Keeps the matcher for the expected value, unless another thread got there first.
+     *
+     * @return the matcher kept for the expected value
+     */
+    private synchronized Matcher<?> putIfAbsent(Object expected, Matcher<?> matcher) {
+        created++;
+        if (expectedValues == null) {
+            expectedValues = new Object[INITIAL_CAPACITY];
+            matchers = new Matcher<?>[INITIAL_CAPACITY];
+        }
+        int slot = slotOf(expected, expectedValues);
+        if (expectedValues[slot] != null)
+            return matchers[slot];
+
+        expectedValues[slot] = expected;
+        matchers[slot] = matcher;
+        if (++size * 2 > expectedValues.length)
+            grow();
+        return matcher;
+    }
+
+    private void grow() {
+        Object[] oldValues = expectedValues;
+        Matcher<?>[] oldMatchers = matchers;
+        expectedValues = new Object[oldValues.length * 2];
+        matchers = new Matcher<?>[oldValues.length * 2];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(oldValues[i], expectedValues);
+                expectedValues[slot] = oldValues[i];
+                matchers[slot] = oldMatchers[i];
+            }
         }
     }
 
+    /**
+     * Returns the slot holding the value, or the empty slot where it would go, probing linearly from the slot picked
+     * by the top bits of its scrambled identity hash code.
+     */
+    private static int slotOf(Object value, Object[] values) {
+        int mask = values.length - 1;
+        int slot = (System.identityHashCode(value) * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+        while (values[slot] != null && values[slot] != value)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Returns the {@code MatcherFactory} the wrapped factory will use for values of the given type, or {@code null}
+     * if the wrapped factory doesn't say.
+     */
+    @Override
+    MatcherFactory factoryFor(Class<?> type) {
+        if (actualFactory instanceof ResolvingMatcherFactory)
+            return ((ResolvingMatcherFactory) actualFactory).factoryFor(type);
+        else
+            return null;
+    }
+
+    /**
+     * Returns the {@link StructuralKeys} of the wrapped factory, or {@code null} if the wrapped factory doesn't have
+     * any.
+     */
+    @Override
+    StructuralKeys structuralKeys() {
+        if (actualFactory instanceof ResolvingMatcherFactory)
+            return ((ResolvingMatcherFactory) actualFactory).structuralKeys();
+        else
+            return null;
+    }
+
+    /**
+     * Returns whether the predicate the factory was created with says the expected value isn't part of a cycle.
+     */
+    @Override
+    boolean isOutsideCycles(Object expected) {
+        return outsideCycles.apply(expected);
+    }
+
 }
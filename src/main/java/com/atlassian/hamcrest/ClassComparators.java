@@ -0,0 +1,705 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.hamcrest.Matcher;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.Primitives;
+
+/**
+ * The comparators used by the {@link DeepIsEqual.Engine#COMPARATORS} engine.  Instead of building a tree of
+ * {@code Matcher}s for the expected value, a {@link DeepComparator} is built once for each concrete class that
+ * shows up in the compared graphs.  A comparator takes both the expected and the actual value, so it can be reused for
+ * every instance of the class.  The comparator for a class is chosen the same way {@link ReflectiveObjectMatcherFactory}
+ * chooses a {@code MatcherFactory}, and applies the same rules as the {@code Matcher} that factory would create.
+ *
+ * <p>Comparators for objects compared reflectively hold a flat array of field slots.  Primitive fields are compared
+ * with typed reads, and reference fields remember the comparator for the class of the last value they saw, so
+ * comparing fields which always hold the same class of value doesn't look the comparator up.  Values whose
+ * {@code MatcherFactory} isn't one of the built in ones are still compared with the {@code Matcher} that factory
+ * creates.  No code is generated: the comparators are plain objects, and fields are read through their
+ * {@link FieldAccessor}, just as the matchers read them.
+ *
+ * <p>The comparators only answer whether two values are equal.  Mismatches are described by the {@code Matcher}s,
+ * so the descriptions are the same no matter which engine is used.
+ */
+final class ClassComparators
+{
+    private final ResolvingMatcherFactory resolver;
+
+    private final LoadingCache<Class<?>, DeepComparator> comparators = CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Class<?>, DeepComparator>()
+        {
+            @Override
+            public DeepComparator load(Class<?> type)
+            {
+                return build(type);
+            }
+        });
+
+    /**
+     * @param resolver the factory whose choice of {@code MatcherFactory} for each type the comparators should follow
+     */
+    ClassComparators(ResolvingMatcherFactory resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Returns the comparator for expected values of exactly the given type, building it the first time the type is
+     * seen.
+     */
+    DeepComparator forClass(Class<?> type)
+    {
+        return comparators.getUnchecked(type);
+    }
+
+    private DeepComparator build(Class<?> type)
+    {
+        MatcherFactory factory = resolver.factoryFor(type);
+        if (factory == MatcherFactories.isEqual() && !type.isArray())
+        {
+            return ValueComparator.INSTANCE;
+        }
+        else if (factory instanceof ArrayEqualFactory)
+        {
+            Class<?> component = type.getComponentType();
+            if (!component.isPrimitive())
+            {
+                return ObjectArrayComparator.INSTANCE;
+            }
+            boolean byValue = resolver.factoryFor(Primitives.wrap(component)) == MatcherFactories.isEqual();
+            return new PrimitiveArrayComparator(type, byValue);
+        }
+        else if (factory == MatcherFactories.listIsDeeplyEqual())
+        {
+            return ListComparator.INSTANCE;
+        }
+        else if (factory == MatcherFactories.setIsDeeplyEqual())
+        {
+            return SetComparator.INSTANCE;
+        }
+        else if (factory == MatcherFactories.mapIsDeeplyEqual())
+        {
+            return MapComparator.INSTANCE;
+        }
+        else if (factory == MatcherFactories.hashBucketedMapIsDeeplyEqual())
+        {
+            return MapComparator.BUCKETED;
+        }
+        else if (factory instanceof ReflectiveEqualFactory)
+        {
+            return new ReflectiveComparator(ClassMatchPlan.of(type), resolver);
+        }
+        else
+        {
+            return MatcherComparator.INSTANCE;
+        }
+    }
+
+    /**
+     * The state of one comparison: the comparators, the equivalences assumed so far, and the factory to create
+     * {@code Matcher}s with for values that don't have a comparator of their own.  A parallel comparison splits large
+     * lists and arrays into ranges which are compared on other threads, each range in a comparison of its own.
+     */
+    static final class Comparison
+    {
+        /**
+         * How deeply comparators may call each other.  The comparators recurse on the Java stack, taking up to six
+         * frames for each level in the case of maps, so values nested deeper than this are compared with the
+         * {@code Matcher}s, which don't.
+         */
+        private static final int MAX_DEPTH = 500;
+
+        private final ClassComparators comparators;
+        private final MatcherFactory matcherFactory;
+        private final boolean parallel;
+        private int depth;
+
+        /**
+         * Only created once an object is compared reflectively, as values without any can't lead to cycles.
+         */
+        private RollbackDisjointSet<Object> equiv;
+
+        Comparison(ClassComparators comparators, MatcherFactory matcherFactory)
+        {
+            this(comparators, matcherFactory, false);
+        }
+
+        /**
+         * @param parallel whether to compare large lists and arrays on several threads
+         */
+        Comparison(ClassComparators comparators, MatcherFactory matcherFactory, boolean parallel)
+        {
+            this.comparators = comparators;
+            this.matcherFactory = matcherFactory;
+            this.parallel = parallel;
+        }
+
+        RollbackDisjointSet<Object> equivalences()
+        {
+            if (equiv == null)
+            {
+                equiv = new RollbackDisjointSet<Object>();
+            }
+            return equiv;
+        }
+
+        boolean equal(Object expected, Object actual)
+        {
+            if (expected == null)
+            {
+                return actual == null;
+            }
+            return equal(comparators.forClass(expected.getClass()), expected, actual);
+        }
+
+        /**
+         * Compares a non-null expected value with the comparator for its class.
+         */
+        boolean equal(DeepComparator comparator, Object expected, Object actual)
+        {
+            if (depth == MAX_DEPTH)
+            {
+                Matcher<?> matcher = matcherFactory.newEqualMatcher(
+                    expected, matcherFactory, MatchContext.CURRENT_EQUIVALENCES);
+                return DeepMatcher.matchChild(matcher, actual, MatchContext.quiet(equiv));
+            }
+            depth++;
+            try
+            {
+                return comparator.equal(expected, actual, this);
+            }
+            finally
+            {
+                depth--;
+            }
+        }
+
+        /**
+         * Compares the positions {@code 0} to {@code size - 1} of two values.  A parallel comparison splits the
+         * positions into ranges when there are at least {@code threshold} of them.
+         */
+        boolean allEqual(int size, int threshold, Positions positions)
+        {
+            if (!parallel || size < threshold)
+            {
+                return positions.equal(0, size, this);
+            }
+            return ParallelComparisons.allEqual(size, positions, this);
+        }
+
+        /**
+         * Returns a new comparison for comparing part of the values on another thread.  It starts out with no assumed
+         * equivalences and compares everything on its own thread.
+         */
+        Comparison forkRange()
+        {
+            return new Comparison(comparators, new CachingMatcherFactory(comparators.resolver));
+        }
+    }
+
+    /**
+     * Compares ranges of positions of two values, such as the elements of two lists.
+     */
+    interface Positions
+    {
+        /**
+         * @return {@code true} if the values are equal at every position from {@code from} up to, but not including,
+         *         {@code to}
+         */
+        boolean equal(int from, int to, Comparison comparison);
+    }
+
+    /**
+     * Compares expected values of one class against actual values.
+     */
+    static abstract class DeepComparator
+    {
+        /**
+         * @param expected the expected value, never {@code null}
+         * @param actual the actual value
+         * @param comparison the comparison this is part of
+         * @return {@code true} if the values are deeply equal
+         */
+        abstract boolean equal(Object expected, Object actual, Comparison comparison);
+    }
+
+    /**
+     * Same rules as {@link MatcherFactories#isEqual()}.
+     */
+    private static final class ValueComparator extends DeepComparator
+    {
+        static final ValueComparator INSTANCE = new ValueComparator();
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            return actual != null && actual.equals(expected);
+        }
+    }
+
+    /**
+     * Used for values whose {@code MatcherFactory} isn't one of the built in ones.
+     */
+    private static final class MatcherComparator extends DeepComparator
+    {
+        static final MatcherComparator INSTANCE = new MatcherComparator();
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            MatcherFactory factory = comparison.matcherFactory;
+            Matcher<?> matcher = factory.newEqualMatcher(expected, factory, MatchContext.CURRENT_EQUIVALENCES);
+            return DeepMatcher.matchChild(matcher, actual, MatchContext.quiet(comparison.equiv));
+        }
+    }
+
+    /**
+     * Same rules as {@link ReflectivelyEqual}.
+     */
+    private static final class ReflectiveComparator extends DeepComparator
+    {
+        private final ClassMatchPlan plan;
+        private final FieldSlot[] slots;
+
+        ReflectiveComparator(ClassMatchPlan plan, ResolvingMatcherFactory resolver)
+        {
+            this.plan = plan;
+            this.slots = new FieldSlot[plan.fieldCount()];
+            for (int i = 0; i < slots.length; i++)
+            {
+                FieldAccessor accessor = plan.accessor(i);
+                Class<?> type = accessor.field().getType();
+                boolean byValue = type.isPrimitive()
+                    && resolver.factoryFor(Primitives.wrap(type)) == MatcherFactories.isEqual();
+                slots[i] = new FieldSlot(accessor, byValue);
+            }
+        }
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (actual == null || !plan.isExactType(actual))
+            {
+                return false;
+            }
+            RollbackDisjointSet<Object> equiv = comparison.equivalences();
+            if (equiv.equivalent(actual, expected))
+            {
+                return true;
+            }
+            // AHAM-1 : Recursively assume that the objects are equal when comparing their fields
+            equiv.union(actual, expected);
+            boolean equal = true;
+            for (int i = 0; equal && i < slots.length; i++)
+            {
+                equal = slots[i].equal(expected, actual, comparison);
+            }
+            equiv.deunion();
+            return equal;
+        }
+    }
+
+    private static final class FieldSlot
+    {
+        private final FieldAccessor accessor;
+        private final boolean byValue;
+
+        /**
+         * The comparator used for the last expected value read from this field.  Most fields always hold values of
+         * the same class, so this saves looking the comparator up.  Parallel comparisons may race to set it, which is
+         * harmless since {@code CachedComparator} is immutable.
+         */
+        private CachedComparator last;
+
+        FieldSlot(FieldAccessor accessor, boolean byValue)
+        {
+            this.accessor = accessor;
+            this.byValue = byValue;
+        }
+
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (byValue)
+            {
+                return accessor.primitiveEquals(expected, actual);
+            }
+            Object expectedValue = accessor.get(expected);
+            Object actualValue = accessor.get(actual);
+            if (expectedValue == null)
+            {
+                return actualValue == null;
+            }
+            Class<?> type = expectedValue.getClass();
+            CachedComparator cached = last;
+            if (cached == null || cached.type != type)
+            {
+                cached = new CachedComparator(type, comparison.comparators.forClass(type));
+                last = cached;
+            }
+            return comparison.equal(cached.comparator, expectedValue, actualValue);
+        }
+    }
+
+    private static final class CachedComparator
+    {
+        final Class<?> type;
+        final DeepComparator comparator;
+
+        CachedComparator(Class<?> type, DeepComparator comparator)
+        {
+            this.type = type;
+            this.comparator = comparator;
+        }
+    }
+
+    /**
+     * Same rules as {@link ArrayDeepIsEqualMatcher}, for arrays of objects.
+     */
+    private static final class ObjectArrayComparator extends DeepComparator
+    {
+        static final ObjectArrayComparator INSTANCE = new ObjectArrayComparator();
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (actual == null || !actual.getClass().isArray())
+            {
+                return false;
+            }
+            Object[] expectedArray = (Object[]) expected;
+            if (expectedArray.length != Array.getLength(actual))
+            {
+                return false;
+            }
+            return comparison.allEqual(expectedArray.length, ParallelComparisons.MIN_ELEMENTS,
+                new ArrayElements(expected, actual));
+        }
+    }
+
+    /**
+     * Same rules as {@link ArrayDeepIsEqualMatcher}, for arrays of primitives.  When the elements are compared with
+     * {@link MatcherFactories#isEqual()} and the actual value is an array of the same type, the arrays are compared with
+     * {@link java.util.Arrays#equals}, which uses the same rules for floating point values as the wrapper types'
+     * {@code equals}.  Otherwise each element is compared as its wrapper, with the comparator for the wrapper type.
+     */
+    private static final class PrimitiveArrayComparator extends DeepComparator
+    {
+        private final Class<?> type;
+        private final boolean byValue;
+
+        PrimitiveArrayComparator(Class<?> type, boolean byValue)
+        {
+            this.type = type;
+            this.byValue = byValue;
+        }
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (actual == null || !actual.getClass().isArray())
+            {
+                return false;
+            }
+            if (byValue && actual.getClass() == type)
+            {
+                return sameTypeEqual(expected, actual);
+            }
+            int length = Array.getLength(expected);
+            if (length != Array.getLength(actual))
+            {
+                return false;
+            }
+            return comparison.allEqual(length, ParallelComparisons.MIN_ELEMENTS, new ArrayElements(expected, actual));
+        }
+
+        private boolean sameTypeEqual(Object expected, Object actual)
+        {
+            if (type == int[].class)
+                return java.util.Arrays.equals((int[]) expected, (int[]) actual);
+            else if (type == long[].class)
+                return java.util.Arrays.equals((long[]) expected, (long[]) actual);
+            else if (type == byte[].class)
+                return java.util.Arrays.equals((byte[]) expected, (byte[]) actual);
+            else if (type == double[].class)
+                return java.util.Arrays.equals((double[]) expected, (double[]) actual);
+            else if (type == boolean[].class)
+                return java.util.Arrays.equals((boolean[]) expected, (boolean[]) actual);
+            else if (type == char[].class)
+                return java.util.Arrays.equals((char[]) expected, (char[]) actual);
+            else if (type == short[].class)
+                return java.util.Arrays.equals((short[]) expected, (short[]) actual);
+            else if (type == float[].class)
+                return java.util.Arrays.equals((float[]) expected, (float[]) actual);
+            else
+                throw new InternalError("Umm... did you add a new primitive type to Java or something?");
+        }
+    }
+
+    /**
+     * The elements of two arrays of the same length, of any component types.
+     */
+    private static final class ArrayElements implements Positions
+    {
+        private final Object expected;
+        private final Object actual;
+
+        ArrayElements(Object expected, Object actual)
+        {
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public boolean equal(int from, int to, Comparison comparison)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (!comparison.equal(Array.get(expected, i), Array.get(actual, i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The elements of two random access lists of the same size.
+     */
+    private static final class ListElements implements Positions
+    {
+        private final List<?> expected;
+        private final List<?> actual;
+
+        ListElements(List<?> expected, List<?> actual)
+        {
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public boolean equal(int from, int to, Comparison comparison)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (!comparison.equal(expected.get(i), actual.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Same rules as {@link ListDeepIsEqualMatcher}.
+     */
+    private static final class ListComparator extends DeepComparator
+    {
+        static final ListComparator INSTANCE = new ListComparator();
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (!(actual instanceof List<?>))
+            {
+                return false;
+            }
+            List<?> expectedList = (List<?>) expected;
+            List<?> actualList = (List<?>) actual;
+            if (expectedList.size() != actualList.size())
+            {
+                return false;
+            }
+            if (expectedList instanceof RandomAccess && actualList instanceof RandomAccess)
+            {
+                return comparison.allEqual(expectedList.size(), ParallelComparisons.MIN_ELEMENTS,
+                    new ListElements(expectedList, actualList));
+            }
+            int index = 0;
+            for (Object element : expectedList)
+            {
+                if (!comparison.equal(element, actualList.get(index++)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Same rules as {@link SetDeepIsEqualMatcher}: every expected element has to be equal to some actual element, and
+     * every actual element has to be equal to some expected element.
+     */
+    private static final class SetComparator extends DeepComparator
+    {
+        static final SetComparator INSTANCE = new SetComparator();
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (!(actual instanceof Set<?>))
+            {
+                return false;
+            }
+            Set<?> expectedSet = (Set<?>) expected;
+            Object[] actualElements = ((Set<?>) actual).toArray();
+            if (expectedSet.size() != actualElements.length)
+            {
+                return false;
+            }
+            boolean[] matched = new boolean[actualElements.length];
+            for (Object element : expectedSet)
+            {
+                if (!matchAll(element, actualElements, matched, comparison))
+                {
+                    return false;
+                }
+            }
+            return allTrue(matched);
+        }
+
+        private boolean matchAll(Object element, Object[] actualElements, boolean[] matched, Comparison comparison)
+        {
+            boolean found = false;
+            for (int i = 0; i < actualElements.length; i++)
+            {
+                // once the element has a match, only actual elements nobody matched yet are worth comparing
+                if ((!found || !matched[i]) && comparison.equal(element, actualElements[i]))
+                {
+                    found = true;
+                    matched[i] = true;
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Same rules as {@link MapDeepIsEqualMatcher}, which treats maps as sets of entries, in covering mode or, for
+     * {@link MatcherFactories#hashBucketedMapIsDeeplyEqual()}, in bucketed covering mode.  Either way, entries are
+     * bucketed at least by their value keys.
+     */
+    private static final class MapComparator extends DeepComparator
+    {
+        static final MapComparator INSTANCE = new MapComparator(false);
+        static final MapComparator BUCKETED = new MapComparator(true);
+
+        private final boolean bucketed;
+
+        private MapComparator(boolean bucketed)
+        {
+            this.bucketed = bucketed;
+        }
+
+        @Override
+        boolean equal(Object expected, Object actual, Comparison comparison)
+        {
+            if (!(actual instanceof Map<?, ?>))
+            {
+                return false;
+            }
+            Map<?, ?> expectedMap = (Map<?, ?>) expected;
+            Object[] actualEntries = ((Map<?, ?>) actual).entrySet().toArray();
+            if (expectedMap.size() != actualEntries.length)
+            {
+                return false;
+            }
+            boolean[] matched = new boolean[actualEntries.length];
+            StructuralKeys keys = comparison.comparators.resolver.structuralKeys();
+            StructuralKeys.Buckets buckets = bucketed
+                ? keys.bucket(keysOf(actualEntries))
+                : keys.bucketValues(keysOf(actualEntries));
+            for (Map.Entry<?, ?> entry : expectedMap.entrySet())
+            {
+                Integer key = bucketed ? keys.keyOf(entry.getKey()) : keys.valueKeyOf(entry.getKey());
+                boolean found;
+                if (key == null)
+                {
+                    found = matchAll(entry, actualEntries, matched, comparison);
+                }
+                else
+                {
+                    found = matchAll(entry, buckets.withKey(key), actualEntries, matched, comparison)
+                        | matchAll(entry, buckets.unkeyed(), actualEntries, matched, comparison);
+                }
+                if (!found)
+                {
+                    return false;
+                }
+            }
+            return allTrue(matched);
+        }
+
+        private Object[] keysOf(Object[] entries)
+        {
+            Object[] keys = new Object[entries.length];
+            for (int i = 0; i < entries.length; i++)
+            {
+                keys[i] = ((Map.Entry<?, ?>) entries[i]).getKey();
+            }
+            return keys;
+        }
+
+        private boolean matchAll(Map.Entry<?, ?> entry, Object[] actualEntries, boolean[] matched, Comparison comparison)
+        {
+            boolean found = false;
+            for (int i = 0; i < actualEntries.length; i++)
+            {
+                found |= matchOne(entry, actualEntries, matched, i, found, comparison);
+            }
+            return found;
+        }
+
+        private boolean matchAll(Map.Entry<?, ?> entry, List<Integer> candidates, Object[] actualEntries,
+            boolean[] matched, Comparison comparison)
+        {
+            boolean found = false;
+            for (int i : candidates)
+            {
+                found |= matchOne(entry, actualEntries, matched, i, found, comparison);
+            }
+            return found;
+        }
+
+        private boolean matchOne(Map.Entry<?, ?> entry, Object[] actualEntries, boolean[] matched, int index,
+            boolean found, Comparison comparison)
+        {
+            // once the entry has a match, only actual entries nobody matched yet are worth comparing
+            if ((!found || !matched[index]) && entryEqual(entry, (Map.Entry<?, ?>) actualEntries[index], comparison))
+            {
+                matched[index] = true;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean entryEqual(Map.Entry<?, ?> expected, Map.Entry<?, ?> actual, Comparison comparison)
+        {
+            return comparison.equal(expected.getKey(), actual.getKey())
+                && comparison.equal(expected.getValue(), actual.getValue());
+        }
+    }
+
+    private static boolean allTrue(boolean[] values)
+    {
+        for (boolean value : values)
+        {
+            if (!value)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+package com.atlassian.hamcrest;
+
+import static com.atlassian.hamcrest.Predicates.isStatic;
+import static com.atlassian.hamcrest.Predicates.isTransient;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.hamcrest.Matcher;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+/**
+ * The reflective metadata {@link ReflectivelyEqual} needs to compare instances of a class: the flattened list of
+ * matchable fields, with a {@link FieldAccessor} for each, and the matcher used to check that an actual value is of
+ * exactly the same type.  Plans are built once per class and shared by every matcher in the JVM, so the cost of
+ * {@link Class#getDeclaredFields()} and {@link AccessibleObject#setAccessible} is only paid the first time a class is
+ * seen.
+ *
+ * <p>A plan refers to its class through its fields, so plans are only held softly.  Otherwise the weakly held class
+ * could never be collected, and neither could its class loader.
+ */
+final class ClassMatchPlan
+{
+    private static final LoadingCache<Class<?>, ClassMatchPlan> PLANS = CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Class<?>, ClassMatchPlan>()
+        {
+            @Override
+            public ClassMatchPlan load(Class<?> cls)
+            {
+                return new ClassMatchPlan(cls);
+            }
+        });
+
+    private final Class<?> type;
+    private final Matcher<?> typeMatcher;
+    private final FieldAccessor[] accessors;
+    private final boolean[] primitiveFields;
+
+    private ClassMatchPlan(Class<?> type)
+    {
+        this.type = type;
+        this.typeMatcher = is(equalTo(type));
+        this.accessors = accessorsFor(matchableFieldsOf(type));
+        this.primitiveFields = new boolean[accessors.length];
+        for (int i = 0; i < accessors.length; i++)
+        {
+            primitiveFields[i] = accessors[i].kind() != FieldAccessor.Kind.REFERENCE;
+        }
+    }
+
+    /**
+     * Returns the plan for the given class, building it if this is the first time the class has been seen.
+     *
+     * @param cls class to get the plan of
+     * @return the shared plan for {@code cls}
+     */
+    static ClassMatchPlan of(Class<?> cls)
+    {
+        return PLANS.getUnchecked(cls);
+    }
+
+    Class<?> type()
+    {
+        return type;
+    }
+
+    /**
+     * Matcher which checks the type of the actual value against the planned type.  It is only needed to describe a
+     * mismatch, the check itself is done by {@link #isExactType(Object)}.
+     */
+    Matcher<?> typeMatcher()
+    {
+        return typeMatcher;
+    }
+
+    boolean isExactType(Object actual)
+    {
+        return actual.getClass() == type;
+    }
+
+    int fieldCount()
+    {
+        return accessors.length;
+    }
+
+    Field field(int index)
+    {
+        return accessors[index].field();
+    }
+
+    FieldAccessor accessor(int index)
+    {
+        return accessors[index];
+    }
+
+    /**
+     * Returns whether the field at each index is of a primitive type.  The array is shared, so it must not be changed.
+     */
+    boolean[] primitiveFields()
+    {
+        return primitiveFields;
+    }
+
+    /**
+     * Builds the list of all fields that are matchable in a class.  Matchable fields are all fields declared by the
+     * class and its superclasses that are neither static nor transient.  Superclass fields come first.
+     *
+     * @param cls class to get all the matchable fields of
+     * @return all fields that we can use to match objects
+     */
+    private static List<Field> matchableFieldsOf(Class<?> cls)
+    {
+        List<Class<?>> hierarchy = Lists.newArrayList();
+        for (Class<?> c = cls; c != null; c = c.getSuperclass())
+        {
+            hierarchy.add(0, c);
+        }
+        List<Field> matchable = Lists.newArrayList();
+        for (Class<?> c : hierarchy)
+        {
+            Field[] declared = c.getDeclaredFields();
+            AccessibleObject.setAccessible(declared, true);
+            for (Field f : declared)
+            {
+                if (!isTransient().apply(f) && !isStatic().apply(f))
+                {
+                    matchable.add(f);
+                }
+            }
+        }
+        return matchable;
+    }
+
+    private static FieldAccessor[] accessorsFor(List<Field> fields)
+    {
+        FieldAccessor[] accessors = new FieldAccessor[fields.size()];
+        for (int i = 0; i < accessors.length; i++)
+        {
+            accessors[i] = FieldAccessors.forField(fields.get(i));
+        }
+        return accessors;
+    }
+}
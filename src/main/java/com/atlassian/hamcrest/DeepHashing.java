@@ -0,0 +1,646 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes fingerprints of object graphs which follow the same rules as the {@code Matcher}s created by a
+ * {@link ResolvingMatcherFactory}: two values which are deeply equal always have the same fingerprint.
+ *
+ * <ul>
+ * <li>Values compared with {@link MatcherFactories#isEqual()} are streamed by value.</li>
+ * <li>Arrays are streamed element by element, so an {@code int[]} has the same fingerprint as the equal
+ * {@code Integer[]}.</li>
+ * <li>Lists are streamed in order.</li>
+ * <li>Sets and maps are streamed as the set of the distinct fingerprints of their elements or entries.  Sets are
+ * deeply equal when every element of one is deeply equal to some element of the other, so how many elements share a
+ * fingerprint can't count.</li>
+ * <li>Values compared reflectively are streamed as their exact class and the values of their matchable fields.</li>
+ * <li>Values matched any other way are all streamed the same, since there's no telling what they are equal to.</li>
+ * </ul>
+ *
+ * Graphs are walked with an explicit stack, finding the strongly connected components with Tarjan's algorithm.  Values
+ * which can reach a cycle are compared coinductively, so two such values can be deeply equal even if their graphs
+ * have different shapes, like a value which refers to itself and two values which refer to each other.  The
+ * fingerprint of such a value only takes in what's reachable without going through a cycle, and the values which lead
+ * to a cycle are all streamed the same.  Values which can't reach a cycle are streamed completely.
+ *
+ * <p>The same walk tells which values of an expected graph are part of a cycle, so the {@code Matcher}s for the
+ * others can skip the bookkeeping that matching cycles needs.  A {@link CycleFinder} only walks the graph as far as the
+ * values it is asked about reach, so a match which stops at the first difference doesn't walk the rest of it.
+ */
+final class DeepHashing
+{
+    private static final byte NULL = 0;
+    private static final byte VALUE = 1;
+    private static final byte ARRAY = 2;
+    private static final byte LIST = 3;
+    private static final byte SET = 4;
+    private static final byte MAP = 5;
+    private static final byte OBJECT = 6;
+    private static final byte OTHER = 7;
+    private static final byte CYCLE = 8;
+
+    /**
+     * How many values a {@link CycleFinder} walks to answer its first question before giving up.  The limit doubles
+     * each time it gives up, so the values it walks again add up to no more than the values it ends up walking.
+     */
+    static final int FIRST_WALK_LIMIT = 1024;
+
+    /**
+     * How the values of a class are fingerprinted.
+     */
+    private enum Kind
+    {
+        VALUE, OTHER, PRIMITIVE_ARRAY, OBJECT_ARRAY, LIST, SET, MAP, REFLECTIVE;
+
+        /**
+         * Whether values of this kind refer to other values that have to be walked.
+         */
+        boolean hasReferences()
+        {
+            return compareTo(OBJECT_ARRAY) >= 0;
+        }
+    }
+
+    private final ResolvingMatcherFactory resolver;
+
+    private final LoadingCache<Class<?>, Kind> kinds = CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Class<?>, Kind>()
+        {
+            @Override
+            public Kind load(Class<?> type)
+            {
+                return kindOf(type);
+            }
+        });
+
+    /**
+     * @param resolver the factory whose choice of {@code MatcherFactory} for each type the fingerprints should follow
+     */
+    DeepHashing(ResolvingMatcherFactory resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Computes the fingerprint of a value with the given hash function.
+     *
+     * @param value the value to fingerprint, may be {@code null}
+     * @param hashFunction the hash function to stream the graph into
+     * @return the fingerprint of the value
+     */
+    HashCode fingerprint(Object value, HashFunction hashFunction)
+    {
+        return new Walk(hashFunction).fingerprint(value);
+    }
+
+    /**
+     * Returns a new {@link CycleFinder}, for the values of one expected graph.
+     */
+    CycleFinder cycleFinder()
+    {
+        return new CycleFinder();
+    }
+
+    /**
+     * Tells which values of a graph refer to other values but aren't part of any cycle, so matching them can't lead
+     * back to them.  Values matched with a {@code Matcher} from some other {@code MatcherFactory} could refer to
+     * anything, so a value which can reach one can't be said to be outside of cycles.
+     *
+     * <p>The graph is walked from each value the first time it is asked about, skipping the parts earlier walks have
+     * already been through.  A walk which reaches more than the current limit of new values is given up on, and the
+     * value is taken to be part of a cycle, which is always safe.  The strongly connected components the walk did
+     * complete are kept, as nothing found later can change them.
+     */
+    final class CycleFinder implements Predicate<Object>
+    {
+        private final Walk walk = new Walk(null);
+        private int walkLimit = FIRST_WALK_LIMIT;
+
+        /**
+         * @param value a value in the graph, may be {@code null}
+         * @return {@code true} if the value is known not to be part of a cycle
+         */
+        public synchronized boolean apply(Object value)
+        {
+            if (value == null || !kindOf(value).hasReferences())
+            {
+                return false;
+            }
+            Node node = walk.nodes.get(value);
+            if (node == null)
+            {
+                if (!walk.walkFrom(value, walkLimit))
+                {
+                    walkLimit = walkLimit > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : walkLimit * 2;
+                    return false;
+                }
+                node = walk.nodes.get(value);
+            }
+            return node.outsideCycles;
+        }
+
+        /**
+         * Returns the number of values walked so far, including the ones walked again after a walk was given up on.
+         */
+        synchronized int valuesWalked()
+        {
+            return walk.visited;
+        }
+    }
+
+    private Kind kindOf(Class<?> type)
+    {
+        MatcherFactory factory = resolver.factoryFor(type);
+        if (factory instanceof ArrayEqualFactory)
+        {
+            return type.getComponentType().isPrimitive() ? Kind.PRIMITIVE_ARRAY : Kind.OBJECT_ARRAY;
+        }
+        else if (factory == MatcherFactories.isEqual())
+        {
+            return Kind.VALUE;
+        }
+        else if (factory == MatcherFactories.listIsDeeplyEqual())
+        {
+            return Kind.LIST;
+        }
+        else if (factory == MatcherFactories.setIsDeeplyEqual()
+            || factory == MatcherFactories.hashBucketedSetIsDeeplyEqual()
+            || factory == MatcherFactories.perfectlyMatchedSetIsDeeplyEqual())
+        {
+            return Kind.SET;
+        }
+        else if (factory == MatcherFactories.mapIsDeeplyEqual()
+            || factory == MatcherFactories.hashBucketedMapIsDeeplyEqual()
+            || factory == MatcherFactories.perfectlyMatchedMapIsDeeplyEqual())
+        {
+            return Kind.MAP;
+        }
+        else if (factory instanceof ReflectiveEqualFactory)
+        {
+            return Kind.REFLECTIVE;
+        }
+        else
+        {
+            return Kind.OTHER;
+        }
+    }
+
+    private Kind kindOf(Object value)
+    {
+        return kinds.getUnchecked(value.getClass());
+    }
+
+    /**
+     * A value which refers to other values, as the walk sees it.
+     */
+    private static final class Node
+    {
+        final Object value;
+        final Kind kind;
+        final int index;
+        int lowLink;
+        boolean onStack = true;
+
+        /** The values this one refers to, in order.  For maps, the keys and values alternate. */
+        Object[] references;
+        int next;
+
+        boolean leadsToCycle;
+        boolean reachesOther;
+        boolean outsideCycles;
+        HashCode fingerprint;
+
+        Node(Object value, Kind kind, int index, Object[] references)
+        {
+            this.value = value;
+            this.kind = kind;
+            this.index = index;
+            this.lowLink = index;
+            this.references = references;
+        }
+    }
+
+    /**
+     * One walk of a graph.  The fingerprint of each value which refers to other values is computed once, when its
+     * strongly connected component is complete.  A walk without a hash function only finds the values outside of
+     * cycles.
+     */
+    private final class Walk
+    {
+        private final HashFunction hashFunction;
+        private final Map<Object, Node> nodes = new IdentityHashMap<Object, Node>();
+        private int visited;
+        private final Deque<Node> path = new ArrayDeque<Node>();
+        private final Deque<Node> component = new ArrayDeque<Node>();
+        private HashCode cycle;
+
+        Walk(HashFunction hashFunction)
+        {
+            this.hashFunction = hashFunction;
+        }
+
+        HashCode fingerprint(Object value)
+        {
+            if (value != null && kindOf(value).hasReferences())
+            {
+                walkFrom(value, Integer.MAX_VALUE);
+                return nodes.get(value).fingerprint;
+            }
+            if (value != null && kindOf(value) == Kind.PRIMITIVE_ARRAY)
+            {
+                return fingerprintOfPrimitiveArray(value);
+            }
+            Hasher hasher = hashFunction.newHasher();
+            putReference(hasher, value);
+            return hasher.hash();
+        }
+
+        /**
+         * Tarjan's algorithm, with the recursion replaced by {@link #path}.  Values walked before, which are all in
+         * complete components, aren't walked again.
+         *
+         * @param limit the most new values to walk before giving up
+         * @return {@code false} if the walk was given up on
+         */
+        private boolean walkFrom(Object root, int limit)
+        {
+            int visitsLeft = limit;
+            path.push(visit(root));
+            while (!path.isEmpty())
+            {
+                Node node = path.peek();
+                if (node.next < node.references.length)
+                {
+                    Object reference = node.references[node.next++];
+                    if (reference == null || !kindOf(reference).hasReferences())
+                    {
+                        continue;
+                    }
+                    Node referenced = nodes.get(reference);
+                    if (referenced == null)
+                    {
+                        if (--visitsLeft <= 0)
+                        {
+                            abandon();
+                            return false;
+                        }
+                        path.push(visit(reference));
+                    }
+                    else if (referenced.onStack)
+                    {
+                        node.lowLink = Math.min(node.lowLink, referenced.index);
+                    }
+                    continue;
+                }
+                path.pop();
+                if (node.lowLink == node.index)
+                {
+                    completeComponentOf(node);
+                }
+                if (!path.isEmpty())
+                {
+                    path.peek().lowLink = Math.min(path.peek().lowLink, node.lowLink);
+                }
+            }
+            return true;
+        }
+
+        private Node visit(Object value)
+        {
+            Node node = new Node(value, kindOf(value), visited++, referencesOf(value));
+            nodes.put(value, node);
+            component.push(node);
+            return node;
+        }
+
+        /**
+         * Forgets the values whose components aren't complete, so a later walk visits them again.
+         */
+        private void abandon()
+        {
+            for (Node node : component)
+            {
+                nodes.remove(node.value);
+            }
+            component.clear();
+            path.clear();
+        }
+
+        /**
+         * Pops the strongly connected component whose first visited value is {@code root}.  Everything the component
+         * refers to outside of itself is already complete, so the fingerprints of its values can be computed.
+         */
+        private void completeComponentOf(Node root)
+        {
+            List<Node> members = Lists.newArrayList();
+            Node member;
+            do
+            {
+                member = component.pop();
+                member.onStack = false;
+                members.add(member);
+            }
+            while (member != root);
+
+            boolean leadsToCycle = members.size() > 1;
+            for (Object reference : root.references)
+            {
+                if (reference == root.value)
+                {
+                    leadsToCycle = true;
+                }
+                Node referenced = reference == null ? null : nodes.get(reference);
+                leadsToCycle |= referenced != null && referenced.leadsToCycle;
+            }
+            boolean reachesOther = false;
+            for (Node node : members)
+            {
+                reachesOther |= refersToOther(node);
+            }
+            for (Node node : members)
+            {
+                node.leadsToCycle = leadsToCycle;
+                node.reachesOther = reachesOther;
+            }
+            if (hashFunction == null)
+            {
+                root.outsideCycles = members.size() == 1 && !refersToItself(root) && !reachesOther;
+            }
+            else
+            {
+                for (Node node : members)
+                {
+                    node.fingerprint = fingerprintOf(node);
+                }
+            }
+            for (Node node : members)
+            {
+                node.references = null;
+            }
+        }
+
+        /**
+         * Whether the value refers to a value matched some other way, or to a complete value which can reach one.
+         */
+        private boolean refersToOther(Node node)
+        {
+            for (Object reference : node.references)
+            {
+                if (reference == null)
+                {
+                    continue;
+                }
+                Kind kind = kindOf(reference);
+                if (kind == Kind.OTHER || kind.hasReferences() && nodes.get(reference).reachesOther)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean refersToItself(Node node)
+        {
+            for (Object reference : node.references)
+            {
+                if (reference == node.value)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private HashCode fingerprintOf(Node node)
+        {
+            Hasher hasher = hashFunction.newHasher();
+            Object[] references = node.references;
+            switch (node.kind)
+            {
+                case OBJECT_ARRAY:
+                    hasher.putByte(ARRAY).putInt(references.length);
+                    putReferences(hasher, references);
+                    break;
+                case LIST:
+                    hasher.putByte(LIST).putInt(references.length);
+                    putReferences(hasher, references);
+                    break;
+                case REFLECTIVE:
+                    hasher.putByte(OBJECT).putString(node.value.getClass().getName());
+                    putReferences(hasher, references);
+                    break;
+                case SET:
+                    Set<HashCode> elements = Sets.newHashSet();
+                    for (Object element : references)
+                    {
+                        elements.add(fingerprintOfReference(element));
+                    }
+                    hasher.putByte(SET).putInt(references.length);
+                    putUnordered(hasher, elements);
+                    break;
+                case MAP:
+                    Set<HashCode> entries = Sets.newHashSet();
+                    for (int i = 0; i < references.length; i += 2)
+                    {
+                        Hasher entry = hashFunction.newHasher();
+                        putReference(entry, references[i]);
+                        putReference(entry, references[i + 1]);
+                        entries.add(entry.hash());
+                    }
+                    hasher.putByte(MAP).putInt(references.length / 2);
+                    putUnordered(hasher, entries);
+                    break;
+                default:
+                    throw new AssertionError(node.kind);
+            }
+            return hasher.hash();
+        }
+
+        private void putReferences(Hasher hasher, Object[] references)
+        {
+            for (Object reference : references)
+            {
+                putReference(hasher, reference);
+            }
+        }
+
+        private void putUnordered(Hasher hasher, Set<HashCode> fingerprints)
+        {
+            if (!fingerprints.isEmpty())
+            {
+                hasher.putBytes(Hashing.combineUnordered(fingerprints).asBytes());
+            }
+        }
+
+        private HashCode fingerprintOfReference(Object reference)
+        {
+            Hasher hasher = hashFunction.newHasher();
+            putReference(hasher, reference);
+            return hasher.hash();
+        }
+
+        /**
+         * Streams a value that is referred to.  Values which have already been walked are streamed as their
+         * fingerprint, or as a cycle if they lead to one.
+         */
+        private void putReference(Hasher hasher, Object reference)
+        {
+            if (reference == null)
+            {
+                hasher.putByte(NULL);
+                return;
+            }
+            switch (kindOf(reference))
+            {
+                case VALUE:
+                    putValue(hasher.putByte(VALUE), reference);
+                    break;
+                case OTHER:
+                    hasher.putByte(OTHER);
+                    break;
+                case PRIMITIVE_ARRAY:
+                    hasher.putBytes(fingerprintOfPrimitiveArray(reference).asBytes());
+                    break;
+                default:
+                    Node node = nodes.get(reference);
+                    hasher.putBytes(node.leadsToCycle ? cycle().asBytes() : node.fingerprint.asBytes());
+            }
+        }
+
+        /**
+         * Streams a primitive array the same way as the equal array of wrappers.
+         */
+        private HashCode fingerprintOfPrimitiveArray(Object array)
+        {
+            int length = Array.getLength(array);
+            Hasher hasher = hashFunction.newHasher().putByte(ARRAY).putInt(length);
+            for (int i = 0; i < length; i++)
+            {
+                putValue(hasher.putByte(VALUE), Array.get(array, i));
+            }
+            return hasher.hash();
+        }
+
+        private HashCode cycle()
+        {
+            if (cycle == null)
+            {
+                cycle = hashFunction.newHasher().putByte(CYCLE).hash();
+            }
+            return cycle;
+        }
+    }
+
+    /**
+     * Streams a value compared with {@code equals}.  The well known value types are streamed by value, so their
+     * fingerprints are the same in every JVM.  Anything else can only be streamed as its {@code hashCode}.
+     */
+    private static void putValue(Hasher hasher, Object value)
+    {
+        if (value instanceof String)
+        {
+            hasher.putString((String) value);
+        }
+        else if (value instanceof Integer)
+        {
+            hasher.putInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            hasher.putLong((Long) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            hasher.putBoolean((Boolean) value);
+        }
+        else if (value instanceof Character)
+        {
+            hasher.putChar((Character) value);
+        }
+        else if (value instanceof Double)
+        {
+            hasher.putLong(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof Float)
+        {
+            hasher.putInt(Float.floatToIntBits((Float) value));
+        }
+        else if (value instanceof Byte)
+        {
+            hasher.putByte((Byte) value);
+        }
+        else if (value instanceof Short)
+        {
+            hasher.putShort((Short) value);
+        }
+        else if (value instanceof BigDecimal || value instanceof BigInteger)
+        {
+            // equal values have the same unscaled value and scale, so they print the same
+            hasher.putString(value.toString());
+        }
+        else if (value instanceof Enum<?>)
+        {
+            Enum<?> constant = (Enum<?>) value;
+            hasher.putString(constant.getDeclaringClass().getName()).putString(constant.name());
+        }
+        else
+        {
+            hasher.putInt(value.hashCode());
+        }
+    }
+
+    private Object[] referencesOf(Object value)
+    {
+        switch (kindOf(value))
+        {
+            case OBJECT_ARRAY:
+                return ((Object[]) value).clone();
+            case LIST:
+                return ((List<?>) value).toArray();
+            case SET:
+                return ((Set<?>) value).toArray();
+            case MAP:
+                Map<?, ?> map = (Map<?, ?>) value;
+                Object[] keysAndValues = new Object[map.size() * 2];
+                int i = 0;
+                for (Map.Entry<?, ?> entry : map.entrySet())
+                {
+                    keysAndValues[i++] = entry.getKey();
+                    keysAndValues[i++] = entry.getValue();
+                }
+                return keysAndValues;
+            case REFLECTIVE:
+                ClassMatchPlan plan = ClassMatchPlan.of(value.getClass());
+                Object[] fields = new Object[plan.fieldCount()];
+                for (int f = 0; f < fields.length; f++)
+                {
+                    fields[f] = plan.accessor(f).get(value);
+                }
+                return fields;
+            default:
+                throw new AssertionError(value);
+        }
+    }
+}
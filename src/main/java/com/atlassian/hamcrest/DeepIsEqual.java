@@ -19,8 +19,14 @@ import org.hamcrest.Factory;
 import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 /**
  * A matcher that does a deep equals comparison of objects using reflection.  This allows testers to compare arbitrary
@@ -50,46 +56,157 @@ import com.google.common.collect.ImmutableMap;
  * 
  * Because that isn't exactly the clearest code, it is highly recommended that you create utility methods that
  * encapsulate the creation of the the {@code MatcherFactory} maps and registration of them to make your tests easier
- * to read.
+ * to read.  Keep each map in a constant rather than building it for every assertion: the {@code MatcherFactory}
+ * chosen for each class is remembered for as long as the same map instance is used.
  */
 public class DeepIsEqual<T> extends DiagnosingMatcher<T>
 {
+    /**
+     * How the comparison is carried out.  The engines only differ in speed, they give the same results and describe
+     * mismatches the same way.
+     */
+    public enum Engine
+    {
+        /**
+         * Builds a tree of {@code Matcher}s for the expected value and matches the actual value against it.
+         */
+        MATCHER_TREE,
+
+        /**
+         * Builds a comparator for each concrete class in the compared graphs, which compares expected and actual
+         * values directly, without creating any {@code Matcher}s.  Comparators are kept for the lifetime of the JVM
+         * when no extra {@code MatcherFactory}s are used, so this pays off when the same classes are compared many
+         * times.  The tree of {@code Matcher}s is only built when a mismatch has to be described.
+         */
+        COMPARATORS,
+
+        /**
+         * Like {@link #COMPARATORS}, but also compares the elements of large lists and arrays on several threads at
+         * once.  The threads are daemon threads in a pool shared by every parallel comparison, with a thread for each
+         * processor.  Only finding out whether the values match is done in parallel.  Mismatches are still described
+         * on the calling thread, so they come out the same, in the same order, as with the other engines.
+         */
+        PARALLEL
+    }
+
+    /**
+     * The configuration used when no extra {@code MatcherFactory}s are given.
+     */
+    private static final Configuration DEFAULT_CONFIGURATION = new Configuration(
+        ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of());
+
+    /**
+     * The configuration for each map of extra {@code MatcherFactory}s, by identity, so matchers created with the same
+     * map share the factories resolved for each class.  Configurations refer to their maps, so they are held softly.
+     */
+    private static final LoadingCache<Map<Matcher<Class<?>>, MatcherFactory>, Configuration> CONFIGURATIONS =
+        CacheBuilder.newBuilder()
+            .weakKeys()
+            .softValues()
+            .build(new CacheLoader<Map<Matcher<Class<?>>, MatcherFactory>, Configuration>()
+            {
+                @Override
+                public Configuration load(Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories)
+                {
+                    return new Configuration(extraMatcherFactories);
+                }
+            });
+
+    private final T expected;
+    private final ReflectiveObjectMatcherFactory resolver;
+    private final DeepHashing hashing;
+
+    /**
+     * Creates the {@code Matcher}s the {@link Engine#COMPARATORS} and {@link Engine#PARALLEL} engines fall back on.
+     */
+    private final MatcherFactory matcherFactory;
+
+    /**
+     * Compares the values when the {@link Engine#COMPARATORS} or {@link Engine#PARALLEL} engine is used, {@code null}
+     * otherwise.
+     */
+    private final ClassComparators comparators;
+    private final boolean parallel;
+
+    /**
+     * Whether the expected value is {@code null} or compared with {@link MatcherFactories#isEqual()}, in which case
+     * only finding out whether a value matches doesn't need any {@code Matcher}s, or any state, at all.
+     */
+    private final boolean comparedWithEquals;
+
     /**
      * The main matcher for the objects, which will be composed of other matchers for the fields of complex objects.
+     * With the {@link Engine#COMPARATORS} engine it is only created if it's needed.  Matchers don't change once they
+     * are built, and keep what they need while matching in the {@link MatchContext} of each match, so one tree can be
+     * shared by threads matching at the same time.
      */
-    private final Matcher<? super T> valueMatcher;
-    
-    private DeepIsEqual(T expected, MatcherFactory matcherFactory)
+    private volatile Matcher<? super T> valueMatcher;
+
+    private DeepIsEqual(T expected, Configuration configuration, Engine engine)
     {
-        if (expected == null)
-        {
-            valueMatcher = nullValue();
-        }
-        else
+        this.expected = expected;
+        this.resolver = configuration.resolver;
+        this.hashing = configuration.hashing;
+        this.matcherFactory = new CachingMatcherFactory(resolver);
+        this.comparators = engine == Engine.MATCHER_TREE ? null : configuration.comparators;
+        this.parallel = engine == Engine.PARALLEL;
+        this.comparedWithEquals = expected == null
+            || !expected.getClass().isArray() && resolver.factoryFor(expected.getClass()) == isEqual();
+    }
+
+    private Matcher<? super T> valueMatcher()
+    {
+        Matcher<? super T> matcher = valueMatcher;
+        if (matcher == null)
         {
-            valueMatcher = matcherFactory.newEqualMatcher(expected, matcherFactory, new DisjointSet<Object>());
+            // Threads racing to build the matcher build equivalent trees, so any of them will do
+            if (expected == null)
+            {
+                matcher = nullValue();
+            }
+            else
+            {
+                // values outside of cycles, which in most graphs is all of them, are matched without DisjointSet
+                // updates, and the graph is only walked to find them as far as the matchers get created
+                MatcherFactory factory = new CachingMatcherFactory(resolver, hashing.cycleFinder());
+                matcher = factory.newEqualMatcher(expected, factory, MatchContext.CURRENT_EQUIVALENCES);
+            }
+            valueMatcher = matcher;
         }
+        return matcher;
     }
 
     /**
      * Checks that the type of {@code actual} matches the type of the expected value and then that the composite object
-     * values are equal.
+     * values are equal.  When only the result is needed, the comparison stops at the first difference.  When a
+     * mismatch is being described, the mismatches are recorded in the same pass as the comparison.
      */
     @Override
     protected boolean matches(Object actual, Description mismatchDescription)
     {
-        if (!valueMatcher.matches(actual))
+        if (mismatchDescription == Description.NONE)
+        {
+            if (comparedWithEquals)
+            {
+                return expected == null ? actual == null : actual != null && actual.equals(expected);
+            }
+            return comparators != null
+                ? new ClassComparators.Comparison(comparators, matcherFactory, parallel).equal(expected, actual)
+                : DeepMatcher.matchChild(valueMatcher(), actual, MatchContext.quiet());
+        }
+        MatchContext context = MatchContext.recording();
+        if (DeepMatcher.matchChild(valueMatcher(), actual, context))
         {
-            valueMatcher.describeMismatch(actual, mismatchDescription);
-            return false;
+            return true;
         }
-        return true;
+        mismatchDescription.appendText(context.toString());
+        return false;
     }
 
     public void describeTo(Description description)
     {
         CycleBreakingDescription cycleBreakingDescription = new CycleBreakingDescription(new IndentingDescription(description));
-        cycleBreakingDescription.appendDescriptionOf(valueMatcher);
+        cycleBreakingDescription.appendDescriptionOf(valueMatcher());
         cycleBreakingDescription.flushDescription();
     }
     
@@ -119,13 +236,123 @@ public class DeepIsEqual<T> extends DiagnosingMatcher<T>
     @Factory
     public static <T> Matcher<? super T> deeplyEqualTo(T operand, Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories)
     {
-        return new DeepIsEqual<T>(
-            operand, new CachingMatcherFactory(
-            new ReflectiveObjectMatcherFactory(
+        return deeplyEqualTo(operand, extraMatcherFactories, Engine.MATCHER_TREE);
+    }
+
+    /**
+     * Returns a {@code Matcher} which compares 2 objects reflectively using the given {@link Engine}, and uses the
+     * custom {@code MatcherFactory}s to determine how to match certain types of fields.
+     *
+     * @param <T> type of the objects to compare
+     * @param operand the expected value
+     * @param extraMatcherFactories {@code MatcherFactory}s to use for the fields with types matching the key {@code Matcher}
+     * @param engine how to carry out the comparison
+     * @return {@code Matcher} which compares 2 objects reflectively
+     * @see DeepIsEqual
+     */
+    @Factory
+    public static <T> Matcher<? super T> deeplyEqualTo(
+        T operand, Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories, Engine engine)
+    {
+        return new DeepIsEqual<T>(operand, configurationFor(extraMatcherFactories), engine);
+    }
+
+    /**
+     * Returns a {@code Matcher} which compares objects reflectively, like {@link #deeplyEqualTo(Object)}, but which
+     * has already done all the work that only depends on the expected value.
+     *
+     * @param <T> type of the objects to compare
+     * @param expected the expected value
+     * @return {@code Matcher} which compares objects reflectively
+     * @see #prepare(Object, Map)
+     */
+    public static <T> Matcher<? super T> prepare(T expected)
+    {
+        return prepare(expected, ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of());
+    }
+
+    /**
+     * Returns a {@code Matcher} which compares objects reflectively, like {@link #deeplyEqualTo(Object, Map)}, but
+     * which has already done all the work that only depends on the expected value.  The {@code MatcherFactory} for
+     * every value in the expected graph is chosen, and the whole tree of {@code Matcher}s is built, before this
+     * returns.  Matching an actual value then only compares it, which pays off when many actual values are checked
+     * against the same expected value, such as every message sent by a system against one known good message.
+     *
+     * <p>The returned {@code Matcher} can be used by several threads at once.  The expected value must not change
+     * after it has been prepared.
+     *
+     * @param <T> type of the objects to compare
+     * @param expected the expected value
+     * @param extraMatcherFactories {@code MatcherFactory}s to use for the fields with types matching the key {@code Matcher}
+     * @return {@code Matcher} which compares objects reflectively
+     */
+    public static <T> Matcher<? super T> prepare(T expected, Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories)
+    {
+        DeepIsEqual<T> matcher =
+            new DeepIsEqual<T>(expected, configurationFor(extraMatcherFactories), Engine.MATCHER_TREE);
+        DeepMatcher.buildTree(matcher.valueMatcher());
+        return matcher;
+    }
+
+    /**
+     * Returns a hash code for a value which is consistent with {@link #deeplyEqualTo(Object)}: if
+     * {@code deeplyEqualTo(expected)} matches {@code actual}, both have the same deep hash code.  Values with different
+     * deep hash codes can't be deeply equal, so comparing the hash codes first is a cheap way of ruling out most
+     * unequal graphs, and the hash codes can be used to put values in buckets by deep equality.
+     *
+     * <p>The object graph is walked without recursion, so deep graphs and cycles are fine.
+     *
+     * @param value the value to compute the hash code of, may be {@code null}
+     * @return the deep hash code of the value
+     * @see #deepFingerprint(Object, HashFunction)
+     */
+    public static int deepHashCode(Object value)
+    {
+        return deepFingerprint(value, Hashing.murmur3_32()).asInt();
+    }
+
+    /**
+     * Streams a value into the given hash function, following the same rules as {@link #deeplyEqualTo(Object)}, so
+     * values which are deeply equal have the same fingerprint.  With a strong hash function such as
+     * {@link Hashing#sha256()}, values without cycles which have the same fingerprint are almost certainly deeply equal.  The
+     * fingerprints of values which lead to cycles only take in the parts of the graph which don't go through a cycle.
+     *
+     * @param value the value to fingerprint, may be {@code null}
+     * @param hashFunction the hash function to stream the value into
+     * @return the fingerprint of the value
+     */
+    public static HashCode deepFingerprint(Object value, HashFunction hashFunction)
+    {
+        return DEFAULT_CONFIGURATION.hashing.fingerprint(value, hashFunction);
+    }
+
+    private static Configuration configurationFor(Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories)
+    {
+        return extraMatcherFactories.isEmpty()
+            ? DEFAULT_CONFIGURATION
+            : CONFIGURATIONS.getUnchecked(extraMatcherFactories);
+    }
+
+    /**
+     * Everything that only depends on the extra {@code MatcherFactory}s: the factory chosen for each class, and the
+     * comparators and hashing which follow those choices.  All of it is filled in lazily, as classes are seen.
+     */
+    private static final class Configuration
+    {
+        final ReflectiveObjectMatcherFactory resolver;
+        final ClassComparators comparators;
+        final DeepHashing hashing;
+
+        Configuration(Map<Matcher<Class<?>>, MatcherFactory> extraMatcherFactories)
+        {
+            this.resolver = new ReflectiveObjectMatcherFactory(
                 ImmutableList.of(
                     extraMatcherFactories,
                     Primitives.FACTORIES,
-                    MatcherFactories.collectionHandlingMatcherFactories()))));
+                    MatcherFactories.collectionHandlingMatcherFactories()));
+            this.comparators = new ClassComparators(resolver);
+            this.hashing = new DeepHashing(resolver);
+        }
     }
 
     private static final class Primitives
@@ -0,0 +1,301 @@
+package com.atlassian.hamcrest;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.hamcrest.Description;
+import org.hamcrest.DiagnosingMatcher;
+import org.hamcrest.Matcher;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Base class for the {@code Matcher}s which compare values made up of other values, like objects, arrays and
+ * collections.  They match and describe mismatches in a single pass, recording mismatches into a {@link MatchContext}
+ * as they find them.  A plain {@code DiagnosingMatcher} that describes the mismatch of its child has to match the
+ * child again to do it, so describing a mismatch deep in a graph would take time exponential in its depth.
+ *
+ * <p>Matching doesn't recurse on the Java stack.  Each {@code DeepMatcher} starts a {@link Match} which hands its
+ * children back to {@link #matchChild}, and the matches in progress are kept on a work stack on the heap, so how deeply
+ * values can be nested is only limited by the heap.
+ *
+ * @param <T> type of the values matched
+ */
+abstract class DeepMatcher<T> extends DiagnosingMatcher<T>
+{
+    @Override
+    protected final boolean matches(Object actual, Description mismatchDescription)
+    {
+        if (mismatchDescription instanceof MatchContext)
+        {
+            return matchChild(this, actual, (MatchContext) mismatchDescription);
+        }
+        // carry on with the equivalences of the match which asked a matcher of its own to match, if there is one
+        MatchContext current = MatchContext.current();
+        if (mismatchDescription == Description.NONE)
+        {
+            return matchChild(this, actual, current != null ? current.quietly() : MatchContext.quiet());
+        }
+        MatchContext context = current != null ? current.recordingSeparately() : MatchContext.recording();
+        boolean matches = matchChild(this, actual, context);
+        if (!matches)
+        {
+            mismatchDescription.appendText(context.toString());
+        }
+        return matches;
+    }
+
+    /**
+     * Starts matching the actual value.
+     *
+     * @param actual the actual value
+     * @return the match, which hasn't done anything yet
+     */
+    abstract Match startMatch(Object actual);
+
+    /**
+     * Returns the matchers for the parts of the expected value, creating any which haven't been created yet.
+     */
+    abstract Iterable<? extends Matcher<?>> childMatchers();
+
+    /**
+     * Creates every matcher in the tree below {@code root} up front, rather than the first time each one is needed.
+     * Matchers shared by several parents, as they are in cyclic graphs, are only visited once.
+     */
+    static void buildTree(Matcher<?> root)
+    {
+        Set<Matcher<?>> built = Sets.newSetFromMap(new IdentityHashMap<Matcher<?>, Boolean>());
+        Deque<Matcher<?>> toBuild = new ArrayDeque<Matcher<?>>();
+        toBuild.push(root);
+        while (!toBuild.isEmpty())
+        {
+            Matcher<?> matcher = toBuild.pop();
+            if (matcher instanceof DeepMatcher<?> && built.add(matcher))
+            {
+                for (Matcher<?> child : ((DeepMatcher<?>) matcher).childMatchers())
+                {
+                    toBuild.push(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches a value with a child matcher, recording the child's mismatch into the context if it doesn't match.  Child
+     * {@code DeepMatcher}s do both in one pass, other matchers are only asked to describe a mismatch after they failed
+     * to match.
+     *
+     * @param matcher the child matcher
+     * @param actual the value to match
+     * @param context the context to record a mismatch into
+     * @return {@code true} if the value matches
+     */
+    static boolean matchChild(Matcher<?> matcher, Object actual, MatchContext context)
+    {
+        if (!(matcher instanceof DeepMatcher<?>))
+        {
+            return matchShallow(matcher, actual, context);
+        }
+        Deque<Match> inProgress = null;
+        Deque<MatchContext> contexts = null;
+        Match match = ((DeepMatcher<?>) matcher).startMatch(actual);
+        MatchContext matchContext = context;
+        boolean childMatched = false;
+        while (true)
+        {
+            if (match.next(childMatched, matchContext))
+            {
+                MatchContext childContext = match.childContext != null ? match.childContext : matchContext;
+                if (match.childMatcher instanceof DeepMatcher<?>)
+                {
+                    if (inProgress == null)
+                    {
+                        inProgress = new ArrayDeque<Match>();
+                        contexts = new ArrayDeque<MatchContext>();
+                    }
+                    inProgress.push(match);
+                    contexts.push(matchContext);
+                    match = ((DeepMatcher<?>) match.childMatcher).startMatch(match.childActual);
+                    matchContext = childContext;
+                    childMatched = false;
+                }
+                else
+                {
+                    childMatched = matchShallow(match.childMatcher, match.childActual, childContext);
+                }
+            }
+            else if (inProgress == null || inProgress.isEmpty())
+            {
+                return match.matched;
+            }
+            else
+            {
+                childMatched = match.matched;
+                match = inProgress.pop();
+                matchContext = contexts.pop();
+            }
+        }
+    }
+
+    private static boolean matchShallow(Matcher<?> matcher, Object actual, MatchContext context)
+    {
+        MatchContext previous = MatchContext.enter(context);
+        try
+        {
+            if (matcher.matches(actual))
+            {
+                return true;
+            }
+            if (context.isRecording())
+            {
+                matcher.describeMismatch(actual, context);
+            }
+            return false;
+        }
+        finally
+        {
+            MatchContext.leave(previous);
+        }
+    }
+
+    /**
+     * One match of a {@code DeepMatcher} in progress.  Rather than matching a child itself, a match asks for the child
+     * to be matched with {@link #matchNext} and is called again with the result, so it has to keep where it got to in
+     * its own fields.
+     */
+    abstract static class Match
+    {
+        private Matcher<?> childMatcher;
+        private Object childActual;
+        private MatchContext childContext;
+        private boolean matched;
+
+        /**
+         * Carries on matching until a child has to be matched or the match is finished.
+         *
+         * @param childMatched whether the child asked for by the previous call matched, {@code false} on the first call
+         * @param context the context to record a mismatch into
+         * @return {@link #matchNext} to have a child matched, or {@link #finish} when the match is finished
+         */
+        abstract boolean next(boolean childMatched, MatchContext context);
+
+        /**
+         * Asks for a child to be matched before the match carries on.
+         */
+        final boolean matchNext(Matcher<?> matcher, Object actual)
+        {
+            return matchNext(matcher, actual, null);
+        }
+
+        /**
+         * Asks for a child to be matched in another context, such as a quiet one for trying candidates while
+         * recording, before the match carries on.
+         *
+         * @param context the context to match the child in, or {@code null} for the context of this match
+         */
+        final boolean matchNext(Matcher<?> matcher, Object actual, MatchContext context)
+        {
+            childMatcher = matcher;
+            childActual = actual;
+            childContext = context;
+            return true;
+        }
+
+        /**
+         * Finishes the match.
+         */
+        final boolean finish(boolean matched)
+        {
+            this.matched = matched;
+            childMatcher = null;
+            childActual = null;
+            childContext = null;
+            return false;
+        }
+    }
+
+    /**
+     * A match which is carried out in one go when it's started.  For matchers whose children are matched with
+     * {@link #matchChild} directly, which is fine as long as they don't nest deeply, such as sets and perfectly matched
+     * maps.
+     */
+    abstract static class MatchInOneGo extends Match
+    {
+        @Override
+        final boolean next(boolean childMatched, MatchContext context)
+        {
+            return finish(matches(context));
+        }
+
+        abstract boolean matches(MatchContext context);
+    }
+
+    /**
+     * Matches the elements of a list or an array in order, recording the mismatches of all the elements that don't
+     * match.
+     */
+    abstract static class ElementsMatch extends Match
+    {
+        private final Iterator<Matcher<?>> matchers;
+        private boolean started;
+        private int index;
+        private int mark;
+        private boolean mismatchFound;
+
+        ElementsMatch(Iterable<Matcher<?>> matchers)
+        {
+            this.matchers = matchers.iterator();
+        }
+
+        /**
+         * Checks whether the actual value can be compared element by element at all, recording the mismatch if it
+         * can't.
+         */
+        abstract boolean canCompareElements(MatchContext context);
+
+        abstract Object actualElement(int index);
+
+        @Override
+        final boolean next(boolean childMatched, MatchContext context)
+        {
+            if (!started)
+            {
+                started = true;
+                if (!canCompareElements(context))
+                {
+                    return finish(false);
+                }
+            }
+            else if (childMatched)
+            {
+                context.rollback(mark);
+                index++;
+            }
+            else if (!context.isRecording())
+            {
+                return finish(false);
+            }
+            else
+            {
+                mismatchFound = true;
+                index++;
+            }
+            if (matchers.hasNext())
+            {
+                Object element = actualElement(index);
+                mark = context.mark();
+                context.appendText(mismatchFound ? ", " : "[");
+                context.appendText("[").appendValue(index).appendText("] => ");
+                return matchNext(matchers.next(), element);
+            }
+            if (mismatchFound)
+            {
+                context.appendText("]");
+            }
+            return finish(!mismatchFound);
+        }
+    }
+}
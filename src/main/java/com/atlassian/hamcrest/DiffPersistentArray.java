@@ -2,14 +2,28 @@ package com.atlassian.hamcrest;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A persistent array implementation based on diffs and re-rooting.
+ *
+ * <p>Reading a version far from the one holding the direct array would mean undoing a long chain of diffs, and undoing
+ * them all again to get back, so a version whose chain is longer than {@link #MIN_COMPACTION_CHAIN} and than the array
+ * is given a copy of its own instead.  Both ends of the chain can then be read straight away.
+ *
+ * <p>A {@link Transient} makes its changes in the direct array as it goes, and records the values they replace in a
+ * single diff for the version it was made from, so a batch of {@code set}s only adds one version to the chain.
  */
 public final class DiffPersistentArray<E> implements PersistentArray<E> {
 
+    /**
+     * The shortest chain of diffs worth copying the array for, rather than rerooting.
+     */
+    static final int MIN_COMPACTION_CHAIN = 32;
+
     private static abstract class BaseArray<E>
     {
         abstract E get(int index);
@@ -36,6 +50,11 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
             this.elementData = new Object[size];
         }
 
+        private DirectArray(DirectArray<E> original)
+        {
+            this.elementData = original.elementData.clone();
+        }
+
         int size()
         {
             return elementData.length;
@@ -72,18 +91,16 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
         }
     }
 
-    private static class DiffArray<E> extends BaseArray<E>
+    /**
+     * The difference between a version and its base, which holds the direct array once the diff is rerooted.
+     */
+    private static abstract class Diff<E> extends BaseArray<E>
     {
-        private final E value;
-        private final int index;
-        private final DiffPersistentArray<E> base;
+        final DiffPersistentArray<E> base;
 
-        private DiffArray(DiffPersistentArray<E> base, int index, E value)
+        Diff(DiffPersistentArray<E> base)
         {
-            assert index >= 0;
             this.base = base;
-            this.index = index;
-            this.value = value;
         }
 
         int size()
@@ -91,6 +108,31 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
             return base.size();
         }
 
+        /**
+         * Writes this diff's values into the direct array, which must hold the base's elements, and returns the diff
+         * which undoes it, against the version that takes the direct array over.
+         */
+        abstract Diff<E> applyTo(DirectArray<E> direct, DiffPersistentArray<E> newBase);
+
+        /**
+         * Writes this diff's values into a copy of the direct array.
+         */
+        abstract void writeTo(DirectArray<E> copy);
+    }
+
+    private static class DiffArray<E> extends Diff<E>
+    {
+        private final E value;
+        private final int index;
+
+        private DiffArray(DiffPersistentArray<E> base, int index, E value)
+        {
+            super(base);
+            assert index >= 0;
+            this.index = index;
+            this.value = value;
+        }
+
         E get(int index)
         {
             assert index >= 0;
@@ -103,6 +145,81 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
                 return base.get(index);
             }
         }
+
+        Diff<E> applyTo(DirectArray<E> direct, DiffPersistentArray<E> newBase)
+        {
+            E originalE = direct.get(index);
+            direct.set(index, value);
+            return new DiffArray<E>(newBase, index, originalE);
+        }
+
+        void writeTo(DirectArray<E> copy)
+        {
+            copy.set(index, value);
+        }
+    }
+
+    /**
+     * A diff of any number of elements, whose values are written from the last one recorded to the first, so the value
+     * recorded first for an index is the one which ends up in the array.
+     */
+    private static class BatchDiffArray<E> extends Diff<E>
+    {
+        private int[] indexes;
+        private Object[] values;
+        private int count;
+
+        private BatchDiffArray(DiffPersistentArray<E> base, int capacity)
+        {
+            super(base);
+            this.indexes = new int[capacity];
+            this.values = new Object[capacity];
+        }
+
+        void add(int index, E value)
+        {
+            if (count == indexes.length)
+            {
+                indexes = java.util.Arrays.copyOf(indexes, count * 2);
+                values = java.util.Arrays.copyOf(values, count * 2);
+            }
+            indexes[count] = index;
+            values[count++] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(int index)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (indexes[i] == index)
+                {
+                    return (E) values[i];
+                }
+            }
+            return base.get(index);
+        }
+
+        @SuppressWarnings("unchecked")
+        Diff<E> applyTo(DirectArray<E> direct, DiffPersistentArray<E> newBase)
+        {
+            BatchDiffArray<E> undo = new BatchDiffArray<E>(newBase, Math.max(count, 1));
+            for (int i = count - 1; i >= 0; i--)
+            {
+                undo.add(indexes[i], direct.get(indexes[i]));
+                direct.set(indexes[i], (E) values[i]);
+            }
+            return undo;
+        }
+
+        @SuppressWarnings("unchecked")
+        void writeTo(DirectArray<E> copy)
+        {
+            for (int i = count - 1; i >= 0; i--)
+            {
+                copy.set(indexes[i], (E) values[i]);
+            }
+        }
     }
 
     private BaseArray<E> array;
@@ -169,14 +286,25 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
     {
         reroot();
         resizeDirectArrayIfNecessary(newSize, null);
-        return new DiffPersistentArray<E>(array, newSize);
+        return takeOverDirectArray(newSize);
     }
 
     public PersistentArray<E> resize(int newSize, Function<Integer, E> initFun)
     {
         reroot();
         resizeDirectArrayIfNecessary(newSize, initFun);
-        return new DiffPersistentArray<E>(array, newSize);
+        return takeOverDirectArray(newSize);
+    }
+
+    /**
+     * Hands the direct array over to a new version of the given size.  This version becomes a diff against the new one
+     * which doesn't change anything, so changes made through the new version don't show through this one.
+     */
+    private DiffPersistentArray<E> takeOverDirectArray(int newSize)
+    {
+        DiffPersistentArray<E> result = new DiffPersistentArray<E>(array, newSize);
+        array = new DiffArray<E>(result, 0, array.get(0));
+        return result;
     }
 
     private void resizeDirectArrayIfNecessary(int newSize, Function<Integer, E> initFun) {
@@ -191,22 +319,135 @@ public final class DiffPersistentArray<E> implements PersistentArray<E> {
         }
     }
 
+    /**
+     * Makes this version the one holding the direct array, by undoing the diffs between it and the current holder one
+     * at a time, starting from the holder's end.  The chain of diffs can be as long as the number of versions, so it is
+     * walked in a loop rather than by recursing.  A chain long enough to be worth it is compacted instead.
+     */
     private void reroot()
     {
-        if (array instanceof DiffArray)
+        if (!(array instanceof Diff))
+        {
+            return;
+        }
+        List<DiffPersistentArray<E>> path = Lists.newArrayList();
+        for (DiffPersistentArray<E> version = this; version.array instanceof Diff;
+             version = ((Diff<E>) version.array).base)
+        {
+            path.add(version);
+        }
+        if (path.size() > Math.max(MIN_COMPACTION_CHAIN, size))
+        {
+            compact(path);
+            return;
+        }
+        for (int i = path.size() - 1; i >= 0; i--)
+        {
+            path.get(i).rerootFromBase();
+        }
+    }
+
+    /**
+     * Gives this version a direct array of its own, by copying the current holder's and applying the diffs on the path
+     * to it, starting from the holder's end.  The versions on the path, and the holder, are left as they were.
+     *
+     * @param path the versions from this one to the last one before the holder
+     */
+    private void compact(List<DiffPersistentArray<E>> path)
+    {
+        Diff<E> last = (Diff<E>) path.get(path.size() - 1).array;
+        DirectArray<E> copy = new DirectArray<E>((DirectArray<E>) last.base.array);
+        for (int i = path.size() - 1; i >= 0; i--)
+        {
+            ((Diff<E>) path.get(i).array).writeTo(copy);
+        }
+        array = copy;
+    }
+
+    /**
+     * Takes the direct array over from the base of this version's diff, which must be holding it.
+     */
+    private void rerootFromBase()
+    {
+        Diff<E> diff = (Diff<E>)array;
+        DiffPersistentArray<E> newIndirect = diff.base;
+
+        assert(newIndirect.array instanceof DirectArray);
+
+        DirectArray<E> newDirectArray = (DirectArray<E>) newIndirect.array;
+
+        Diff<E> undo = diff.applyTo(newDirectArray, this);
+        array = newDirectArray;
+        newIndirect.array = undo;
+    }
+
+    public Transient<E> asTransient()
+    {
+        return new DiffTransient();
+    }
+
+    /**
+     * Makes its changes in the direct array, held by the version it will return from {@link #persistent()}, and records
+     * the values they replace in a batch diff for the version before.  If another version takes the direct array while
+     * the transient is in use, the next change starts a new batch.
+     */
+    private final class DiffTransient implements Transient<E>
+    {
+        private DiffPersistentArray<E> result = DiffPersistentArray.this;
+        private DiffPersistentArray<E> previous;
+        private BatchDiffArray<E> batch;
+
+        DiffTransient()
         {
-            DiffArray<E> diff = (DiffArray<E>)array;
-            DiffPersistentArray<E> newIndirect = diff.base;
-            newIndirect.reroot();
+            startBatch();
+        }
 
-            assert(newIndirect.array instanceof DirectArray);
+        private void startBatch()
+        {
+            result.reroot();
+            DiffPersistentArray<E> next = new DiffPersistentArray<E>(result.array, size);
+            batch = new BatchDiffArray<E>(next, 8);
+            result.array = batch;
+            previous = result;
+            result = next;
+        }
+
+        public E get(int index)
+        {
+            checkActive();
+            return result.get(index);
+        }
 
-            DirectArray<E> newDirectArray = (DirectArray<E>) newIndirect.array;
+        public Transient<E> set(int index, E value)
+        {
+            checkActive();
+            Preconditions.checkElementIndex(index, size);
+            if (previous.array != batch || !(result.array instanceof DirectArray))
+            {
+                startBatch();
+            }
+            DirectArray<E> direct = (DirectArray<E>) result.array;
+            batch.add(index, direct.get(index));
+            direct.set(index, value);
+            return this;
+        }
 
-            E originalE = newDirectArray.get(diff.index);
-            newDirectArray.set(diff.index, diff.value);
-            array = newDirectArray;
-            newIndirect.array = new DiffArray<E>(this, diff.index, originalE);
+        public int size()
+        {
+            return size;
+        }
+
+        public PersistentArray<E> persistent()
+        {
+            checkActive();
+            PersistentArray<E> persistent = result;
+            result = null;
+            return persistent;
+        }
+
+        private void checkActive()
+        {
+            Preconditions.checkState(result != null, "Transient used after persistent()");
         }
     }
 
@@ -0,0 +1,179 @@
+package com.atlassian.hamcrest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * A {@link PersistentIntArray} based on diffs and re-rooting, like {@link DiffPersistentArray}.  The diff is kept in
+ * the fields of the version itself, so setting an element only allocates the new version.
+ *
+ * <p>A version whose chain of diffs is longer than {@link DiffPersistentArray#MIN_COMPACTION_CHAIN} and than the
+ * array is given a copy of its own when it is read, as {@code DiffPersistentArray} does.
+ */
+public final class DiffPersistentIntArray implements PersistentIntArray
+{
+    /**
+     * The elements, if this version holds the direct array, or {@code null} if it is a diff against {@link #base}.
+     */
+    private int[] elementData;
+
+    private DiffPersistentIntArray base;
+    private int diffIndex;
+    private int diffValue;
+
+    private final int size;
+
+    /**
+     * Creates an array of the given size whose elements are all {@code 0}.
+     */
+    public DiffPersistentIntArray(int size)
+    {
+        Preconditions.checkArgument(size > 0, "Size must be > 0");
+        this.elementData = new int[size];
+        this.size = size;
+    }
+
+    private DiffPersistentIntArray(int[] elementData, int size)
+    {
+        this.elementData = elementData;
+        this.size = size;
+    }
+
+    public int get(int index)
+    {
+        Preconditions.checkElementIndex(index, size);
+        reroot();
+        return elementData[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public PersistentIntArray set(int index, int value)
+    {
+        Preconditions.checkElementIndex(index, size);
+        reroot();
+        return handOver(size, index, value);
+    }
+
+    /**
+     * Hands the direct array over to a new version of the given size.  The elements past the size of this version are
+     * zeroed, as a shorter version may have handed over an array still holding values set before it was shrunk.  Each
+     * element zeroed is another version in the chain, whose diff puts the value back, so the versions which set them
+     * still read them.  This version becomes a diff against the first, which doesn't change anything.
+     */
+    public PersistentIntArray resize(int newSize)
+    {
+        reroot();
+        if (elementData.length < newSize)
+        {
+            int[] newElementData = new int[newSize];
+            System.arraycopy(elementData, 0, newElementData, 0, elementData.length);
+            elementData = newElementData;
+        }
+        DiffPersistentIntArray result = handOver(newSize, 0, elementData[0]);
+        for (int i = size; i < newSize; i++)
+        {
+            if (result.elementData[i] != 0)
+            {
+                result = result.handOver(newSize, i, 0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hands the direct array, which this version must be holding, over to a new version of the given size with the
+     * element at the index set, and makes this version a diff against it.
+     */
+    private DiffPersistentIntArray handOver(int newSize, int index, int value)
+    {
+        DiffPersistentIntArray result = new DiffPersistentIntArray(elementData, newSize);
+        becomeDiff(result, index, elementData[index]);
+        result.elementData[index] = value;
+        return result;
+    }
+
+    private void becomeDiff(DiffPersistentIntArray base, int index, int value)
+    {
+        this.elementData = null;
+        this.base = base;
+        this.diffIndex = index;
+        this.diffValue = value;
+    }
+
+    /**
+     * Makes this version the one holding the direct array, by undoing the diffs between it and the current holder one
+     * at a time, starting from the holder's end, or by compacting the chain if it is long enough to be worth it.
+     */
+    private void reroot()
+    {
+        if (elementData != null)
+        {
+            return;
+        }
+        List<DiffPersistentIntArray> path = Lists.newArrayList();
+        for (DiffPersistentIntArray version = this; version.elementData == null; version = version.base)
+        {
+            path.add(version);
+        }
+        if (path.size() > Math.max(DiffPersistentArray.MIN_COMPACTION_CHAIN, size))
+        {
+            compact(path);
+            return;
+        }
+        for (int i = path.size() - 1; i >= 0; i--)
+        {
+            path.get(i).rerootFromBase();
+        }
+    }
+
+    /**
+     * Gives this version a direct array of its own, by copying the current holder's and applying the diffs on the path
+     * to it, starting from the holder's end.
+     */
+    private void compact(List<DiffPersistentIntArray> path)
+    {
+        int[] copy = path.get(path.size() - 1).base.elementData.clone();
+        for (int i = path.size() - 1; i >= 0; i--)
+        {
+            DiffPersistentIntArray diff = path.get(i);
+            copy[diff.diffIndex] = diff.diffValue;
+        }
+        elementData = copy;
+        base = null;
+    }
+
+    /**
+     * Takes the direct array over from the base of this version's diff, which must be holding it.
+     */
+    private void rerootFromBase()
+    {
+        DiffPersistentIntArray newIndirect = base;
+        assert newIndirect.elementData != null;
+
+        int[] newElementData = newIndirect.elementData;
+        int originalValue = newElementData[diffIndex];
+        newElementData[diffIndex] = diffValue;
+        elementData = newElementData;
+        base = null;
+        newIndirect.becomeDiff(this, diffIndex, originalValue);
+    }
+
+    @Override
+    public String toString()
+    {
+        reroot();
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < size; i++)
+        {
+            sb.append(i > 0 ? ", " : "").append(elementData[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
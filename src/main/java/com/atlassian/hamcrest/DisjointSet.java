@@ -1,14 +1,11 @@
 package com.atlassian.hamcrest;
 
-import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 
 import javax.annotation.Nullable;
-import java.util.Map;
-import java.util.IdentityHashMap;
 import java.util.Set;
 import java.util.Stack;
 
@@ -19,39 +16,24 @@ import java.util.Stack;
  * also support stack-like {@link #deunion} operations. This allows the data structure to be efficiently "rolled back" to any previous
  * state in time, which can be useful in backtracking algorithms.
  *
- * This implementation is backed by a {@link PersistentArray}. It includes both path compression and union-by-rank optimizations.
+ * This implementation is backed by a {@link PersistentIntArray}. It includes both path compression and union-by-rank optimizations.
  *
  * @param <E>
  */
 public class DisjointSet<E>
 {
 
-    private static class Node
-    {
-        final int parent;
-        final int rank;
-
-        private Node(int parent, int rank) {
-            this.parent = parent;
-            this.rank = rank;
-        }
-    }
+    private final IdentityIndexMap<E> elementsToIndexes;
 
-    private final Map<E, Integer> elementsToIndexes = new IdentityHashMap<E, Integer>();
-    private PersistentArray<Node> backingArray;
-    private final Stack<PersistentArray<Node>> versions;
+    /**
+     * The parent and the rank of the element with index {@code i} are at {@code 2 * i} and {@code 2 * i + 1}.  The
+     * parent is kept as its distance from {@code i}, so the {@code 0}s a new or grown array starts out with make every
+     * element its own root, with a rank of {@code 0}.
+     */
+    private PersistentIntArray backingArray;
+    private final Stack<PersistentIntArray> versions;
     private static final int DEFAULT_SIZE = 32;
 
-    private enum NodeInitializer implements Function<Integer, Node>
-    {
-        INSTANCE;
-
-        public Node apply(Integer index)
-        {
-            return new Node(index, 0);
-        }
-    }
-
     /**
      * Creates a new {@code DisjointSet} with the default number of elements
      */
@@ -71,8 +53,9 @@ public class DisjointSet<E>
         {
             throw new IllegalArgumentException("Expected size must be > 0");
         }
-        backingArray = new DiffPersistentArray<Node>(expectedSize, NodeInitializer.INSTANCE);
-        versions = new Stack<PersistentArray<Node>>();
+        elementsToIndexes = new IdentityIndexMap<E>(expectedSize);
+        backingArray = new DiffPersistentIntArray(expectedSize * 2);
+        versions = new Stack<PersistentIntArray>();
     }
 
     /**
@@ -82,48 +65,39 @@ public class DisjointSet<E>
      */
     public void union(E e1, E e2)
     {
-        Integer i1 = findRoot(e1);
-        Integer i2 = findRoot(e2);
+        int i1 = findRoot(e1);
+        int i2 = findRoot(e2);
 
-        if (!i1.equals(i2))
+        if (i1 != i2)
         {
-            Node node1 = getNode(i1);
-            Node node2 = getNode(i2);
-            if (node1.rank < node2.rank)
+            int rank1 = getRank(i1);
+            int rank2 = getRank(i2);
+            if (rank1 < rank2)
                 setParent(i1, i2);
-            else if (node1.rank > node2.rank)
+            else if (rank1 > rank2)
                 setParent(i2, i1);
             else {
                 setParent(i2, i1);
-                bumpRank(i1);
+                backingArray = backingArray.set(i1 * 2 + 1, rank1 + 1);
             }
         }
     }
 
-    private void setParent(Integer child, Integer parent) {
+    private void setParent(int child, int parent) {
         versions.push(backingArray);
 
-        resizeIfNecessary(child);
-        Node node = backingArray.get(child);
-        Node newNode = new Node(parent, node.rank);
-        backingArray = backingArray.set(child, newNode);
-    }
-
-    private void bumpRank(Integer index) {
-        resizeIfNecessary(index);
-        Node node = backingArray.get(index);
-        Node newNode = new Node(node.parent, node.rank + 1);
-        backingArray = backingArray.set(index, newNode);
+        resizeIfNecessary(Math.max(child, parent));
+        backingArray = backingArray.set(child * 2, parent - child);
     }
 
-    private void resizeIfNecessary(Integer index) {
-        if (backingArray.size() <= index)
+    private void resizeIfNecessary(int index) {
+        if (backingArray.size() <= index * 2)
         {
-            backingArray = backingArray.resize(newSize(index), NodeInitializer.INSTANCE);
+            backingArray = backingArray.resize(newSize(index * 2));
         }
     }
 
-    private int newSize(Integer i1) {
+    private int newSize(int i1) {
         int newSize = backingArray.size();
         do {
             newSize = newSize * 2;
@@ -167,54 +141,51 @@ public class DisjointSet<E>
      */
     public boolean equivalent(E e1, E e2)
     {
-        Integer root1 = findRoot(e1);
-        Integer root2 = findRoot(e2);
-
-        return root1.equals(root2);
+        return findRoot(e1) == findRoot(e2);
     }
 
-    private Integer findRoot(E elt)
+    private int findRoot(E elt)
     {
-        Integer index = elementsToIndexes.get(elt);
-        if (index == null)
-        {
-            index = elementsToIndexes.size();
-            elementsToIndexes.put(elt, index);
-        }
-        return findRoot(index);
+        return findRoot(elementsToIndexes.indexOf(elt));
     }
 
-    private Integer findRoot(Integer index) {
-        Integer parent = getNode(index).parent;
-        if (parent.equals(index))
-            return index;
-        else
+    private int findRoot(int index) {
+        int root = index;
+        int parent = getParent(root);
+        while (parent != root)
         {
-            Integer root = findRoot(parent);
-            compressPath(index, root);
-            return root;
+            root = parent;
+            parent = getParent(root);
         }
+        // point everything on the path straight at the root, without recursing, so long paths can't overflow the stack
+        int current = index;
+        while (current != root)
+        {
+            int next = getParent(current);
+            if (next != root)
+                backingArray = backingArray.set(current * 2, root - current);
+            current = next;
+        }
+        return root;
     }
 
-    private Node getNode(Integer index) {
-        Node node;
-        if (index >= backingArray.size())
-            node = new Node(index, 0);
-        else
-            node = backingArray.get(index);
-        return node;
+    private int getParent(int index) {
+        if (index * 2 >= backingArray.size())
+            return index;
+        return index + backingArray.get(index * 2);
     }
 
-    private void compressPath(Integer index, Integer root) {
-        Node newNode = new Node(root, backingArray.get(index).rank);
-        backingArray = backingArray.set(index, newNode);
+    private int getRank(int index) {
+        if (index * 2 >= backingArray.size())
+            return 0;
+        return backingArray.get(index * 2 + 1);
     }
 
     @Override
     public String toString() {
         Multimap<Integer, E> partition = HashMultimap.create();
 
-        for (E element : elementsToIndexes.keySet()) {
+        for (E element : elementsToIndexes.elements()) {
             partition.put(findRoot(element), element);
         }
 
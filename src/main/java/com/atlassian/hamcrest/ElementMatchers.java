@@ -0,0 +1,64 @@
+package com.atlassian.hamcrest;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.hamcrest.Matcher;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The {@code Matcher}s for the elements of an expected list, array or set, by position.  Each {@code Matcher} is
+ * created the first time it's needed and kept in an array slot for the element's position, so getting it again is
+ * an array read.  Equal elements at different positions get their own {@code Matcher}s.
+ *
+ * <p>Threads racing to create the {@code Matcher} for a position create equivalent ones, so it doesn't matter which
+ * one ends up in the slot.
+ */
+final class ElementMatchers extends AbstractList<Matcher<?>> implements RandomAccess
+{
+    private final List<?> expected;
+    private final Matcher<?>[] matchers;
+    private final MatcherFactory matcherFactory;
+
+    /**
+     * @param expected the expected elements, in the order their positions should have
+     * @param matcherFactory creates the {@code Matcher}s for the elements
+     */
+    ElementMatchers(Iterable<?> expected, MatcherFactory matcherFactory)
+    {
+        this.expected = expected instanceof List<?> && expected instanceof RandomAccess
+            ? (List<?>) expected
+            : Lists.newArrayList(expected);
+        this.matchers = new Matcher<?>[this.expected.size()];
+        this.matcherFactory = matcherFactory;
+    }
+
+    /**
+     * Returns the expected element at the position.
+     */
+    Object expected(int index)
+    {
+        return expected.get(index);
+    }
+
+    @Override
+    public Matcher<?> get(int index)
+    {
+        Matcher<?> matcher = matchers[index];
+        if (matcher == null)
+        {
+            matcher = matcherFactory.newEqualMatcher(
+                expected.get(index), matcherFactory, MatchContext.CURRENT_EQUIVALENCES);
+            matchers[index] = matcher;
+        }
+        return matcher;
+    }
+
+    @Override
+    public int size()
+    {
+        return matchers.length;
+    }
+}
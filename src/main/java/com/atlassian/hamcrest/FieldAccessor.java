@@ -0,0 +1,80 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads the value of one field from objects of the class declaring it.  Accessors are created once per field, by
+ * {@link FieldAccessors#forField(Field)}, and shared through the {@link ClassMatchPlan} of the class.
+ */
+abstract class FieldAccessor
+{
+    /**
+     * The type of a field, as far as reading it is concerned.
+     */
+    enum Kind
+    {
+        REFERENCE, BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE;
+
+        static Kind of(Class<?> type)
+        {
+            if (!type.isPrimitive())
+                return REFERENCE;
+            else if (boolean.class.equals(type))
+                return BOOLEAN;
+            else if (byte.class.equals(type))
+                return BYTE;
+            else if (short.class.equals(type))
+                return SHORT;
+            else if (char.class.equals(type))
+                return CHAR;
+            else if (int.class.equals(type))
+                return INT;
+            else if (long.class.equals(type))
+                return LONG;
+            else if (float.class.equals(type))
+                return FLOAT;
+            else if (double.class.equals(type))
+                return DOUBLE;
+            else
+                throw new InternalError("Umm... did you add a new primitive type to Java or something?");
+        }
+    }
+
+    private final Field field;
+    private final Kind kind;
+
+    FieldAccessor(Field field)
+    {
+        this.field = field;
+        this.kind = Kind.of(field.getType());
+    }
+
+    Field field()
+    {
+        return field;
+    }
+
+    Kind kind()
+    {
+        return kind;
+    }
+
+    /**
+     * Returns the value of the field in {@code target}, boxing it if the field is of a primitive type.
+     *
+     * @param target object to read the field of
+     * @return the value of the field
+     */
+    abstract Object get(Object target);
+
+    /**
+     * Compares the values of a primitive field in two objects without boxing them.  Values are equal when their
+     * wrappers would be {@code equals}, so {@code NaN}s are equal to each other and {@code 0.0} is not equal to
+     * {@code -0.0}.  Must not be called for fields of kind {@link Kind#REFERENCE}.
+     *
+     * @param expected object holding the expected value
+     * @param actual object holding the actual value
+     * @return {@code true} if the field has the same value in both objects
+     */
+    abstract boolean primitiveEquals(Object expected, Object actual);
+}
@@ -0,0 +1,24 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Field;
+
+/**
+ * Chooses the {@link FieldAccessor} backend.  This is the baseline version, which always uses reflection.  The jar is
+ * a multi-release jar, and on Java 9 and later this class is replaced by one which uses {@code VarHandle}s when the JVM
+ * has hidden classes.
+ */
+final class FieldAccessors
+{
+    private FieldAccessors() {}
+
+    /**
+     * Creates the accessor for a field.  The field must already have been made accessible.
+     *
+     * @param field field to read
+     * @return {@code FieldAccessor} for the field
+     */
+    static FieldAccessor forField(Field field)
+    {
+        return new ReflectiveFieldAccessor(field);
+    }
+}
@@ -0,0 +1,122 @@
+package com.atlassian.hamcrest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gives each element an {@code int} index, in the order the elements are first seen, with elements told apart by
+ * identity.  It takes the place of an {@code IdentityHashMap<E, Integer>} for the disjoint sets, without boxing an
+ * {@code Integer} for each lookup or allocating an entry for each element.  The elements are kept in an open addressing
+ * table, with their indexes at the same slots of a parallel {@code int} array, and the table is never more than half
+ * full.
+ *
+ * @param <E> type of the elements
+ */
+final class IdentityIndexMap<E>
+{
+    private Object[] elements;
+    private int[] indexes;
+    private int size;
+
+    /**
+     * The index of {@code null}, which can't go in the table as it marks the empty slots, or {@code -1} if it hasn't
+     * been seen.
+     */
+    private int nullIndex = -1;
+
+    /**
+     * @param expectedSize the number of elements there is room for before the table has to grow
+     */
+    IdentityIndexMap(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) * 2;
+        elements = new Object[capacity];
+        indexes = new int[capacity];
+    }
+
+    /**
+     * Returns the index of the element, giving it the next index if it hasn't been seen before.
+     */
+    int indexOf(E element)
+    {
+        if (element == null)
+        {
+            if (nullIndex < 0)
+            {
+                nullIndex = size++;
+            }
+            return nullIndex;
+        }
+        int slot = slotOf(element, elements);
+        if (elements[slot] != null)
+        {
+            return indexes[slot];
+        }
+        int index = size++;
+        elements[slot] = element;
+        indexes[slot] = index;
+        if (size * 2 > elements.length)
+        {
+            grow();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of elements which have an index.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the elements, each at its index.
+     */
+    @SuppressWarnings("unchecked") //only elements of type E are ever stored
+    List<E> elements()
+    {
+        Object[] byIndex = new Object[size];
+        for (int i = 0; i < elements.length; i++)
+        {
+            if (elements[i] != null)
+            {
+                byIndex[indexes[i]] = elements[i];
+            }
+        }
+        // null's index, if it has one, is already left holding null
+        return (List<E>) Arrays.asList(byIndex);
+    }
+
+    private void grow()
+    {
+        Object[] oldElements = elements;
+        int[] oldIndexes = indexes;
+        elements = new Object[oldElements.length * 2];
+        indexes = new int[oldElements.length * 2];
+        for (int i = 0; i < oldElements.length; i++)
+        {
+            if (oldElements[i] != null)
+            {
+                int slot = slotOf(oldElements[i], elements);
+                elements[slot] = oldElements[i];
+                indexes[slot] = oldIndexes[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the slot holding the element, or the empty slot where it would go, probing linearly from the slot picked
+     * by the top bits of its scrambled identity hash code.
+     */
+    private static int slotOf(Object element, Object[] elements)
+    {
+        int mask = elements.length - 1;
+        int slot = (System.identityHashCode(element) * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask);
+        while (elements[slot] != null && elements[slot] != element)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
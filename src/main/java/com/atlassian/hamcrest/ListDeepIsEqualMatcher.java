@@ -1,102 +1,76 @@
 package com.atlassian.hamcrest;
 
-import com.google.common.base.Function;
 import org.hamcrest.Description;
-import org.hamcrest.DiagnosingMatcher;
 import org.hamcrest.Matcher;
 
 import java.util.List;
 
-import static com.atlassian.hamcrest.Functions.cache;
-import static com.google.common.collect.Iterables.size;
-import static com.google.common.collect.Iterables.transform;
 
 /**
  * {@link org.hamcrest.Matcher} for lists.  It is composed of {@code Matcher}s for each element in the array  The element
  * matchers are created from the {@code MatcherFactory} provided when the ListDeepIsEqualMatcher is created.
- * The element matchers are also lazily created and cached for future use.
+ * The element matchers are created lazily, and kept by position in an {@link ElementMatchers}.
  *
  * @param <T> type of the elements in the array
  */
-class ListDeepIsEqualMatcher<T> extends DiagnosingMatcher<T>
+class ListDeepIsEqualMatcher<T> extends DeepMatcher<T>
 {
     private final int expectedSize;
-    private final Iterable<Matcher<?>> matchers;
+    private final ElementMatchers matchers;
 
-    public ListDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+    public ListDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory)
     {
-        this.expectedSize = size(expected);
-        this.matchers = transform(expected, cache(toMatchers(baseMatcherFactory, equiv)));
-    }
-
-    private Function<Object, Matcher<?>> toMatchers(final MatcherFactory matcherFactory, final DisjointSet<Object> equiv)
-    {
-        return new Function<Object, Matcher<?>>()
-        {
-            public Matcher<?> apply(Object element)
-            {
-                return matcherFactory.newEqualMatcher(element, matcherFactory, equiv);
-            }
-        };
+        this.matchers = new ElementMatchers(expected, baseMatcherFactory);
+        this.expectedSize = matchers.size();
     }
 
     @Override
-    protected boolean matches(Object actual, Description mismatchDescription)
+    Match startMatch(final Object actual)
     {
-        if (actual == null)
+        return new ElementsMatch(matchers)
         {
-            mismatchDescription.appendText("is null");
-            return false;
-        }
+            @Override
+            boolean canCompareElements(MatchContext context)
+            {
+                if (actual == null)
+                {
+                    context.appendText("is null");
+                    return false;
+                }
 
 
-        if (! (actual instanceof List<?>))
-        {
-            mismatchDescription.appendText("not a List, but a ")
-                    .appendText(actual.getClass().getName());
-            return false;
-        }
+                if (! (actual instanceof List<?>))
+                {
+                    context.appendText("not a List, but a ")
+                            .appendText(actual.getClass().getName());
+                    return false;
+                }
 
-        @SuppressWarnings("unchecked") //just checked this above
-                List<T> actualAsList = (List<T>) actual;
-        if (expectedSize != actualAsList.size())
-        {
-            // TODO can we do something better? try and figure out missing elements and their position maybe?
-            mismatchDescription.appendText("size should be ")
-                    .appendText(String.valueOf(expectedSize))
-                    .appendText(", but is ")
-                    .appendValue(actualAsList.size());
-            return false;
-        }
-        boolean mismatchFound = false;
-        int index = 0;
-        for (Matcher<?> matcher : matchers)
-        {
-            Object element = actualAsList.get(index);
-            if (matcher.matches(element))
-            {
-                index++;
-                continue;
+                List<?> actualAsList = (List<?>) actual;
+                if (expectedSize != actualAsList.size())
+                {
+                    // TODO can we do something better? try and figure out missing elements and their position maybe?
+                    context.appendText("size should be ")
+                            .appendText(String.valueOf(expectedSize))
+                            .appendText(", but is ")
+                            .appendValue(actualAsList.size());
+                    return false;
+                }
+                return true;
             }
-            if (!mismatchFound)
-            {
-                mismatchDescription.appendText("[");
-                mismatchFound = true;
-            }
-            else
+
+            @Override
+            Object actualElement(int index)
             {
-                mismatchDescription.appendText(", ");
+                return ((List<?>) actual).get(index);
             }
-            mismatchDescription.appendText("[").appendValue(index).appendText("] => ");
-            matcher.describeMismatch(element, mismatchDescription);
-            index++;
-        }
-        if (mismatchFound)
-        {
-            mismatchDescription.appendText("]");
-        }
+        };
+    }
 
-        return !mismatchFound;
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        return matchers;
     }
 
     public void describeTo(Description desc)
@@ -1,135 +1,372 @@
 package com.atlassian.hamcrest;
 
-import static com.atlassian.hamcrest.Functions.cache;
-
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.hamcrest.Description;
-import org.hamcrest.DiagnosingMatcher;
 import org.hamcrest.Matcher;
-import org.hamcrest.TypeSafeDiagnosingMatcher;
 
-import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
  * {@link org.hamcrest.Matcher} for {@code Map}s.  It is composed of {@code Matcher}s for each key and each value in the expected map.
  * The key/value matchers are created from the {@code MatcherFactory} provided when the MapDeepIsEqualMatcher is created.
- * The matchers are also cached for future use.
  *
  * This matcher operates on the expected map's entrySet in a fashion identical to how {@code com.atlassian.hamcrest.SetDeepIsEqualMatcher}
  * operates on generic sets.  For a given map entry, the key and value must both match in order for the map entry to be considered to match.
  *
+ * When the {@code MatcherFactory} can compute {@link StructuralKeys}, entries whose map key is a {@code String}, a
+ * primitive wrapper or an enum compared with {@link MatcherFactories#isEqual()} are only tried against the actual
+ * entries whose map key has the same {@code hashCode}, or is of some other type.  Those JDK types are known to have
+ * consistent {@code equals} and {@code hashCode} methods, so this is always done.
+ *
+ * When created in bucketed mode, and the {@code MatcherFactory} can compute {@link StructuralKeys}, the actual entries
+ * are grouped by the key of their map key, and each entry matcher is only tried against the entries whose map key
+ * could match.  For maps keyed by {@code String}s, {@code Long}s and the like, that means each entry is compared against
+ * just one actual entry.  Entries whose map key has no structural key are still compared against everything.  As with
+ * sets, the result is only the same as comparing every entry against every other one if the {@code equals} and
+ * {@code hashCode} of map key types compared with {@link MatcherFactories#isEqual()} are consistent, so it is opt-in.
+ *
+ * Like {@code SetDeepIsEqualMatcher}, it can also be created in perfect matching mode, where each entry matcher has to
+ * match a different actual entry, using the same buckets.
+ *
+ * Outside of perfect matching mode, entries are tried one at a time as resumable {@link DeepMatcher.Match}es, and the
+ * key and value matchers of an entry are only created when the entry is first tried, so maps nested in maps are
+ * matched without recursing on the Java stack, however deeply they nest.
+ *
  * @param <M> represents the type of things this matcher matches (ie, Maps).  Used only to make the compiler happy
  *           with {@code com.atlassian.hamcrest.MatcherFactories.MapDeepIsMatcherFactory}.
  * @param <K> represents the type of keys in the maps this matches (not strictly needed, but helps make this file's code nicer)
  * @param <V> represents the type of values in the maps this matches (not strictly needed, but helps make this file's code nicer)
  */
 //TODO: there is probably too much copy/paste between this and ListDeepIsEqualMatcher and ArrayDeepIsEqualMatcher
-class MapDeepIsEqualMatcher<M, K, V> extends DiagnosingMatcher<M>
+class MapDeepIsEqualMatcher<M, K, V> extends DeepMatcher<M>
 {
     private final int expectedSize;
-    private final Iterable<Matcher<Map.Entry<K, V>>> matchers;
+    private final List<K> expectedKeys;
+    private final List<Matcher<Map.Entry<K, V>>> matchers;
+    private final StructuralKeys keys;
+    private final boolean bucketed;
+    private final boolean perfect;
+
+    public MapDeepIsEqualMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory)
+    {
+        this(expected, baseMatcherFactory, SetDeepIsEqualMatcher.Matching.COVERING);
+    }
 
-    public MapDeepIsEqualMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+    /**
+     * @param matching how entry matchers and actual entries have to be paired up, as for sets.  Structural keys are
+     *     only used if the {@code baseMatcherFactory} can compute them.
+     */
+    public MapDeepIsEqualMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory,
+        SetDeepIsEqualMatcher.Matching matching)
     {
+        this.perfect = matching == SetDeepIsEqualMatcher.Matching.PERFECT;
+        this.bucketed = matching != SetDeepIsEqualMatcher.Matching.COVERING;
         this.expectedSize = expected.size();
         Set<Map.Entry<K, V>> entrySet = expected.entrySet();
-        this.matchers = createEntryMatchers(entrySet, cache(toMatchers(baseMatcherFactory, equiv)));
+        this.expectedKeys = Lists.newArrayListWithCapacity(expectedSize);
+        this.matchers = createEntryMatchers(entrySet, baseMatcherFactory);
+        this.keys = baseMatcherFactory instanceof ResolvingMatcherFactory
+            ? ((ResolvingMatcherFactory) baseMatcherFactory).structuralKeys()
+            : null;
     }
 
-    private Iterable<Matcher<Map.Entry<K, V>>> createEntryMatchers(Set<Map.Entry<K, V>> entries, Function<Object,Matcher<?>> cache) {
-        Set<Matcher<Map.Entry<K, V>>> entryMatchers = Sets.newHashSet();
+    private List<Matcher<Map.Entry<K, V>>> createEntryMatchers(Set<Map.Entry<K, V>> entries, MatcherFactory matcherFactory) {
+        List<Matcher<Map.Entry<K, V>>> entryMatchers = Lists.newArrayListWithCapacity(entries.size());
         for (Map.Entry<K, V> entry : entries)
         {
-            Matcher<K> keyMatcher = (Matcher<K>) cache.apply(entry.getKey());
-            Matcher<V> valueMatcher = (Matcher<V>) cache.apply(entry.getValue());
-            entryMatchers.add(new EntryDiagnosingMatcher<K, V>(keyMatcher, valueMatcher));
+            expectedKeys.add(entry.getKey());
+            entryMatchers.add(new EntryDiagnosingMatcher<K, V>(entry.getKey(), entry.getValue(), matcherFactory));
         }
         return entryMatchers;
     }
 
-    private Function<Object, Matcher<?>> toMatchers(final MatcherFactory matcherFactory, final DisjointSet<Object> equiv)
+    @Override
+    Match startMatch(final Object actual)
     {
-        return new Function<Object, Matcher<?>>()
+        if (perfect)
         {
-            public Matcher<?> apply(Object element)
+            return new MatchInOneGo()
             {
-                return matcherFactory.newEqualMatcher(element, matcherFactory, equiv);
-            }
-        };
+                @Override
+                @SuppressWarnings("unchecked") //checked by isMap
+                boolean matches(MatchContext context)
+                {
+                    return isMap(actual, context) && matchPerfectly((Map<K, V>) actual, context);
+                }
+            };
+        }
+        return new EntriesMatch(actual);
     }
 
-    @Override
-    protected boolean matches(Object actual, Description mismatchDescription)
+    /**
+     * Checks that the actual value is a map of the expected size, recording the mismatch if it isn't.
+     */
+    private boolean isMap(Object actual, MatchContext context)
     {
         if (actual == null)
         {
-            mismatchDescription.appendText("is null");
+            context.appendText("is null");
             return false;
         }
 
 
         if (! (actual instanceof Map<?, ?>))
         {
-            mismatchDescription.appendText("not a Map, but a ")
+            context.appendText("not a Map, but a ")
                     .appendText(actual.getClass().getName());
             return false;
         }
 
-        @SuppressWarnings("unchecked") //just checked this above
-                Map<K, V> actualAsMap = (Map<K, V>) actual;
-        if (expectedSize != actualAsMap.size())
+        int actualSize = ((Map<?, ?>) actual).size();
+        if (expectedSize != actualSize)
         {
-            mismatchDescription.appendText("size should be ")
+            context.appendText("size should be ")
                     .appendText(String.valueOf(expectedSize))
                     .appendText(", but is ")
-                    .appendValue(actualAsMap.size());
+                    .appendValue(actualSize);
             return false;
         }
+        return true;
+    }
 
-        Set<Matcher<Map.Entry<K, V>>> unsatisfiedMatchers = Sets.newHashSet();
-        Set<Map.Entry<K, V>> unmatchingElements = Sets.newHashSet(actualAsMap.entrySet());
+    private boolean matchPerfectly(Map<K, V> actualAsMap, MatchContext context)
+    {
+        if (!context.isRecording())
+        {
+            return hasPerfectMatching(actualAsMap, context);
+        }
 
-        lookForMatches(actualAsMap, unsatisfiedMatchers, unmatchingElements);
+        Set<Matcher<Map.Entry<K, V>>> unsatisfiedMatchers = Sets.newHashSet();
+        Collection<Map.Entry<K, V>> unmatchingElements =
+            lookForPerfectMatching(actualAsMap, unsatisfiedMatchers, context.quietly());
+        return describeMismatches(context, unsatisfiedMatchers, unmatchingElements);
+    }
 
+    /**
+     * Records the entry matchers which didn't match anything and the actual entries nothing matched.
+     *
+     * @return {@code true} if there are neither
+     */
+    private boolean describeMismatches(MatchContext context, Collection<Matcher<Map.Entry<K, V>>> unsatisfiedMatchers,
+        Collection<Map.Entry<K, V>> unmatchingElements)
+    {
         if (!unsatisfiedMatchers.isEmpty())
         {
-            describeUnsatisfiedMatchers(mismatchDescription, unsatisfiedMatchers);
+            describeUnsatisfiedMatchers(context, unsatisfiedMatchers);
             if (!unmatchingElements.isEmpty())
             {
-                mismatchDescription.appendText(", and it ");
+                context.appendText(", and it ");
             }
 
         }
         if (!unmatchingElements.isEmpty())
         {
-            describeUnmatchedElements(mismatchDescription, unmatchingElements);
+            describeUnmatchedElements(context, unmatchingElements);
         }
         return unsatisfiedMatchers.isEmpty() && unmatchingElements.isEmpty();
     }
 
-    private void lookForMatches(Map<K, V> actualMap, Set<Matcher<Map.Entry<K,V>>> unsatisfiedMatchers, Set<Map.Entry<K,V>> unmatchingElements) {
-        for (Matcher<Map.Entry<K, V>> matcher : matchers)
+    /**
+     * Checks that every entry matcher matches some actual entry and every actual entry is matched by some entry matcher.
+     * Once an entry matcher has matched an entry, it is only tried against the entries no entry matcher has matched
+     * yet.  When not recording, it stops at the first entry matcher that doesn't match anything.  When recording, the
+     * entries are tried quietly, and the entry matchers and actual entries left over are recorded at the end.
+     */
+    private final class EntriesMatch extends Match
+    {
+        private final Object actual;
+        private Map.Entry<K, V>[] entries;
+        private boolean[] matched;
+        private int[][] candidates;
+        private MatchContext tries;
+        private List<Matcher<Map.Entry<K, V>>> unsatisfiedMatchers;
+        private int matcher;
+        private int candidate;
+        private boolean found;
+
+        EntriesMatch(Object actual)
+        {
+            this.actual = actual;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked") //checked by isMap
+        boolean next(boolean childMatched, MatchContext context)
+        {
+            if (entries == null)
+            {
+                if (!isMap(actual, context))
+                {
+                    return finish(false);
+                }
+                entries = entriesOf((Map<K, V>) actual);
+                matched = new boolean[entries.length];
+                candidates = candidatesOf(entries);
+                tries = context.isRecording() ? context.quietly() : context;
+                unsatisfiedMatchers = Lists.newArrayList();
+            }
+            else
+            {
+                if (childMatched)
+                {
+                    found = true;
+                    matched[candidates[matcher][candidate]] = true;
+                }
+                candidate++;
+            }
+
+            for (; matcher < matchers.size(); matcher++, candidate = 0, found = false)
+            {
+                int[] mine = candidates[matcher];
+                for (; candidate < mine.length; candidate++)
+                {
+                    // once the entry matcher has a match, only actual entries nobody matched yet are worth trying
+                    if (!found || !matched[mine[candidate]])
+                    {
+                        return matchNext(matchers.get(matcher), entries[mine[candidate]], tries);
+                    }
+                }
+                if (!found)
+                {
+                    if (!context.isRecording())
+                    {
+                        return finish(false);
+                    }
+                    unsatisfiedMatchers.add(matchers.get(matcher));
+                }
+            }
+
+            List<Map.Entry<K, V>> unmatchingElements = Lists.newArrayList();
+            for (int i = 0; i < entries.length; i++)
+            {
+                if (!matched[i])
+                {
+                    unmatchingElements.add(entries[i]);
+                }
+            }
+            if (!context.isRecording())
+            {
+                return finish(unmatchingElements.isEmpty());
+            }
+            return finish(describeMismatches(context, unsatisfiedMatchers, unmatchingElements));
+        }
+    }
+
+    /**
+     * Checks that each entry matcher matches a different actual entry, without working out which ones don't.
+     */
+    private boolean hasPerfectMatching(Map<K, V> actualMap, final MatchContext context)
+    {
+        final Map.Entry<K, V>[] entries = entriesOf(actualMap);
+        return BipartiteMatching.perfect(candidatesOf(entries), entries.length, new BipartiteMatching.Edges()
+        {
+            public boolean connected(int matcher, int entry)
+            {
+                return matchChild(matchers.get(matcher), entries[entry], context);
+            }
+        });
+    }
+
+    /**
+     * Works out which actual entries each entry matcher could match.
+     */
+    private int[][] candidatesOf(Map.Entry<K, V>[] entries)
+    {
+        StructuralKeys.Buckets buckets = bucketsOf(entries);
+        int[][] candidates = new int[matchers.size()][];
+        for (int m = 0; m < matchers.size(); m++)
+        {
+            candidates[m] = buckets.candidates(expectedKeyOf(m));
+        }
+        return candidates;
+    }
+
+    /**
+     * Groups the actual entries by the structural keys of their map keys in bucketed mode, and by their value keys
+     * otherwise.
+     */
+    private StructuralKeys.Buckets bucketsOf(Map.Entry<K, V>[] entries)
+    {
+        if (keys == null)
+        {
+            return StructuralKeys.Buckets.unkeyed(entries.length);
+        }
+        return bucketed ? keys.bucket(keysOf(entries)) : keys.bucketValues(keysOf(entries));
+    }
+
+    /**
+     * Returns the key of the expected map key of an entry matcher, the same way {@link #bucketsOf(Map.Entry[])} keys
+     * the actual entries, or {@code null} if it could match an entry with any key.
+     */
+    private Integer expectedKeyOf(int matcher)
+    {
+        if (keys == null)
         {
-            boolean mismatchFound = true;
-            for (Map.Entry<?, ?> element : actualMap.entrySet())
+            return null;
+        }
+        Object expectedKey = expectedKeys.get(matcher);
+        return bucketed ? keys.keyOf(expectedKey) : keys.valueKeyOf(expectedKey);
+    }
+
+    /**
+     * Finds a maximum matching between the entry matchers and the actual entries.
+     *
+     * @return the actual entries which aren't matched in the maximum matching
+     */
+    private List<Map.Entry<K, V>> lookForPerfectMatching(Map<K, V> actualMap, Set<Matcher<Map.Entry<K,V>>> unsatisfiedMatchers,
+        final MatchContext context) {
+        final Map.Entry<K, V>[] entries = entriesOf(actualMap);
+        BipartiteMatching perfectMatching = BipartiteMatching.maximum(candidatesOf(entries), entries.length,
+            new BipartiteMatching.Edges()
             {
-                if (matcher.matches(element))
+                public boolean connected(int matcher, int entry)
                 {
-                    mismatchFound = false;
-                    unmatchingElements.remove(element);
+                    return matchChild(matchers.get(matcher), entries[entry], context);
                 }
+            });
+
+        for (int m = 0; m < matchers.size(); m++)
+        {
+            if (!perfectMatching.isLeftMatched(m))
+            {
+                unsatisfiedMatchers.add(matchers.get(m));
             }
-            if (mismatchFound)
+        }
+        List<Map.Entry<K, V>> unmatchingElements = Lists.newArrayList();
+        for (int i = 0; i < entries.length; i++)
+        {
+            if (!perfectMatching.isRightMatched(i))
             {
-                unsatisfiedMatchers.add(matcher);
+                unmatchingElements.add(entries[i]);
             }
         }
+        return unmatchingElements;
+    }
+
+    @SuppressWarnings("unchecked") //entries of a Map<K, V>
+    private Map.Entry<K, V>[] entriesOf(Map<K, V> map)
+    {
+        Map.Entry<K, V>[] entries = (Map.Entry<K, V>[]) new Map.Entry<?, ?>[map.size()];
+        return map.entrySet().toArray(entries);
+    }
+
+    private Object[] keysOf(Map.Entry<K, V>[] entries)
+    {
+        Object[] entryKeys = new Object[entries.length];
+        for (int i = 0; i < entries.length; i++)
+        {
+            entryKeys[i] = entries[i].getKey();
+        }
+        return entryKeys;
     }
 
-    private void describeUnmatchedElements(Description mismatchDescription, Set<Map.Entry<K,V>> unmatchingElements) {
+    private void describeUnmatchedElements(Description mismatchDescription, Collection<Map.Entry<K,V>> unmatchingElements) {
         mismatchDescription.appendText("contains these unmatched elements: ");
         boolean first = true;
         for (Map.Entry<K,V> element : unmatchingElements)
@@ -146,7 +383,7 @@ class MapDeepIsEqualMatcher<M, K, V> extends DiagnosingMatcher<M>
         mismatchDescription.appendText("]");
     }
 
-    private void describeUnsatisfiedMatchers(Description mismatchDescription, Set<Matcher<Map.Entry<K,V>>> unsatisfiedMatchers) {
+    private void describeUnsatisfiedMatchers(Description mismatchDescription, Collection<Matcher<Map.Entry<K,V>>> unsatisfiedMatchers) {
         mismatchDescription.appendText("does not match these: ");
 
         boolean first = true;
@@ -164,6 +401,12 @@ class MapDeepIsEqualMatcher<M, K, V> extends DiagnosingMatcher<M>
         mismatchDescription.appendText("]");
     }
 
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        return matchers;
+    }
+
     public void describeTo(Description desc)
     {
         desc.appendText("[");
@@ -180,42 +423,103 @@ class MapDeepIsEqualMatcher<M, K, V> extends DiagnosingMatcher<M>
         desc.appendText("]");
     }
 
-    private static class EntryDiagnosingMatcher<K, V> extends TypeSafeDiagnosingMatcher<Map.Entry<K, V>> {
-        private Matcher<K> keyMatcher;
-        private Matcher<V> valueMatcher;
+    /**
+     * Matches a map entry.  Only ever given the entries of the actual map, so it doesn't check for other values.  The
+     * key and value matchers are created the first time they are needed.
+     */
+    private static class EntryDiagnosingMatcher<K, V> extends DeepMatcher<Map.Entry<K, V>> {
+        private final K expectedKey;
+        private final V expectedValue;
+        private final MatcherFactory matcherFactory;
+        private Matcher<?> keyMatcher;
+        private Matcher<?> valueMatcher;
 
-        public EntryDiagnosingMatcher(Matcher<K> keyMatcher, Matcher<V> valueMatcher) {
+        public EntryDiagnosingMatcher(K expectedKey, V expectedValue, MatcherFactory matcherFactory) {
 
-            this.keyMatcher = keyMatcher;
-            this.valueMatcher = valueMatcher;
+            this.expectedKey = expectedKey;
+            this.expectedValue = expectedValue;
+            this.matcherFactory = matcherFactory;
         }
 
-        @Override
-        protected boolean matchesSafely(Map.Entry<K, V> entry, Description description) {
-            boolean matches = true;
-            if (!keyMatcher.matches(entry.getKey()))
+        private Matcher<?> keyMatcher()
+        {
+            if (keyMatcher == null)
             {
-                matches = false;
-                description.appendText("key mismatch:");
-                keyMatcher.describeMismatch(entry.getKey(), description);
+                keyMatcher = matcherFactory.newEqualMatcher(
+                    expectedKey, matcherFactory, MatchContext.CURRENT_EQUIVALENCES);
             }
-            if (!valueMatcher.matches(entry.getValue()))
+            return keyMatcher;
+        }
+
+        private Matcher<?> valueMatcher()
+        {
+            if (valueMatcher == null)
             {
-                matches = false;
-                description.appendText("value mismatch:");
-                valueMatcher.describeMismatch(entry.getValue(), description);
+                valueMatcher = matcherFactory.newEqualMatcher(
+                    expectedValue, matcherFactory, MatchContext.CURRENT_EQUIVALENCES);
             }
-            return matches;
+            return valueMatcher;
+        }
+
+        @Override
+        Match startMatch(final Object actual)
+        {
+            return new Match()
+            {
+                private boolean keyTried;
+                private boolean valueTried;
+                private boolean keyMatches;
+                private int mark;
+
+                @Override
+                boolean next(boolean childMatched, MatchContext context)
+                {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) actual;
+                    if (!keyTried)
+                    {
+                        keyTried = true;
+                        return matchPart("key mismatch:", keyMatcher(), entry.getKey(), context);
+                    }
+                    if (childMatched)
+                    {
+                        context.rollback(mark);
+                    }
+                    if (!valueTried)
+                    {
+                        keyMatches = childMatched;
+                        if (!keyMatches && !context.isRecording())
+                        {
+                            return finish(false);
+                        }
+                        valueTried = true;
+                        return matchPart("value mismatch:", valueMatcher(), entry.getValue(), context);
+                    }
+                    return finish(childMatched && keyMatches);
+                }
+
+                private boolean matchPart(String label, Matcher<?> matcher, Object actualPart, MatchContext context)
+                {
+                    mark = context.mark();
+                    context.appendText(label);
+                    return matchNext(matcher, actualPart);
+                }
+            };
+        }
+
+        @Override
+        Iterable<? extends Matcher<?>> childMatchers()
+        {
+            return ImmutableList.of(keyMatcher(), valueMatcher());
         }
 
         public void describeTo(Description description) {
             description.appendText("key: ");
-            keyMatcher.describeTo(description);
+            keyMatcher().describeTo(description);
             description.appendText("; ");
             description.appendText("value: ");
-            valueMatcher.describeTo(description);
+            valueMatcher().describeTo(description);
         }
 
 
     }
-}
\ No newline at end of file
+}
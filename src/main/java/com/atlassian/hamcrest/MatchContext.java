@@ -0,0 +1,277 @@
+package com.atlassian.hamcrest;
+
+import org.hamcrest.BaseDescription;
+import org.hamcrest.Description;
+import org.hamcrest.SelfDescribing;
+
+/**
+ * {@code Description} that {@link DeepMatcher}s record mismatches into while they match, so describing a mismatch
+ * doesn't need another pass over the compared values.  A parent matcher appends what leads up to a child's mismatch
+ * before matching the child, and rolls it back with {@link #mark()} and {@link #rollback(int)} if the child matches.
+ *
+ * <p>A quiet context records nothing, for when only the result of the match is needed.
+ *
+ * <p>The context also holds the equivalences between expected and actual objects assumed so far in the match, which
+ * are how cycles are matched.  Keeping them here rather than in the matchers means a tree of matchers never changes
+ * once it has been built, so the same matcher can be used by several threads at once, each match with a context of
+ * its own.
+ *
+ * <p>A matcher which isn't a {@link DeepMatcher}, like one from a custom {@link MatcherFactory}, is asked to match with
+ * {@code matches(Object)}, which has no context to pass on.  While it is, its context is the thread's
+ * {@link #current()} one, and any {@code DeepMatcher} it matches with in turn carries on with its equivalences, so the
+ * cycles already entered are still known.
+ */
+final class MatchContext extends BaseDescription
+{
+    /**
+     * The equivalences handed to {@link MatcherFactory}s, which are those of the thread's current context.
+     */
+    static final DisjointSet<Object> CURRENT_EQUIVALENCES = new CurrentEquivalences();
+
+    private static final ThreadLocal<MatchContext> CURRENT = new ThreadLocal<MatchContext>();
+
+    private final boolean recording;
+    private final StringBuilder text;
+
+    /**
+     * The context whose equivalences this one uses, which is this context unless it was made by {@link #quietly()}.
+     */
+    private final MatchContext owner;
+    private RollbackDisjointSet<Object> equivalences;
+
+    private MatchContext(boolean recording, MatchContext owner, RollbackDisjointSet<Object> equivalences)
+    {
+        this.recording = recording;
+        this.text = recording ? new StringBuilder() : null;
+        this.owner = owner == null ? this : owner;
+        this.equivalences = equivalences;
+    }
+
+    /**
+     * Returns a new context which records mismatches.
+     */
+    static MatchContext recording()
+    {
+        return new MatchContext(true, null, null);
+    }
+
+    /**
+     * Returns a new context which doesn't record anything.
+     */
+    static MatchContext quiet()
+    {
+        return new MatchContext(false, null, null);
+    }
+
+    /**
+     * Returns a new context which doesn't record anything and starts out with the given equivalences, for carrying on
+     * a comparison with matchers.  With {@code null} it starts out without any, like {@link #quiet()}.
+     */
+    static MatchContext quiet(RollbackDisjointSet<Object> equivalences)
+    {
+        return new MatchContext(false, null, equivalences);
+    }
+
+    /**
+     * Returns a context which doesn't record anything but shares the equivalences of this one, for trying out children
+     * whose mismatches aren't wanted, like the candidates for a set element.
+     */
+    MatchContext quietly()
+    {
+        return recording ? new MatchContext(false, owner, null) : this;
+    }
+
+    /**
+     * Returns a context which records mismatches separately from this one but shares its equivalences, for a matcher
+     * which describes its mismatch into a description of its own.
+     */
+    MatchContext recordingSeparately()
+    {
+        return new MatchContext(true, owner, null);
+    }
+
+    /**
+     * Returns the context of the match which is asking a matcher that isn't a {@link DeepMatcher} to match on this
+     * thread, or {@code null} if there isn't one.
+     */
+    static MatchContext current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes the context the thread's current one, until {@link #leave} is called with what this returns.
+     */
+    static MatchContext enter(MatchContext context)
+    {
+        MatchContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    static void leave(MatchContext previous)
+    {
+        if (previous == null)
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Returns the equivalences between expected and actual objects assumed so far in this match.
+     */
+    RollbackDisjointSet<Object> equivalences()
+    {
+        if (owner != this)
+        {
+            return owner.equivalences();
+        }
+        if (equivalences == null)
+        {
+            equivalences = new RollbackDisjointSet<Object>();
+        }
+        return equivalences;
+    }
+
+    /**
+     * Returns whether anything appended to this context is kept.  Matchers can stop at the first mismatch they find
+     * if it isn't.
+     */
+    boolean isRecording()
+    {
+        return recording;
+    }
+
+    /**
+     * Returns a mark to {@link #rollback(int)} to.
+     */
+    int mark()
+    {
+        return recording ? text.length() : 0;
+    }
+
+    /**
+     * Removes everything appended since the mark was taken.
+     */
+    void rollback(int mark)
+    {
+        if (recording)
+        {
+            text.setLength(mark);
+        }
+    }
+
+    @Override
+    public Description appendValue(Object value)
+    {
+        return recording ? super.appendValue(value) : this;
+    }
+
+    @Override
+    public Description appendDescriptionOf(SelfDescribing value)
+    {
+        return recording ? super.appendDescriptionOf(value) : this;
+    }
+
+    @Override
+    public <T> Description appendValueList(String start, String separator, String end, T... values)
+    {
+        return recording ? super.appendValueList(start, separator, end, values) : this;
+    }
+
+    @Override
+    public <T> Description appendValueList(String start, String separator, String end, Iterable<T> values)
+    {
+        return recording ? super.appendValueList(start, separator, end, values) : this;
+    }
+
+    @Override
+    public Description appendList(String start, String separator, String end, Iterable<? extends SelfDescribing> values)
+    {
+        return recording ? super.appendList(start, separator, end, values) : this;
+    }
+
+    @Override
+    protected void append(String str)
+    {
+        if (recording)
+        {
+            text.append(str);
+        }
+    }
+
+    @Override
+    protected void append(char c)
+    {
+        if (recording)
+        {
+            text.append(c);
+        }
+    }
+
+    /**
+     * Returns the recorded mismatches.
+     */
+    @Override
+    public String toString()
+    {
+        return recording ? text.toString() : "";
+    }
+
+    /**
+     * The {@link DisjointSet} passed to {@link MatcherFactory}s, which works on the equivalences of the thread's
+     * current match, so matchers can be shared between matches and custom matchers still see the cycles entered so far.
+     * Outside of a match, no elements are equivalent but identical ones and unions are ignored.
+     */
+    private static final class CurrentEquivalences extends DisjointSet<Object>
+    {
+        CurrentEquivalences()
+        {
+            super(1);
+        }
+
+        @Override
+        public void union(Object e1, Object e2)
+        {
+            MatchContext context = current();
+            if (context != null)
+            {
+                context.equivalences().union(e1, e2);
+            }
+        }
+
+        @Override
+        public void deunion(int toUndo)
+        {
+            MatchContext context = current();
+            if (context != null)
+            {
+                context.equivalences().deunion(toUndo);
+            }
+        }
+
+        @Override
+        public void deunion()
+        {
+            deunion(1);
+        }
+
+        @Override
+        public boolean equivalent(Object e1, Object e2)
+        {
+            MatchContext context = current();
+            return context != null ? context.equivalences().equivalent(e1, e2) : e1 == e2;
+        }
+
+        @Override
+        public String toString()
+        {
+            MatchContext context = current();
+            return context != null ? context.equivalences().toString() : "[]";
+        }
+    }
+}
@@ -31,11 +31,62 @@ public final class MatcherFactories
         return SetDeepIsMatcherFactory.INSTANCE;
     }
 
+    /**
+     * A {@code MatcherFactory} for {@code Set}s which works like {@link #setIsDeeplyEqual()}, but only deeply compares
+     * elements that have the same structural key, such as the exact class and the values of primitive and
+     * {@code String} fields.  This makes comparing large sets much faster, as long as the {@code equals} and
+     * {@code hashCode} methods of element types compared with {@link #isEqual()} are consistent.
+     *
+     * @return {@code MatcherFactory} for {@code Set}s which buckets elements by structural key
+     */
+    public static MatcherFactory hashBucketedSetIsDeeplyEqual()
+    {
+        return HashBucketedSetDeepIsMatcherFactory.INSTANCE;
+    }
+
+    /**
+     * A {@code MatcherFactory} for {@code Set}s which, unlike {@link #setIsDeeplyEqual()}, checks that each expected
+     * element is deeply equal to a different actual element.  Elements are bucketed by structural key like
+     * {@link #hashBucketedSetIsDeeplyEqual()} does.
+     *
+     * @return {@code MatcherFactory} for {@code Set}s which checks for a perfect matching
+     */
+    public static MatcherFactory perfectlyMatchedSetIsDeeplyEqual()
+    {
+        return PerfectlyMatchedSetDeepIsMatcherFactory.INSTANCE;
+    }
+
     public static MatcherFactory mapIsDeeplyEqual()
     {
         return MapDeepIsMatcherFactory.INSTANCE;
     }
 
+    /**
+     * A {@code MatcherFactory} for {@code Map}s which works like {@link #mapIsDeeplyEqual()}, but only deeply compares
+     * entries whose map keys have the same structural key.  {@code mapIsDeeplyEqual()} already does that for map keys
+     * which are {@code String}s, primitive wrappers or enums; this also buckets entries keyed by other types, such as
+     * objects compared reflectively.  As with {@link #hashBucketedSetIsDeeplyEqual()}, the {@code equals} and
+     * {@code hashCode} methods of map key types compared with {@link #isEqual()} have to be consistent.
+     *
+     * @return {@code MatcherFactory} for {@code Map}s which buckets entries by the structural key of their map key
+     */
+    public static MatcherFactory hashBucketedMapIsDeeplyEqual()
+    {
+        return HashBucketedMapDeepIsMatcherFactory.INSTANCE;
+    }
+
+    /**
+     * A {@code MatcherFactory} for {@code Map}s which, unlike {@link #mapIsDeeplyEqual()}, checks that each expected
+     * entry is deeply equal to a different actual entry.  Entries are bucketed like
+     * {@link #hashBucketedMapIsDeeplyEqual()} does.
+     *
+     * @return {@code MatcherFactory} for {@code Map}s which checks for a perfect matching
+     */
+    public static MatcherFactory perfectlyMatchedMapIsDeeplyEqual()
+    {
+        return PerfectlyMatchedMapDeepIsMatcherFactory.INSTANCE;
+    }
+
     public  static MatcherFactory listIsDeeplyEqual()
     {
         return ListDeepIsMatcherFactory.INSTANCE;
@@ -66,10 +117,31 @@ public final class MatcherFactories
 
         public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
         {
-            return new SetDeepIsEqualMatcher<T>((Set<?>) expected, baseMatcherFactory, equiv);
+            return new SetDeepIsEqualMatcher<T>((Set<?>) expected, baseMatcherFactory);
+        }
+    }
+
+    private static enum HashBucketedSetDeepIsMatcherFactory implements MatcherFactory
+    {
+        INSTANCE;
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            return new SetDeepIsEqualMatcher<T>((Set<?>) expected, baseMatcherFactory,
+                SetDeepIsEqualMatcher.Matching.BUCKETED_COVERING);
         }
     }
 
+    private static enum PerfectlyMatchedSetDeepIsMatcherFactory implements MatcherFactory
+    {
+        INSTANCE;
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            return new SetDeepIsEqualMatcher<T>((Set<?>) expected, baseMatcherFactory,
+                SetDeepIsEqualMatcher.Matching.PERFECT);
+        }
+    }
 
     private static enum ListDeepIsMatcherFactory implements MatcherFactory
     {
@@ -77,7 +149,7 @@ public final class MatcherFactories
 
         public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
         {
-            return new ListDeepIsEqualMatcher<T>((List<?>) expected, baseMatcherFactory, equiv);
+            return new ListDeepIsEqualMatcher<T>((List<?>) expected, baseMatcherFactory);
         }
     }
 
@@ -89,12 +161,41 @@ public final class MatcherFactories
 
         public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
         {
-            return buildMapMatcher((Map<?, ?>) expected, baseMatcherFactory, equiv);
+            return buildMapMatcher((Map<?, ?>) expected, baseMatcherFactory);
         }
 
-        private <T, K, V> Matcher<? super T> buildMapMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv) {
-            return new MapDeepIsEqualMatcher<T, K, V>(expected, baseMatcherFactory, equiv);
+        private <T, K, V> Matcher<? super T> buildMapMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory) {
+            return new MapDeepIsEqualMatcher<T, K, V>(expected, baseMatcherFactory);
         }
     }
 
+    private static enum HashBucketedMapDeepIsMatcherFactory implements MatcherFactory
+    {
+        INSTANCE;
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            return buildMapMatcher((Map<?, ?>) expected, baseMatcherFactory);
+        }
+
+        private <T, K, V> Matcher<? super T> buildMapMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory) {
+            return new MapDeepIsEqualMatcher<T, K, V>(expected, baseMatcherFactory,
+                SetDeepIsEqualMatcher.Matching.BUCKETED_COVERING);
+        }
+    }
+
+    private static enum PerfectlyMatchedMapDeepIsMatcherFactory implements MatcherFactory
+    {
+        INSTANCE;
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            return buildMapMatcher((Map<?, ?>) expected, baseMatcherFactory);
+        }
+
+        private <T, K, V> Matcher<? super T> buildMapMatcher(Map<K, V> expected, MatcherFactory baseMatcherFactory) {
+            return new MapDeepIsEqualMatcher<T, K, V>(expected, baseMatcherFactory,
+                SetDeepIsEqualMatcher.Matching.PERFECT);
+        }
+    }
 }
@@ -13,7 +13,9 @@ public interface MatcherFactory
      * @param <T> type of the values to match
      * @param expected the expected value
      * @param baseMatcherFactory the base {@code MatcherFactory} which can be used when recursively building a matcher
-     * @param equiv a disjoint set of equivalence classes computed during the recursive match
+     * @param equiv the equivalences between actual and expected objects assumed while matching cycles.  The same
+     *     set is passed for every match, and works on the equivalences of the match in progress on the calling thread,
+     *     so it should only be used while matching.
      * @return {@code Matcher} to be used for the expected value
      */
     <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv);
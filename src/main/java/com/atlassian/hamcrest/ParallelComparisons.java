@@ -0,0 +1,161 @@
+package com.atlassian.hamcrest;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Splits the comparison of large lists and arrays across the threads of a shared pool, for the
+ * {@link DeepIsEqual.Engine#PARALLEL} engine.  The pool is a plain fixed size {@link ExecutorService} rather than a
+ * {@code ForkJoinPool}, which isn't available on Java 6.  The elements to compare are cut into ranges.  The calling thread
+ * compares the first range itself and every other range is compared on the pool, each in a
+ * {@link ClassComparators.Comparison} of its own, so no two threads ever share the equivalences assumed so far.
+ * Equivalences are only assumed to cope with cycles, so a range which starts out without the caller's assumptions
+ * still gives the same answer, it may just compare some values again.
+ *
+ * <p>Only the outermost comparison on a thread splits.  Nothing compared while a thread is splitting or comparing a
+ * range splits any further, including another parallel match started by a custom matcher, so a pool thread never
+ * waits for another one and the fixed size pool can't deadlock.  Once a range finds a difference, the others stop at
+ * their next position.
+ *
+ * <p>The fields of an object are always compared on the calling thread.  Objects don't have nearly enough fields for
+ * a range of them to be worth handing to another thread.
+ */
+final class ParallelComparisons
+{
+    /**
+     * Lists and arrays with fewer elements than this are compared on the calling thread.
+     */
+    static final int MIN_ELEMENTS = 8192;
+
+    /**
+     * The fewest positions worth handing to another thread.
+     */
+    private static final int MIN_RANGE = 256;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Set while the thread is splitting a comparison or comparing a range of one.
+     */
+    private static final ThreadLocal<Boolean> SPLITTING = new ThreadLocal<Boolean>();
+
+    private ParallelComparisons() {}
+
+    /**
+     * The pool is only started the first time a parallel comparison needs it.
+     */
+    private static final class Pool
+    {
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("deep-is-equal-%d").build());
+    }
+
+    /**
+     * Compares the positions {@code 0} to {@code size - 1}, in ranges spread over the pool.
+     *
+     * @param size the number of positions
+     * @param positions compares a range of positions
+     * @param comparison the comparison on the calling thread, used for the first range
+     * @return {@code true} if the values are equal at every position
+     */
+    static boolean allEqual(int size, final ClassComparators.Positions positions,
+        ClassComparators.Comparison comparison)
+    {
+        int ranges = Math.min(THREADS * 4, size / MIN_RANGE);
+        if (ranges < 2 || SPLITTING.get() != null)
+        {
+            return positions.equal(0, size, comparison);
+        }
+        SPLITTING.set(Boolean.TRUE);
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Future<Boolean>> forked = Lists.newArrayListWithCapacity(ranges - 1);
+        boolean equal = false;
+        try
+        {
+            for (int range = 1; range < ranges; range++)
+            {
+                final int from = (int) ((long) size * range / ranges);
+                final int to = (int) ((long) size * (range + 1) / ranges);
+                final ClassComparators.Comparison rangeComparison = comparison.forkRange();
+                forked.add(Pool.INSTANCE.submit(new Callable<Boolean>()
+                {
+                    public Boolean call()
+                    {
+                        SPLITTING.set(Boolean.TRUE);
+                        try
+                        {
+                            return rangeEqual(from, to, positions, rangeComparison, done);
+                        }
+                        finally
+                        {
+                            SPLITTING.remove();
+                        }
+                    }
+                }));
+            }
+            equal = rangeEqual(0, size / ranges, positions, comparison, done);
+            for (int i = 0; equal && i < forked.size(); i++)
+            {
+                equal = Uninterruptibles.getUninterruptibly(forked.get(i));
+            }
+            return equal;
+        }
+        catch (ExecutionException e)
+        {
+            throw Throwables.propagate(e.getCause());
+        }
+        finally
+        {
+            SPLITTING.remove();
+            if (!equal)
+            {
+                done.set(true);
+                for (Future<Boolean> range : forked)
+                {
+                    range.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares a range one position at a time, until it finds a difference or another range is done.  A range which
+     * stops because another one is done returns {@code true}, as it's the other range's result which counts.
+     */
+    private static boolean rangeEqual(int from, int to, ClassComparators.Positions positions,
+        ClassComparators.Comparison comparison, AtomicBoolean done)
+    {
+        try
+        {
+            for (int i = from; i < to && !done.get(); i++)
+            {
+                if (!positions.equal(i, i + 1, comparison))
+                {
+                    done.set(true);
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            done.set(true);
+            throw e;
+        }
+        catch (Error e)
+        {
+            done.set(true);
+            throw e;
+        }
+    }
+}
@@ -13,4 +13,23 @@ public interface PersistentArray<E> extends Iterable<E>
     public int size();
     public PersistentArray<E> resize(int newSize);
     public PersistentArray<E> resize(int newSize, Function<Integer, E> initFun);
+
+    /**
+     * Returns a transient copy of this version, which applies {@code set}s in place until {@link Transient#persistent()}
+     * turns all of them into a single new version.  This version doesn't change.
+     */
+    public Transient<E> asTransient();
+
+    /**
+     * A mutable copy of a version of a {@link PersistentArray}, for making many changes as one new version.  It can't be
+     * used any more once {@link #persistent()} has been called.
+     * @param <E> the type of elements
+     */
+    public interface Transient<E>
+    {
+        public E get(int index);
+        public Transient<E> set(int index, E value);
+        public int size();
+        public PersistentArray<E> persistent();
+    }
 }
@@ -0,0 +1,17 @@
+package com.atlassian.hamcrest;
+
+/**
+ * Interface for persistent arrays of {@code int}s, which unlike a {@link PersistentArray} of {@code Integer}s don't
+ * need an object for each element.
+ */
+public interface PersistentIntArray
+{
+    public int get(int index);
+    public PersistentIntArray set(int index, int value);
+    public int size();
+
+    /**
+     * Returns a version of the given size, whose elements past the size of this one are {@code 0}.
+     */
+    public PersistentIntArray resize(int newSize);
+}
@@ -0,0 +1,145 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Array;
+
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link Matcher} for arrays of primitives whose elements are compared with {@link MatcherFactories#isEqual()}.  Rather
+ * than a {@code Matcher} for each element, the arrays are compared with bulk scans when the actual array is of the same
+ * type, and element by element with the wrappers' {@code equals} otherwise, so an {@code int[]} still matches an equal
+ * {@code Integer[]}.
+ *
+ * <p>A mismatch lists the ranges of indexes where the arrays differ, up to {@value #MAX_RANGES_DESCRIBED} of them.
+ *
+ * @param <T> type of the arrays matched
+ */
+class PrimitiveArrayDeepIsEqualMatcher<T> extends DeepMatcher<T>
+{
+    private static final int MAX_RANGES_DESCRIBED = 10;
+
+    private final Object expected;
+    private final int expectedSize;
+
+    /**
+     * @param expected the expected array, whose component type must be primitive
+     */
+    public PrimitiveArrayDeepIsEqualMatcher(Object expected)
+    {
+        this.expected = expected;
+        this.expectedSize = Array.getLength(expected);
+    }
+
+    @Override
+    Match startMatch(final Object actual)
+    {
+        return new MatchInOneGo()
+        {
+            @Override
+            boolean matches(MatchContext context)
+            {
+                return matchElements(actual, context);
+            }
+        };
+    }
+
+    private boolean matchElements(Object actual, MatchContext context)
+    {
+        if (actual == null)
+        {
+            context.appendText("is null");
+            return false;
+        }
+        if (! actual.getClass().isArray())
+        {
+            context.appendText("not an array, but a ")
+                    .appendText(actual.getClass().getName());
+            return false;
+        }
+        if (expectedSize != Array.getLength(actual))
+        {
+            context.appendText("size should be ")
+                    .appendText(String.valueOf(expectedSize))
+                    .appendText(", but is ")
+                    .appendValue(Array.getLength(actual));
+            return false;
+        }
+        int first = firstDifference(actual, 0);
+        if (first < 0)
+        {
+            return true;
+        }
+        if (context.isRecording())
+        {
+            describeDifferences(actual, first, context);
+        }
+        return false;
+    }
+
+    private void describeDifferences(Object actual, int first, MatchContext context)
+    {
+        context.appendText("differs at indexes ");
+        int ranges = 0;
+        int start = first;
+        while (start >= 0)
+        {
+            int end = start + 1;
+            while (end < expectedSize && !sameElement(actual, end))
+            {
+                end++;
+            }
+            if (ranges < MAX_RANGES_DESCRIBED)
+            {
+                context.appendText(ranges > 0 ? ", " : "")
+                    .appendText(String.valueOf(start))
+                    .appendText(end - start > 1 ? ".." + (end - 1) : "");
+            }
+            ranges++;
+            start = end < expectedSize ? firstDifference(actual, end) : -1;
+        }
+        if (ranges > MAX_RANGES_DESCRIBED)
+        {
+            context.appendText(" and ")
+                .appendText(String.valueOf(ranges - MAX_RANGES_DESCRIBED))
+                .appendText(" more ranges");
+        }
+    }
+
+    /**
+     * Returns the first index, starting at {@code from}, where the arrays differ, or {@code -1} if there is none.
+     */
+    private int firstDifference(Object actual, int from)
+    {
+        if (actual.getClass() == expected.getClass())
+        {
+            return PrimitiveArrays.mismatch(expected, actual, from);
+        }
+        for (int i = from; i < expectedSize; i++)
+        {
+            if (!sameElement(actual, i))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameElement(Object actual, int index)
+    {
+        return Array.get(expected, index).equals(Array.get(actual, index));
+    }
+
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        return ImmutableList.of();
+    }
+
+    public void describeTo(Description desc)
+    {
+        desc.appendValue(expected);
+    }
+}
@@ -0,0 +1,132 @@
+package com.atlassian.hamcrest;
+
+/**
+ * Scans of primitive arrays.  This is the baseline version, which compares the arrays an element at a time.  The jar is
+ * a multi-release jar, and on Java 9 and later this class is replaced by one which uses {@code Arrays.mismatch}, which
+ * the JIT turns into vectorized compares.
+ */
+final class PrimitiveArrays
+{
+    private PrimitiveArrays() {}
+
+    /**
+     * Finds the first index, starting at {@code from}, where two primitive arrays of the same type and length hold
+     * different values.  Floating point values are compared the same way as the wrapper types' {@code equals} does.
+     *
+     * @param expected the expected array
+     * @param actual the actual array, of the same type and length as {@code expected}
+     * @param from the index to start looking at
+     * @return the index of the first difference, or {@code -1} if the arrays are the same from {@code from} on
+     */
+    static int mismatch(Object expected, Object actual, int from)
+    {
+        if (expected instanceof boolean[])
+        {
+            boolean[] e = (boolean[]) expected;
+            boolean[] a = (boolean[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof byte[])
+        {
+            byte[] e = (byte[]) expected;
+            byte[] a = (byte[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof short[])
+        {
+            short[] e = (short[]) expected;
+            short[] a = (short[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof int[])
+        {
+            int[] e = (int[]) expected;
+            int[] a = (int[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof long[])
+        {
+            long[] e = (long[]) expected;
+            long[] a = (long[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof float[])
+        {
+            float[] e = (float[]) expected;
+            float[] a = (float[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (Float.floatToIntBits(e[i]) != Float.floatToIntBits(a[i]))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof double[])
+        {
+            double[] e = (double[]) expected;
+            double[] a = (double[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (Double.doubleToLongBits(e[i]) != Double.doubleToLongBits(a[i]))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else if (expected instanceof char[])
+        {
+            char[] e = (char[]) expected;
+            char[] a = (char[]) actual;
+            for (int i = from; i < e.length; i++)
+            {
+                if (e[i] != a[i])
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        else
+        {
+            throw new InternalError("Umm... did you add a new primitive type to Java or something?");
+        }
+    }
+}
@@ -9,6 +9,6 @@ final class ReflectiveEqualFactory implements MatcherFactory
 {
     public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
     {
-        return new ReflectivelyEqual<T>(expected, baseMatcherFactory, equiv);
+        return new ReflectivelyEqual<T>(expected, baseMatcherFactory);
     }
 }
\ No newline at end of file
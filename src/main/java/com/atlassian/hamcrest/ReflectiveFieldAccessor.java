@@ -0,0 +1,69 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Field;
+
+/**
+ * {@link FieldAccessor} which goes through {@link Field#get(Object)}, and the typed {@code Field} getters for
+ * primitive fields.  This works on every JVM, and is the backend used whenever a faster one isn't available.
+ */
+final class ReflectiveFieldAccessor extends FieldAccessor
+{
+    ReflectiveFieldAccessor(Field field)
+    {
+        super(field);
+    }
+
+    @Override
+    Object get(Object target)
+    {
+        try
+        {
+            return field().get(target);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw unexpected(e);
+        }
+    }
+
+    @Override
+    boolean primitiveEquals(Object expected, Object actual)
+    {
+        Field f = field();
+        try
+        {
+            switch (kind())
+            {
+                case BOOLEAN:
+                    return f.getBoolean(expected) == f.getBoolean(actual);
+                case BYTE:
+                    return f.getByte(expected) == f.getByte(actual);
+                case SHORT:
+                    return f.getShort(expected) == f.getShort(actual);
+                case CHAR:
+                    return f.getChar(expected) == f.getChar(actual);
+                case INT:
+                    return f.getInt(expected) == f.getInt(actual);
+                case LONG:
+                    return f.getLong(expected) == f.getLong(actual);
+                case FLOAT:
+                    return Float.floatToIntBits(f.getFloat(expected)) == Float.floatToIntBits(f.getFloat(actual));
+                case DOUBLE:
+                    return Double.doubleToLongBits(f.getDouble(expected)) == Double.doubleToLongBits(f.getDouble(actual));
+                default:
+                    throw new IllegalStateException(f + " is not a primitive field");
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw unexpected(e);
+        }
+    }
+
+    private static InternalError unexpected(IllegalAccessException e)
+    {
+        // this can't happen. Would get a Security exception instead
+        // throw an error in case the impossible happens.
+        return new InternalError("Unexpected IllegalAccessException");
+    }
+}
@@ -6,6 +6,10 @@ import java.util.Map;
 
 import org.hamcrest.Matcher;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
 /**
  * Top level {@code MatcherFactory} used for doing the {@code deeplyEqualTo} comparison.  Creates a matcher in based
  * on this criteria:
@@ -15,12 +19,29 @@ import org.hamcrest.Matcher;
  * <li>If the expected value matches any of the field matcher factory keys, the {@code MatcherFactory} is used.</li>
  * <li>Otherwise, a matcher which compares objects reflectively is returned.</li>
  * </ol>
+ *
+ * The {@code MatcherFactory} chosen for a class is remembered, so the field matcher factory keys are only matched
+ * against each class once, no matter how many values of that class are compared.
  */
-final class ReflectiveObjectMatcherFactory implements MatcherFactory
+final class ReflectiveObjectMatcherFactory extends ResolvingMatcherFactory
 {
     private final MatcherFactory fallbackFactory = new ReflectiveEqualFactory();
     private final Iterable<Map<Matcher<Class<?>>, MatcherFactory>> fieldMatcherFactories;
 
+    private final LoadingCache<Class<?>, MatcherFactory> resolvedFactories = CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Class<?>, MatcherFactory>()
+        {
+            @Override
+            public MatcherFactory load(Class<?> type)
+            {
+                return resolve(type);
+            }
+        });
+
+    private final StructuralKeys structuralKeys = new StructuralKeys(this);
+
     ReflectiveObjectMatcherFactory(Iterable<Map<Matcher<Class<?>>, MatcherFactory>> fieldMatcherFactories)
     {
         this.fieldMatcherFactories = fieldMatcherFactories;
@@ -32,16 +53,45 @@ final class ReflectiveObjectMatcherFactory implements MatcherFactory
         {
             return nullValue();
         }
+        return factoryFor(expected.getClass()).newEqualMatcher(expected, baseMatcherFactory, equiv);
+    }
+
+    @Override
+    MatcherFactory factoryFor(Class<?> type)
+    {
+        return resolvedFactories.getUnchecked(type);
+    }
+
+    @Override
+    StructuralKeys structuralKeys()
+    {
+        return structuralKeys;
+    }
+
+    /**
+     * Returns {@code false}, as this factory doesn't know the expected graph.
+     */
+    @Override
+    boolean isOutsideCycles(Object expected)
+    {
+        return false;
+    }
+
+    /**
+     * Finds the first {@code MatcherFactory} whose key matches {@code type}, in the order the maps were given.
+     */
+    private MatcherFactory resolve(Class<?> type)
+    {
         for (Map<Matcher<Class<?>>, MatcherFactory> factories : fieldMatcherFactories)
         {
             for (Map.Entry<Matcher<Class<?>>, MatcherFactory> entry : factories.entrySet())
             {
-                if (entry.getKey().matches(expected.getClass()))
+                if (entry.getKey().matches(type))
                 {
-                    return entry.getValue().newEqualMatcher(expected, baseMatcherFactory, equiv);
+                    return entry.getValue();
                 }
             }
-        }            
-        return fallbackFactory.newEqualMatcher(expected, baseMatcherFactory, equiv);
+        }
+        return fallbackFactory;
     }
-}
\ No newline at end of file
+}
@@ -1,193 +1,233 @@
 package com.atlassian.hamcrest;
 
-import static com.atlassian.hamcrest.Arrays.asList;
-import static com.atlassian.hamcrest.Predicates.isStatic;
-import static com.atlassian.hamcrest.Predicates.isTransient;
-import static com.atlassian.hamcrest.Functions.cache;
-import static com.google.common.base.Predicates.not;
-import static com.google.common.base.Predicates.or;
-import static com.google.common.collect.Iterables.concat;
-import static com.google.common.collect.Iterables.filter;
-import static com.google.common.collect.Iterables.transform;
-import static org.hamcrest.Matchers.equalTo;
-import static org.hamcrest.Matchers.is;
-
-import java.lang.reflect.AccessibleObject;
-import java.lang.reflect.Field;
-import java.util.Iterator;
+import java.util.List;
 
 import org.hamcrest.Description;
-import org.hamcrest.DiagnosingMatcher;
 import org.hamcrest.Matcher;
 
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Primitives;
 
 /**
- * {@code Matcher} that does the work of reflectively comparing fields of objects.  It lazily creates, and caches,
- * the matchers for the fields declared by type of expected value.  When doing the matching, it iterates over the
- * field {@code Matcher}s, extracts the field value from the actual object being compared against, and checks if the
- * field {@code Matcher} matches the corresponding actual field value.
+ * {@code Matcher} that does the work of reflectively comparing fields of objects.  The fields to compare come from
+ * the shared {@link ClassMatchPlan} of the expected value's type.  The matchers for the field values are created
+ * lazily, and cached, the first time each field is compared.  When doing the matching, it iterates over the
+ * fields, extracts the field value from the actual object being compared against, and checks if the field
+ * {@code Matcher} matches the corresponding actual field value.
+ *
+ * <p>Primitive fields whose wrapper type would be matched with {@link MatcherFactories#isEqual()} are compared
+ * directly with typed reads instead.  Their matchers are only created if they are needed to describe a mismatch.
  */
-class ReflectivelyEqual<T> extends DiagnosingMatcher<T>
+class ReflectivelyEqual<T> extends DeepMatcher<T>
 {
+    private final ClassMatchPlan plan;
+    private final Matcher<?>[] fieldMatchers;
+    private final MatcherFactory matcherFactory;
+    private final T expected;
+
     /**
-     * Matcher which checks the type of the actual value against the type of the expected value.  If they don't match
-     * exactly then the whole match should fail.
+     * Whether the field at each index in the plan is a primitive field which can be compared without a matcher.  This
+     * is the plan's own array when every primitive field can be.
      */
-    private final Matcher<?> typeMatcher;
+    private final boolean[] primitiveFields;
 
-    private final Iterable<ReflectivelyEqual.FieldMatcher> fieldMatchers;
-    private final DisjointSet<Object> equiv;
-    private final T expected;
-    
-    public ReflectivelyEqual(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+    /**
+     * Whether the expected value may be part of a cycle, so matching it may lead back to it.  If it can't, there's no
+     * need to assume the values are equal while matching the fields.
+     */
+    private final boolean coinductive;
+
+    public ReflectivelyEqual(T expected, MatcherFactory baseMatcherFactory)
     {
-        this.fieldMatchers = transform(matchableFieldsOf(expected.getClass()), cache(toValueMatchers(expected, baseMatcherFactory)));
-        this.equiv = equiv;
+        this.plan = ClassMatchPlan.of(expected.getClass());
+        this.fieldMatchers = new Matcher<?>[plan.fieldCount()];
+        this.matcherFactory = baseMatcherFactory;
         this.expected = expected;
-        this.typeMatcher = is(equalTo(expected.getClass()));
+        this.primitiveFields = primitiveFieldsComparedByValue(plan, baseMatcherFactory);
+        this.coinductive = !(baseMatcherFactory instanceof ResolvingMatcherFactory)
+            || !((ResolvingMatcherFactory) baseMatcherFactory).isOutsideCycles(expected);
     }
 
-    @Override
-    protected boolean matches(Object actual, Description mismatchDescription)
+    private static boolean[] primitiveFieldsComparedByValue(ClassMatchPlan plan, MatcherFactory matcherFactory)
     {
-        if (actual == null)
+        boolean[] primitiveFields = plan.primitiveFields();
+        if (!(matcherFactory instanceof ResolvingMatcherFactory))
         {
-            mismatchDescription.appendValue(null);
-            return false;
+            return new boolean[primitiveFields.length];
         }
-        if (!typeMatcher.matches(actual.getClass()))
+        ResolvingMatcherFactory resolver = (ResolvingMatcherFactory) matcherFactory;
+        boolean[] byValue = primitiveFields;
+        for (int i = 0; i < primitiveFields.length; i++)
         {
-            typeMatcher.describeMismatch(actual.getClass(), mismatchDescription);
-            return false;
+            if (primitiveFields[i]
+                && resolver.factoryFor(Primitives.wrap(plan.field(i).getType())) != MatcherFactories.isEqual())
+            {
+                if (byValue == primitiveFields)
+                {
+                    byValue = primitiveFields.clone();
+                }
+                byValue[i] = false;
+            }
         }
-        if (equiv.equivalent(actual, expected))
+        return byValue;
+    }
+
+    @Override
+    Match startMatch(Object actual)
+    {
+        return new FieldsMatch(actual);
+    }
+
+    /**
+     * Compares the fields one at a time, handing the fields which need a {@code Matcher} back to be matched.
+     */
+    private final class FieldsMatch extends Match
+    {
+        private final Object actual;
+        private boolean started;
+        private int index;
+        private int mark;
+        private boolean mismatchFound;
+
+        FieldsMatch(Object actual)
         {
-            return true;
+            this.actual = actual;
         }
-        // AHAM-1 : Recursively assume that the objects are equal when comparing their fields
-        equiv.union(actual, expected);
-        boolean mismatchFound = false;
-        for (ReflectivelyEqual.FieldMatcher fieldMatcher : fieldMatchers)
+
+        @Override
+        boolean next(boolean childMatched, MatchContext context)
         {
-            Field field = fieldMatcher.field;
-            Matcher<?> matcher = fieldMatcher.matcher;
-            Object actualFieldValue = get(field, actual);
-            
-            if (matcher.matches(actualFieldValue))
+            if (!started)
             {
-                continue;
+                started = true;
+                if (actual == null)
+                {
+                    context.appendValue(null);
+                    return finish(false);
+                }
+                if (!plan.isExactType(actual))
+                {
+                    plan.typeMatcher().describeMismatch(actual.getClass(), context);
+                    return finish(false);
+                }
+                if (coinductive)
+                {
+                    RollbackDisjointSet<Object> equiv = context.equivalences();
+                    if (equiv.equivalent(actual, expected))
+                    {
+                        return finish(true);
+                    }
+                    // AHAM-1 : Recursively assume that the objects are equal when comparing their fields
+                    equiv.union(actual, expected);
+                }
             }
-            if (!mismatchFound)
+            else if (childMatched)
+            {
+                context.rollback(mark);
+            }
+            else
             {
                 mismatchFound = true;
-
                 //an important optimization when there are many cycles
-                if (mismatchDescription == Description.NONE)
+                if (!context.isRecording())
+                {
+                    return finishFields(context);
+                }
+            }
+            while (index < fieldMatchers.length)
+            {
+                int i = index++;
+                FieldAccessor accessor = plan.accessor(i);
+                boolean primitive = isPrimitiveField(i);
+                if (primitive && accessor.primitiveEquals(expected, actual))
+                {
+                    continue;
+                }
+                if (primitive && !context.isRecording())
+                {
+                    mismatchFound = true;
                     break;
+                }
+                mark = context.mark();
+                context.appendText(mismatchFound ? ", " : "{")
+                    .appendText(accessor.field().getName())
+                    .appendText(" ");
+                Object actualFieldValue = accessor.get(actual);
+                if (!primitive)
+                {
+                    return matchNext(fieldMatcher(i), actualFieldValue);
+                }
+                fieldMatcher(i).describeMismatch(actualFieldValue, context);
+                mismatchFound = true;
+            }
+            return finishFields(context);
+        }
 
-                mismatchDescription.appendText("{");
+        private boolean finishFields(MatchContext context)
+        {
+            if (mismatchFound)
+            {
+                context.appendText("}");
             }
-            else
+            if (coinductive)
             {
-                mismatchDescription.appendText(", ");
+                context.equivalences().deunion();
             }
-            mismatchDescription.appendText(field.getName()).appendText(" ");
-            matcher.describeMismatch(actualFieldValue, mismatchDescription);
+            return finish(!mismatchFound);
         }
-        
-        if (mismatchFound)
+    }
+
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        List<Matcher<?>> children = Lists.newArrayListWithCapacity(fieldMatchers.length);
+        for (int i = 0; i < fieldMatchers.length; i++)
         {
-            mismatchDescription.appendText("}");
+            children.add(fieldMatcher(i));
         }
-        equiv.deunion();
-        return !mismatchFound;
+        return children;
     }
 
     public void describeTo(Description desc)
     {
         desc.appendText("{");
-        for (Iterator<ReflectivelyEqual.FieldMatcher> it = fieldMatchers.iterator(); it.hasNext(); )
+        for (int i = 0; i < fieldMatchers.length; i++)
         {
-            ReflectivelyEqual.FieldMatcher fieldMatcher = it.next();
-            desc.appendText(fieldMatcher.field.getName())
-                .appendText(" ")
-                .appendDescriptionOf(fieldMatcher.matcher);
-            if (it.hasNext())
+            if (i > 0)
             {
                 desc.appendText(", ");
             }
+            desc.appendText(plan.field(i).getName())
+                .appendText(" ")
+                .appendDescriptionOf(fieldMatcher(i));
         }
         desc.appendText("}");
     }
-    
-    /**
-     * Recursively builds the list of all fields that are matchable in a class.  Matchable fields are all fields
-     * declared by the class and its superclasses that are neither static nor transient.
-     * 
-     * @param cls class to get all the matchable fields of
-     * @return all fields that we can use to match objects
-     */
-    private Iterable<Field> matchableFieldsOf(Class<?> cls)
-    {
-        if (cls == null)
-        {
-            return ImmutableList.of();
-        }
-        Field[] fields = cls.getDeclaredFields();
-        AccessibleObject.setAccessible(fields, true);
-        return concat(matchableFieldsOf(cls.getSuperclass()), filter(asList(fields), not(or(isTransient(), isStatic()))));
-    }
-    
-    /**
-     * Returns a {@code Function} which can be used to turn {@code Field}s into {@code FieldMatcher}s.
-     *  
-     * @param expected the expected object value to extract the field value from
-     * @param matcherFactory factory to use to create matchers for the fields
-     * @return {@code Function} which can be used to turn {@code Field}s into {@code FieldMatcher}s
-     */
-    private Function<Field, ReflectivelyEqual.FieldMatcher> toValueMatchers(final T expected, final MatcherFactory matcherFactory)
-    {
-        return new Function<Field, ReflectivelyEqual.FieldMatcher>()
-        {
-            public ReflectivelyEqual.FieldMatcher apply(Field f)
-            {
-                return new FieldMatcher(f, matcherFactory.newEqualMatcher(get(f, expected), matcherFactory, equiv));
-            }
-        };
-    };
 
-    public T getExpected() {
-        return expected;
+    private boolean isPrimitiveField(int index)
+    {
+        return primitiveFields[index];
     }
 
     /**
-     * Container for a {@link Field} and the {@link Matcher} which should be used when comparing values of the field.
+     * Returns the {@code Matcher} for the value of the field at {@code index} in the plan, creating it if this is
+     * the first time it's needed.  Matchers can't be created up front because the expected object graph may
+     * contain cycles.
      */
-    private static class FieldMatcher
+    private Matcher<?> fieldMatcher(int index)
     {
-        final Field field;
-        final Matcher<?> matcher;
-        
-        FieldMatcher(Field field, Matcher<?> matcher)
+        Matcher<?> matcher = fieldMatchers[index];
+        if (matcher == null)
         {
-            this.field = field;
-            this.matcher = matcher;
+            Object expectedFieldValue = plan.accessor(index).get(expected);
+            matcher = matcherFactory.newEqualMatcher(
+                expectedFieldValue, matcherFactory, MatchContext.CURRENT_EQUIVALENCES);
+            fieldMatchers[index] = matcher;
         }
+        return matcher;
     }
-    
-    private static Object get(Field field, Object actual) throws InternalError
-    {
-        try
-        {
-            return field.get(actual);
-        }
-        catch (IllegalAccessException e)
-        {
-            // this can't happen. Would get a Security exception instead
-            // throw an error in case the impossible happens.
-            throw new InternalError("Unexpected IllegalAccessException");
-        }
+
+    public T getExpected() {
+        return expected;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package com.atlassian.hamcrest;
+
+/**
+ * A {@link MatcherFactory} which picks the {@code MatcherFactory} to use based on the type of the expected value, and
+ * can tell up front which one it will pick.  Matchers use this to find out when values can be compared directly
+ * instead of through a {@code Matcher}.
+ *
+ * <p>This is an abstract class rather than an interface so its methods can stay package-private on the public
+ * {@link CachingMatcherFactory}.
+ */
+abstract class ResolvingMatcherFactory implements MatcherFactory
+{
+    /**
+     * Returns the {@code MatcherFactory} that will be used for expected values of exactly the given type.
+     *
+     * @param type the type of an expected value
+     * @return {@code MatcherFactory} used for values of that type, or {@code null} if it can't be known up front
+     */
+    abstract MatcherFactory factoryFor(Class<?> type);
+
+    /**
+     * Returns the {@link StructuralKeys} for values matched by this factory.
+     *
+     * @return {@code StructuralKeys} for values matched by this factory, or {@code null} if keys can't be computed
+     */
+    abstract StructuralKeys structuralKeys();
+
+    /**
+     * Returns whether the expected value is known not to be part of a cycle in the expected graph.  Matching such a
+     * value can't lead back to it, so its {@code Matcher} doesn't have to assume it is equal to the actual value while
+     * it matches the parts.
+     *
+     * @param expected a value in the expected graph
+     * @return {@code true} if the value is known not to be part of a cycle, {@code false} if it is or if that isn't known
+     */
+    abstract boolean isOutsideCycles(Object expected);
+}
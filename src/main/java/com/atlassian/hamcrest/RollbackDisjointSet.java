@@ -0,0 +1,183 @@
+package com.atlassian.hamcrest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * A {@link DisjointSet} for matching, with the same {@link #union}, {@link #equivalent} and {@link #deunion} operations
+ * but kept in plain {@code int} arrays.  Each element gets an index, in order of first appearance, and the index of its
+ * parent and its rank are kept at that index in two parallel arrays.  Each {@code union} records the root it linked
+ * under another in a trail, and {@code deunion} undoes the latest unions by making those roots their own parents
+ * again, so neither operation allocates anything.
+ *
+ * <p>There is no path compression, as that would change parents which undoing a union doesn't know about.  Union by
+ * rank on its own keeps every path to a root at most O(log n) long.
+ *
+ * @param <E> type of the elements, which are told apart by identity
+ */
+final class RollbackDisjointSet<E>
+{
+    private static final int DEFAULT_SIZE = 32;
+
+    private final IdentityIndexMap<E> elementsToIndexes;
+    private int[] parents;
+    private int[] ranks;
+
+    /**
+     * The root linked under another by each union still in effect, complemented if the union raised the rank of the
+     * other root.
+     */
+    private int[] trail;
+    private int unions;
+
+    /**
+     * Creates a new {@code RollbackDisjointSet} with room for the default number of elements.
+     */
+    RollbackDisjointSet()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a new {@code RollbackDisjointSet} with room for the given number of elements before its arrays have to
+     * grow.
+     */
+    RollbackDisjointSet(int expectedSize)
+    {
+        if (expectedSize <= 0)
+        {
+            throw new IllegalArgumentException("Expected size must be > 0");
+        }
+        elementsToIndexes = new IdentityIndexMap<E>(expectedSize);
+        parents = new int[expectedSize];
+        ranks = new int[expectedSize];
+        trail = new int[expectedSize];
+    }
+
+    /**
+     * Place two elements in the same set
+     * @param e1 The first element to be unioned
+     * @param e2 The second element to be unioned
+     */
+    void union(E e1, E e2)
+    {
+        int root1 = findRoot(indexOf(e1));
+        int root2 = findRoot(indexOf(e2));
+        if (root1 == root2)
+        {
+            return;
+        }
+        if (ranks[root1] < ranks[root2])
+        {
+            link(root1, root2, false);
+        }
+        else if (ranks[root1] > ranks[root2])
+        {
+            link(root2, root1, false);
+        }
+        else
+        {
+            link(root2, root1, true);
+        }
+    }
+
+    private void link(int child, int parent, boolean raiseRank)
+    {
+        parents[child] = parent;
+        if (raiseRank)
+        {
+            ranks[parent]++;
+        }
+        if (unions == trail.length)
+        {
+            trail = Arrays.copyOf(trail, unions * 2);
+        }
+        trail[unions++] = raiseRank ? ~child : child;
+    }
+
+    /**
+     * Undoes the last {@code i} {@link #union} operations which put elements that weren't yet equivalent together
+     * @param toUndo the number of union operations to undo
+     */
+    void deunion(int toUndo)
+    {
+        if (toUndo < 0)
+        {
+            throw new IllegalArgumentException("Number of deunion operations must be >= 0");
+        }
+        else if (toUndo > unions)
+        {
+            throw new IllegalArgumentException("Cannot undo more than " + unions + " union operations");
+        }
+        for (int i = 0; i < toUndo; i++)
+        {
+            int linked = trail[--unions];
+            int child = linked < 0 ? ~linked : linked;
+            if (linked < 0)
+            {
+                ranks[parents[child]]--;
+            }
+            parents[child] = child;
+        }
+    }
+
+    /**
+     * Undoes the last {@link #union} operation
+     */
+    void deunion()
+    {
+        deunion(1);
+    }
+
+    /**
+     * Determine whether two elements are in the same set
+     * @param e1 The first element
+     * @param e2 The second element
+     * @return true if the two elements are in the same set, false otherwise
+     */
+    boolean equivalent(E e1, E e2)
+    {
+        return findRoot(indexOf(e1)) == findRoot(indexOf(e2));
+    }
+
+    private int indexOf(E element)
+    {
+        int newIndex = elementsToIndexes.size();
+        int index = elementsToIndexes.indexOf(element);
+        if (index == newIndex)
+        {
+            if (index == parents.length)
+            {
+                parents = Arrays.copyOf(parents, index * 2);
+                ranks = Arrays.copyOf(ranks, index * 2);
+            }
+            parents[index] = index;
+        }
+        return index;
+    }
+
+    private int findRoot(int index)
+    {
+        int root = index;
+        while (parents[root] != root)
+        {
+            root = parents[root];
+        }
+        return root;
+    }
+
+    @Override
+    public String toString()
+    {
+        Multimap<Integer, E> partition = HashMultimap.create();
+        List<E> elements = elementsToIndexes.elements();
+        for (int i = 0; i < elements.size(); i++)
+        {
+            partition.put(findRoot(i), elements.get(i));
+        }
+        return partition.asMap().values().toString();
+    }
+}
@@ -1,70 +1,103 @@
 package com.atlassian.hamcrest;
 
-import com.google.common.base.Function;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.hamcrest.Description;
-import org.hamcrest.DiagnosingMatcher;
 import org.hamcrest.Matcher;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
-import static com.atlassian.hamcrest.Functions.cache;
-import static com.google.common.collect.Iterables.size;
-import static com.google.common.collect.Iterables.transform;
 
 /**
  * {@link org.hamcrest.Matcher} for {@code Set}s.  It is composed of {@code Matcher}s for each element in the expected set.  The element
  * matchers are created from the {@code MatcherFactory} provided when the SetDeepIsEqualMatcher is created.
- * The element matchers are also lazily created and cached for future use.
+ * The element matchers are created lazily, and kept by position in an {@link ElementMatchers}.
  *
  * As you would expect, the order of the given elements does not need to match the order of the matchers that match them.
  *
- * Ideally, this would verify that there is a 'perfect matching' - each element is matched by a different matcher.  This turns
- * out to be somewhat complicated (though I think it could be in cubic time by the Hungarian Algorithm --
- * http://en.wikipedia.org/wiki/Hungarian_algorithm).  So, to make my life simpler, this matcher verifies just that:
+ * Ideally, this would verify that there is a 'perfect matching' - each element is matched by a different matcher.  By
+ * default, this matcher verifies just that:
  * 1. all elements are matched by at least one matcher
  * 2. all matchers match at least one element.
  *
+ * When created in bucketed mode, the elements of both sets are first grouped by their {@link StructuralKeys} key, and
+ * each matcher is only tried against the elements with the same key, plus the elements that have no key.  The
+ * result is the same as trying every matcher against every element, as long as the {@code equals} and
+ * {@code hashCode} of element types compared with {@link MatcherFactories#isEqual()} are consistent.
  *
+ * When created in perfect matching mode, it does verify that there is a perfect matching, using
+ * {@link BipartiteMatching} on the same buckets.  If there isn't one, the mismatch names the matchers and elements
+ * left over by a maximum matching, which are as few as possible.
  *
  * @param <S> represents the type of things this matcher matches (ie, sets).  Needed to make the compiler happy.
  */
 //TODO: there is probably too much copy/paste between this and ListDeepIsEqualMatcher and ArayDeepIsEqualMatcher
-class SetDeepIsEqualMatcher<S> extends DiagnosingMatcher<S>
+class SetDeepIsEqualMatcher<S> extends DeepMatcher<S>
 {
     private final int expectedSize;
-    private final Iterable<Matcher<?>> matchers;
+    private final ElementMatchers matchers;
+    private final Matching matching;
+    private final StructuralKeys keys;
 
-    public SetDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+    /**
+     * How matchers and elements have to be paired up for the sets to be equal.
+     */
+    enum Matching
     {
-        this.expectedSize = size(expected);
-        this.matchers = transform(expected, cache(toMatchers(baseMatcherFactory, equiv)));
+        /** Every matcher matches some element and every element is matched by some matcher. */
+        COVERING,
+        /** Same as {@link #COVERING}, but only matchers and elements with the same structural key are compared. */
+        BUCKETED_COVERING,
+        /** Every matcher matches a different element.  Only matchers and elements with the same structural key are compared. */
+        PERFECT
     }
 
-    private Function<Object, Matcher<?>> toMatchers(final MatcherFactory matcherFactory, final DisjointSet<Object> equiv)
+    public SetDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory)
     {
-        return new Function<Object, Matcher<?>>()
+        this(expected, baseMatcherFactory, Matching.COVERING);
+    }
+
+    /**
+     * @param matching how matchers and elements have to be paired up.  Structural keys are only used if the
+     *     {@code baseMatcherFactory} can compute them.
+     */
+    public SetDeepIsEqualMatcher(Iterable<?> expected, MatcherFactory baseMatcherFactory, Matching matching)
+    {
+        this.matchers = new ElementMatchers(expected, baseMatcherFactory);
+        this.expectedSize = matchers.size();
+        this.matching = matching;
+        this.keys = matching != Matching.COVERING && baseMatcherFactory instanceof ResolvingMatcherFactory
+            ? ((ResolvingMatcherFactory) baseMatcherFactory).structuralKeys()
+            : null;
+    }
+
+    @Override
+    Match startMatch(final Object actual)
+    {
+        return new MatchInOneGo()
         {
-            public Matcher<?> apply(Object element)
+            @Override
+            boolean matches(MatchContext context)
             {
-                return matcherFactory.newEqualMatcher(element, matcherFactory, equiv);
+                return matchElements(actual, context);
             }
         };
     }
 
-    @Override
-    protected boolean matches(Object actual, Description mismatchDescription)
+    private boolean matchElements(Object actual, MatchContext context)
     {
         if (actual == null)
         {
-            mismatchDescription.appendText("is null");
+            context.appendText("is null");
             return false;
         }
 
 
         if (! (actual instanceof Set<?>))
         {
-            mismatchDescription.appendText("not a Set, but a ")
+            context.appendText("not a Set, but a ")
                     .appendText(actual.getClass().getName());
             return false;
         }
@@ -73,41 +106,62 @@ class SetDeepIsEqualMatcher<S> extends DiagnosingMatcher<S>
                 Set<?> actualAsSet = (Set<?>) actual;
         if (expectedSize != actualAsSet.size())
         {
-            mismatchDescription.appendText("size should be ")
+            context.appendText("size should be ")
                     .appendText(String.valueOf(expectedSize))
                     .appendText(", but is ")
                     .appendValue(actualAsSet.size());
             return false;
         }
 
-        Set<Matcher<?>> unsatisfiedMatchers = Sets.newHashSet();
-        Set<?> unmatchingElements = Sets.newHashSet(actualAsSet);
+        if (!context.isRecording())
+        {
+            return matching == Matching.PERFECT
+                ? hasPerfectMatching(actualAsSet, context)
+                : isCovered(actualAsSet, context);
+        }
 
-        lookForMatches(actualAsSet, unsatisfiedMatchers, unmatchingElements);
+        MatchContext quiet = context.quietly();
+        Set<Matcher<?>> unsatisfiedMatchers = Sets.newHashSet();
+        Collection<?> unmatchingElements;
+        if (matching == Matching.PERFECT)
+        {
+            unmatchingElements = lookForPerfectMatching(actualAsSet, unsatisfiedMatchers, quiet);
+        }
+        else if (keys == null)
+        {
+            Set<?> elements = Sets.newHashSet(actualAsSet);
+            lookForMatches(actualAsSet, unsatisfiedMatchers, elements, quiet);
+            unmatchingElements = elements;
+        }
+        else
+        {
+            unmatchingElements = lookForMatchesInBuckets(actualAsSet, unsatisfiedMatchers, quiet);
+        }
 
         if (!unsatisfiedMatchers.isEmpty())
         {
-            describeUnsatisfiedMatchers(mismatchDescription, unsatisfiedMatchers);
+            describeUnsatisfiedMatchers(context, unsatisfiedMatchers);
             if (!unmatchingElements.isEmpty())
             {
-                mismatchDescription.appendText(", and it ");
+                context.appendText(", and it ");
             }
 
         }
         if (!unmatchingElements.isEmpty())
         {
-            describeUnmatchedElements(mismatchDescription, unmatchingElements);
+            describeUnmatchedElements(context, unmatchingElements);
         }
         return unsatisfiedMatchers.isEmpty() && unmatchingElements.isEmpty();
     }
 
-    private void lookForMatches(Set<?> actualAsSet, Set<Matcher<?>> unsatisfiedMatchers, Set<?> unmatchingElements) {
+    private void lookForMatches(Set<?> actualAsSet, Set<Matcher<?>> unsatisfiedMatchers, Set<?> unmatchingElements,
+        MatchContext context) {
         for (Matcher<?> matcher : matchers)
         {
             boolean mismatchFound = true;
             for (Object element : actualAsSet)
             {
-                if (matcher.matches(element))
+                if (matchChild(matcher, element, context))
                 {
                     mismatchFound = false;
                     unmatchingElements.remove(element);
@@ -120,7 +174,199 @@ class SetDeepIsEqualMatcher<S> extends DiagnosingMatcher<S>
         }
     }
 
-    private void describeUnmatchedElements(Description mismatchDescription, Set<?> unmatchingElements) {
+    /**
+     * Same as {@link #lookForMatches(Set, Set, Set, MatchContext)}, but only tries each matcher against the elements which could
+     * possibly match it.  Keeps track of matched elements by position, so it doesn't depend on the element's
+     * {@code hashCode}.
+     *
+     * @return the elements which aren't matched by any matcher
+     */
+    private List<Object> lookForMatchesInBuckets(Set<?> actualAsSet, Set<Matcher<?>> unsatisfiedMatchers,
+        MatchContext context)
+    {
+        Object[] elements = actualAsSet.toArray();
+        boolean[] matched = new boolean[elements.length];
+        StructuralKeys.Buckets buckets = keys.bucket(elements);
+
+        for (int m = 0; m < expectedSize; m++)
+        {
+            Matcher<?> matcher = matchers.get(m);
+            Integer key = keys.keyOf(matchers.expected(m));
+            boolean mismatchFound;
+            if (key == null)
+            {
+                mismatchFound = true;
+                for (int i = 0; i < elements.length; i++)
+                {
+                    mismatchFound &= !tryMatch(matcher, elements, matched, i, context);
+                }
+            }
+            else
+            {
+                mismatchFound = !(tryMatches(matcher, elements, matched, buckets.withKey(key), context)
+                    | tryMatches(matcher, elements, matched, buckets.unkeyed(), context));
+            }
+            if (mismatchFound)
+            {
+                unsatisfiedMatchers.add(matcher);
+            }
+        }
+
+        List<Object> unmatchingElements = Lists.newArrayList();
+        for (int i = 0; i < elements.length; i++)
+        {
+            if (!matched[i])
+            {
+                unmatchingElements.add(elements[i]);
+            }
+        }
+        return unmatchingElements;
+    }
+
+    /**
+     * Checks that every matcher matches some element and every element is matched by some matcher, stopping at the
+     * first matcher that doesn't match anything.  Once a matcher has matched an element, it is only tried against the
+     * elements no matcher has matched yet.
+     */
+    private boolean isCovered(Set<?> actualAsSet, MatchContext context)
+    {
+        Object[] elements = actualAsSet.toArray();
+        boolean[] matched = new boolean[elements.length];
+        StructuralKeys.Buckets buckets = keys == null ? null : keys.bucket(elements);
+        for (int m = 0; m < expectedSize; m++)
+        {
+            Matcher<?> matcher = matchers.get(m);
+            boolean found = false;
+            if (buckets == null)
+            {
+                for (int i = 0; i < elements.length; i++)
+                {
+                    found |= tryCover(matcher, elements, matched, i, found, context);
+                }
+            }
+            else
+            {
+                for (int i : buckets.candidates(keys.keyOf(matchers.expected(m))))
+                {
+                    found |= tryCover(matcher, elements, matched, i, found, context);
+                }
+            }
+            if (!found)
+            {
+                return false;
+            }
+        }
+        for (boolean elementMatched : matched)
+        {
+            if (!elementMatched)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryCover(Matcher<?> matcher, Object[] elements, boolean[] matched, int index, boolean found,
+        MatchContext context)
+    {
+        return (!found || !matched[index]) && tryMatch(matcher, elements, matched, index, context);
+    }
+
+    /**
+     * Checks that each matcher matches a different element, without working out which ones don't.
+     */
+    private boolean hasPerfectMatching(Set<?> actualAsSet, final MatchContext context)
+    {
+        final Object[] elements = actualAsSet.toArray();
+        final List<Matcher<?>> matcherList = Lists.newArrayListWithCapacity(expectedSize);
+        int[][] candidates = candidatesOf(elements, matcherList);
+        return BipartiteMatching.perfect(candidates, elements.length, new BipartiteMatching.Edges()
+        {
+            public boolean connected(int matcher, int element)
+            {
+                return matchChild(matcherList.get(matcher), elements[element], context);
+            }
+        });
+    }
+
+    /**
+     * Works out which elements each matcher could match, adding the matchers to {@code matcherList} in the same order.
+     */
+    private int[][] candidatesOf(Object[] elements, List<Matcher<?>> matcherList)
+    {
+        StructuralKeys.Buckets buckets = keys == null
+            ? StructuralKeys.Buckets.unkeyed(elements.length)
+            : keys.bucket(elements);
+        int[][] candidates = new int[expectedSize][];
+        for (int m = 0; m < expectedSize; m++)
+        {
+            candidates[m] = buckets.candidates(keys == null ? null : keys.keyOf(matchers.expected(m)));
+            matcherList.add(matchers.get(m));
+        }
+        return candidates;
+    }
+
+    /**
+     * Finds a maximum matching between the matchers and the elements.
+     *
+     * @return the elements which aren't matched in the maximum matching
+     */
+    private List<Object> lookForPerfectMatching(Set<?> actualAsSet, Set<Matcher<?>> unsatisfiedMatchers,
+        final MatchContext context)
+    {
+        final Object[] elements = actualAsSet.toArray();
+        final List<Matcher<?>> matcherList = Lists.newArrayListWithCapacity(expectedSize);
+        int[][] candidates = candidatesOf(elements, matcherList);
+
+        BipartiteMatching perfectMatching = BipartiteMatching.maximum(candidates, elements.length,
+            new BipartiteMatching.Edges()
+            {
+                public boolean connected(int matcher, int element)
+                {
+                    return matchChild(matcherList.get(matcher), elements[element], context);
+                }
+            });
+
+        for (int i = 0; i < matcherList.size(); i++)
+        {
+            if (!perfectMatching.isLeftMatched(i))
+            {
+                unsatisfiedMatchers.add(matcherList.get(i));
+            }
+        }
+        List<Object> unmatchingElements = Lists.newArrayList();
+        for (int i = 0; i < elements.length; i++)
+        {
+            if (!perfectMatching.isRightMatched(i))
+            {
+                unmatchingElements.add(elements[i]);
+            }
+        }
+        return unmatchingElements;
+    }
+
+    private boolean tryMatches(Matcher<?> matcher, Object[] elements, boolean[] matched, List<Integer> candidates,
+        MatchContext context)
+    {
+        boolean anyMatched = false;
+        for (int i : candidates)
+        {
+            anyMatched |= tryMatch(matcher, elements, matched, i, context);
+        }
+        return anyMatched;
+    }
+
+    private boolean tryMatch(Matcher<?> matcher, Object[] elements, boolean[] matched, int index, MatchContext context)
+    {
+        if (matchChild(matcher, elements[index], context))
+        {
+            matched[index] = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void describeUnmatchedElements(Description mismatchDescription, Collection<?> unmatchingElements) {
         mismatchDescription.appendText("contains these unmatched elements: ");
         mismatchDescription.appendValueList("[", ", ", "]", unmatchingElements);
     }
@@ -131,6 +377,12 @@ class SetDeepIsEqualMatcher<S> extends DiagnosingMatcher<S>
         mismatchDescription.appendList("[", ", ", "]", unsatisfiedMatchers);
     }
 
+    @Override
+    Iterable<? extends Matcher<?>> childMatchers()
+    {
+        return matchers;
+    }
+
     public void describeTo(Description desc)
     {
         desc.appendText("[");
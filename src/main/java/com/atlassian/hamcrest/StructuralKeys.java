@@ -0,0 +1,263 @@
+package com.atlassian.hamcrest;
+
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Primitives;
+
+/**
+ * Computes cheap hash keys for values, such that two values which are deeply equal always have the same key.  Matchers
+ * for unordered collections use the keys to only deeply compare elements which might be equal.
+ *
+ * <ul>
+ * <li>Values compared with {@link MatcherFactories#isEqual()} are keyed by their {@code hashCode}.</li>
+ * <li>Values compared reflectively are keyed by their exact class and the values of their leaf fields.  Leaf fields are
+ * the primitive fields and the fields of a {@code final} type that is compared with {@code isEqual()}, such as
+ * {@code String}s.  Other fields are left out, so looking up a key never follows references.</li>
+ * <li>Any other value has no key, and has to be compared against everything.</li>
+ * </ul>
+ *
+ * This relies on the {@code equals} and {@code hashCode} methods of the types compared with {@code isEqual()} being
+ * consistent, just like putting them in a {@code HashSet} does.
+ *
+ * <p>The {@linkplain #valueKeyOf(Object) value keys} only key the JDK value types whose {@code equals} and
+ * {@code hashCode} are known to be consistent: {@code String}s, the primitive wrappers and enums.  They are safe to
+ * use without the caller opting in.
+ */
+final class StructuralKeys
+{
+    private final ResolvingMatcherFactory resolver;
+
+    private final LoadingCache<Class<?>, FieldAccessor[]> leafFields = CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Class<?>, FieldAccessor[]>()
+        {
+            @Override
+            public FieldAccessor[] load(Class<?> type)
+            {
+                return leafFieldsOf(ClassMatchPlan.of(type));
+            }
+        });
+
+    /**
+     * @param resolver the factory whose choice of {@code MatcherFactory} for each type decides how values are keyed
+     */
+    StructuralKeys(ResolvingMatcherFactory resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Returns the key of a value, or {@code null} if the value has no key and might be equal to anything.
+     *
+     * @param value the value to compute the key of
+     * @return the key of the value, or {@code null}
+     */
+    Integer keyOf(Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        Class<?> type = value.getClass();
+        MatcherFactory factory = resolver.factoryFor(type);
+        if (factory == MatcherFactories.isEqual() && !type.isArray())
+        {
+            return value.hashCode();
+        }
+        else if (factory instanceof ReflectiveEqualFactory)
+        {
+            int key = type.hashCode();
+            for (FieldAccessor accessor : leafFields.getUnchecked(type))
+            {
+                Object fieldValue = accessor.get(value);
+                key = 31 * key + (fieldValue == null ? 0 : fieldValue.hashCode());
+            }
+            return key;
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key of a value if it is a {@code String}, a primitive wrapper or an enum compared with
+     * {@link MatcherFactories#isEqual()}, or {@code null} if it is anything else.
+     *
+     * @param value the value to compute the key of
+     * @return the key of the value, or {@code null}
+     */
+    Integer valueKeyOf(Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        Class<?> type = value.getClass();
+        if ((type == String.class || Primitives.isWrapperType(type) || value instanceof Enum<?>)
+            && resolver.factoryFor(type) == MatcherFactories.isEqual())
+        {
+            return value.hashCode();
+        }
+        return null;
+    }
+
+    /**
+     * Groups the positions of values by their keys.
+     *
+     * @param values the values to group
+     * @return the positions of the values, grouped by key
+     */
+    Buckets bucket(Object[] values)
+    {
+        Buckets buckets = new Buckets(values.length);
+        for (int i = 0; i < values.length; i++)
+        {
+            buckets.add(keyOf(values[i]), i);
+        }
+        return buckets;
+    }
+
+    /**
+     * Groups the positions of values by their {@linkplain #valueKeyOf(Object) value keys}.
+     *
+     * @param values the values to group
+     * @return the positions of the values, grouped by value key
+     */
+    Buckets bucketValues(Object[] values)
+    {
+        Buckets buckets = new Buckets(values.length);
+        for (int i = 0; i < values.length; i++)
+        {
+            buckets.add(valueKeyOf(values[i]), i);
+        }
+        return buckets;
+    }
+
+    private FieldAccessor[] leafFieldsOf(ClassMatchPlan plan)
+    {
+        List<FieldAccessor> leaves = Lists.newArrayList();
+        for (int i = 0; i < plan.fieldCount(); i++)
+        {
+            Class<?> type = plan.field(i).getType();
+            if (type.isPrimitive())
+            {
+                type = Primitives.wrap(type);
+            }
+            else if (!Modifier.isFinal(type.getModifiers()))
+            {
+                // values could be of a subclass which is compared some other way
+                continue;
+            }
+            if (resolver.factoryFor(type) == MatcherFactories.isEqual() && !type.isArray())
+            {
+                leaves.add(plan.accessor(i));
+            }
+        }
+        return leaves.toArray(new FieldAccessor[leaves.size()]);
+    }
+
+    /**
+     * Positions of values grouped by their keys.  Values with no key are kept apart, since they could be equal to a
+     * value with any key.
+     */
+    static final class Buckets
+    {
+        private final Map<Integer, List<Integer>> byKey = Maps.newHashMap();
+        private final List<Integer> unkeyed = Lists.newArrayList();
+        private final int size;
+
+        private Buckets(int size)
+        {
+            this.size = size;
+        }
+
+        /**
+         * Returns buckets for values which have no keys, so every value is a candidate for everything.
+         *
+         * @param size the number of values
+         * @return buckets where all the values have no key
+         */
+        static Buckets unkeyed(int size)
+        {
+            Buckets buckets = new Buckets(size);
+            for (int i = 0; i < size; i++)
+            {
+                buckets.add(null, i);
+            }
+            return buckets;
+        }
+
+        private void add(Integer key, int position)
+        {
+            if (key == null)
+            {
+                unkeyed.add(position);
+                return;
+            }
+            List<Integer> bucket = byKey.get(key);
+            if (bucket == null)
+            {
+                bucket = Lists.newArrayList();
+                byKey.put(key, bucket);
+            }
+            bucket.add(position);
+        }
+
+        /**
+         * Returns the positions of the values with the given key, which doesn't include the values with no key.
+         */
+        List<Integer> withKey(Integer key)
+        {
+            List<Integer> bucket = byKey.get(key);
+            return bucket == null ? Collections.<Integer>emptyList() : bucket;
+        }
+
+        /**
+         * Returns the positions of the values with no key.
+         */
+        List<Integer> unkeyed()
+        {
+            return unkeyed;
+        }
+
+        /**
+         * Returns the positions of all the values which could be equal to a value with the given key: the values with
+         * the same key and the values with no key, or every value if {@code key} is {@code null}.
+         */
+        int[] candidates(Integer key)
+        {
+            int[] candidates;
+            if (key == null)
+            {
+                candidates = new int[size];
+                for (int i = 0; i < size; i++)
+                {
+                    candidates[i] = i;
+                }
+                return candidates;
+            }
+            List<Integer> bucket = withKey(key);
+            candidates = new int[bucket.size() + unkeyed.size()];
+            int i = 0;
+            for (int position : bucket)
+            {
+                candidates[i++] = position;
+            }
+            for (int position : unkeyed)
+            {
+                candidates[i++] = position;
+            }
+            return candidates;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.atlassian.hamcrest;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A persistent array implementation based on a 32-way trie, whose versions share every node on which they don't
+ * differ.  Unlike a {@link DiffPersistentArray}, any version can be read in O(log<sub>32</sub> n) steps without
+ * rerooting, so several versions which are read in turn don't slow each other down.  Setting an element copies the
+ * nodes on the path to it, which is a few dozen references for all but huge arrays.
+ *
+ * <p>Subtrees which haven't had anything set in them are left out until they are needed, so a new array only costs its
+ * root.  A {@link Transient} marks the nodes it copies as its own and changes them in place from then on, so a batch of
+ * {@code set}s copies each node at most once.
+ */
+public final class TriePersistentArray<E> implements PersistentArray<E>
+{
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final class Node
+    {
+        /**
+         * The transient which created this node and may still change it, or {@code null} if nothing may.
+         */
+        final Object edit;
+        final Object[] children;
+
+        Node(Object edit, Object[] children)
+        {
+            this.edit = edit;
+            this.children = children;
+        }
+    }
+
+    private final int size;
+
+    /**
+     * How far to shift an index right to get the child of the root it is under.  Leaves are at shift {@code 0}.
+     */
+    private final int shift;
+    private final Node root;
+
+    public TriePersistentArray(int size)
+    {
+        this(checkedSize(size), shiftFor(size), null);
+    }
+
+    public TriePersistentArray(int size, Function<Integer, E> initFun)
+    {
+        this(checkedSize(size), shiftFor(size), fill(null, shiftFor(size), 0, size, initFun));
+    }
+
+    private TriePersistentArray(int size, int shift, Node root)
+    {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    private static int checkedSize(int size)
+    {
+        Preconditions.checkArgument(size > 0, "Size must be > 0");
+        return size;
+    }
+
+    private static int shiftFor(int size)
+    {
+        int shift = 0;
+        while (size > (1L << (shift + BITS)))
+        {
+            shift += BITS;
+        }
+        return shift;
+    }
+
+    public E get(int index)
+    {
+        Preconditions.checkElementIndex(index, size);
+        return TriePersistentArray.<E>elementAt(root, shift, index);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public PersistentArray<E> set(int index, E value)
+    {
+        Preconditions.checkElementIndex(index, size);
+        return new TriePersistentArray<E>(size, shift, setIn(root, shift, index, value, null));
+    }
+
+    public PersistentArray<E> resize(int newSize)
+    {
+        return resize(newSize, null);
+    }
+
+    /**
+     * Returns a version of the given size.  Elements past the size of this version are left out of the trie, or are
+     * filled in with {@code initFun} if it isn't {@code null}.
+     */
+    public PersistentArray<E> resize(int newSize, Function<Integer, E> initFun)
+    {
+        checkedSize(newSize);
+        int newShift = shiftFor(newSize);
+        Node newRoot = root;
+        int oldShift = shift;
+        for (; oldShift > newShift; oldShift -= BITS)
+        {
+            newRoot = newRoot == null ? null : (Node) newRoot.children[0];
+        }
+        for (; oldShift < newShift; oldShift += BITS)
+        {
+            if (newRoot != null)
+            {
+                Object[] children = new Object[WIDTH];
+                children[0] = newRoot;
+                newRoot = new Node(null, children);
+            }
+        }
+        if (newSize < size)
+        {
+            newRoot = truncate(newRoot, newShift, newSize - 1);
+        }
+        else if (initFun != null)
+        {
+            newRoot = fill(newRoot, newShift, size, newSize, initFun);
+        }
+        return new TriePersistentArray<E>(newSize, newShift, newRoot);
+    }
+
+    public Iterator<E> iterator()
+    {
+        return new Iterator<E>()
+        {
+            private int index;
+            private Object[] leaf;
+
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @SuppressWarnings("unchecked")
+            public E next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                if ((index & MASK) == 0)
+                {
+                    leaf = leafFor(root, shift, index);
+                }
+                E element = leaf == null ? null : (E) leaf[index & MASK];
+                index++;
+                return element;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Transient<E> asTransient()
+    {
+        return new TrieTransient();
+    }
+
+    @Override
+    public String toString()
+    {
+        return Iterables.toString(this);
+    }
+
+    /**
+     * Copies the nodes it changes as it goes, unless it created them itself, in which case it changes them in place.
+     */
+    private final class TrieTransient implements Transient<E>
+    {
+        private Object edit = new Object();
+        private Node transientRoot = root;
+
+        public E get(int index)
+        {
+            checkActive();
+            Preconditions.checkElementIndex(index, size);
+            return TriePersistentArray.<E>elementAt(transientRoot, shift, index);
+        }
+
+        public Transient<E> set(int index, E value)
+        {
+            checkActive();
+            Preconditions.checkElementIndex(index, size);
+            transientRoot = setIn(transientRoot, shift, index, value, edit);
+            return this;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Returns the version with the changes made so far.  Nothing can change the nodes this transient created
+         * afterwards, as only it knows the object which marks them as its own.
+         */
+        public PersistentArray<E> persistent()
+        {
+            checkActive();
+            edit = null;
+            return new TriePersistentArray<E>(size, shift, transientRoot);
+        }
+
+        private void checkActive()
+        {
+            Preconditions.checkState(edit != null, "Transient used after persistent()");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E elementAt(Node root, int shift, int index)
+    {
+        Object[] leaf = leafFor(root, shift, index);
+        return leaf == null ? null : (E) leaf[index & MASK];
+    }
+
+    /**
+     * Returns the elements of the leaf holding the index, or {@code null} if the leaf was left out.
+     */
+    private static Object[] leafFor(Node root, int shift, int index)
+    {
+        Node node = root;
+        for (int level = shift; node != null && level > 0; level -= BITS)
+        {
+            node = (Node) node.children[(index >>> level) & MASK];
+        }
+        return node == null ? null : node.children;
+    }
+
+    /**
+     * Returns the node with the element at the index set, which is the same node if the given transient created it,
+     * and a copy otherwise.  There is no recursion deeper than the trie, which is never more than seven levels.
+     */
+    private static Node setIn(Node node, int level, int index, Object value, Object edit)
+    {
+        Node editable = editable(node, edit);
+        if (level == 0)
+        {
+            editable.children[index & MASK] = value;
+        }
+        else
+        {
+            int child = (index >>> level) & MASK;
+            editable.children[child] = setIn((Node) editable.children[child], level - BITS, index, value, edit);
+        }
+        return editable;
+    }
+
+    private static Node editable(Node node, Object edit)
+    {
+        if (node == null)
+        {
+            return new Node(edit, new Object[WIDTH]);
+        }
+        if (edit != null && node.edit == edit)
+        {
+            return node;
+        }
+        return new Node(edit, node.children.clone());
+    }
+
+    /**
+     * Returns the trie with everything past the last index left out.
+     */
+    private static Node truncate(Node node, int level, int last)
+    {
+        if (node == null)
+        {
+            return null;
+        }
+        int child = (last >>> level) & MASK;
+        Object[] children = new Object[WIDTH];
+        System.arraycopy(node.children, 0, children, 0, child + 1);
+        if (level > 0)
+        {
+            children[child] = truncate((Node) children[child], level - BITS, last);
+        }
+        return new Node(null, children);
+    }
+
+    /**
+     * Returns the trie with the elements from {@code from} up to {@code to} set by {@code initFun}.
+     */
+    private static <E> Node fill(Node root, int shift, int from, int to, Function<Integer, E> initFun)
+    {
+        Object edit = new Object();
+        Node filled = root;
+        for (int i = from; i < to; i++)
+        {
+            filled = setIn(filled, shift, i, initFun.apply(i), edit);
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,121 @@
+package com.atlassian.hamcrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Chooses the {@link FieldAccessor} backend.  This is the Java 9 version.  On Java 15 and later, where hidden classes
+ * are available, each field is read by a hidden class copied from {@link VarHandleFieldAccessor}, holding the
+ * field's {@link VarHandle} in a {@code static final} field.  A hidden class is unloaded along with its accessor, so
+ * the accessors don't keep the classes they read from loaded.
+ *
+ * <p>On older JVMs, and for any field a {@code VarHandle} can't be created for, the reflective backend is used.
+ * Setting the system property {@code com.atlassian.hamcrest.fieldAccess} to {@code reflection} uses it for every
+ * field.
+ */
+final class FieldAccessors
+{
+    private static final boolean USE_REFLECTION =
+        "reflection".equals(System.getProperty("com.atlassian.hamcrest.fieldAccess"));
+
+    /**
+     * {@code Lookup.defineHiddenClass}, or {@code null} if this JVM doesn't have hidden classes.
+     */
+    private static final Method DEFINE_HIDDEN_CLASS = defineHiddenClassMethod();
+    private static final byte[] TEMPLATE = DEFINE_HIDDEN_CLASS == null ? null : template();
+
+    /**
+     * The handle for the accessor class being initialized.  Only set while holding the lock on this class.
+     */
+    private static VarHandle pendingHandle;
+
+    private FieldAccessors() {}
+
+    /**
+     * Creates the accessor for a field.  The field must already have been made accessible.
+     *
+     * @param field field to read
+     * @return {@code FieldAccessor} for the field
+     */
+    static FieldAccessor forField(Field field)
+    {
+        if (!USE_REFLECTION && DEFINE_HIDDEN_CLASS != null)
+        {
+            try
+            {
+                MethodHandles.Lookup lookup =
+                    MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+                return newVarHandleAccessor(field, lookup.unreflectVarHandle(field));
+            }
+            catch (IllegalAccessException e)
+            {
+                // the declaring class's module isn't open to us, fall through to reflection
+            }
+        }
+        return new ReflectiveFieldAccessor(field);
+    }
+
+    /**
+     * Returns the handle for the accessor class being initialized.  Called from the static initializer of the copies
+     * of {@link VarHandleFieldAccessor}.
+     */
+    static VarHandle pendingHandle()
+    {
+        return pendingHandle;
+    }
+
+    private static Method defineHiddenClassMethod()
+    {
+        try
+        {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                byte[].class, boolean.class, Array.newInstance(classOption, 0).getClass());
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e)
+        {
+            // hidden classes came in Java 15
+            return null;
+        }
+    }
+
+    private static byte[] template()
+    {
+        try (InputStream in = FieldAccessors.class.getResourceAsStream("VarHandleFieldAccessor.class"))
+        {
+            return in.readAllBytes();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Couldn't read the field accessor template", e);
+        }
+    }
+
+    private static synchronized FieldAccessor newVarHandleAccessor(Field field, VarHandle handle)
+    {
+        pendingHandle = handle;
+        try
+        {
+            Object noOptions = Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+            MethodHandles.Lookup accessorClass = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+                MethodHandles.lookup(), TEMPLATE, true, noOptions);
+            return (FieldAccessor) accessorClass
+                .findConstructor(accessorClass.lookupClass(), MethodType.methodType(void.class, Field.class))
+                .invoke(field);
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException("Couldn't create the accessor for " + field, e);
+        }
+        finally
+        {
+            pendingHandle = null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.atlassian.hamcrest;
+
+import java.util.Arrays;
+
+/**
+ * Scans of primitive arrays.  This is the Java 9 version, which uses {@link Arrays#mismatch}.  The JIT turns it into
+ * vectorized compares, so equal stretches of large arrays are skipped many elements at a time.
+ */
+final class PrimitiveArrays
+{
+    private PrimitiveArrays() {}
+
+    /**
+     * Finds the first index, starting at {@code from}, where two primitive arrays of the same type and length hold
+     * different values.  Floating point values are compared the same way as the wrapper types' {@code equals} does.
+     *
+     * @param expected the expected array
+     * @param actual the actual array, of the same type and length as {@code expected}
+     * @param from the index to start looking at
+     * @return the index of the first difference, or {@code -1} if the arrays are the same from {@code from} on
+     */
+    static int mismatch(Object expected, Object actual, int from)
+    {
+        if (expected instanceof boolean[])
+        {
+            int length = ((boolean[]) expected).length;
+            return offset(from, Arrays.mismatch((boolean[]) expected, from, length, (boolean[]) actual, from, length));
+        }
+        else if (expected instanceof byte[])
+        {
+            int length = ((byte[]) expected).length;
+            return offset(from, Arrays.mismatch((byte[]) expected, from, length, (byte[]) actual, from, length));
+        }
+        else if (expected instanceof short[])
+        {
+            int length = ((short[]) expected).length;
+            return offset(from, Arrays.mismatch((short[]) expected, from, length, (short[]) actual, from, length));
+        }
+        else if (expected instanceof int[])
+        {
+            int length = ((int[]) expected).length;
+            return offset(from, Arrays.mismatch((int[]) expected, from, length, (int[]) actual, from, length));
+        }
+        else if (expected instanceof long[])
+        {
+            int length = ((long[]) expected).length;
+            return offset(from, Arrays.mismatch((long[]) expected, from, length, (long[]) actual, from, length));
+        }
+        else if (expected instanceof float[])
+        {
+            int length = ((float[]) expected).length;
+            return offset(from, Arrays.mismatch((float[]) expected, from, length, (float[]) actual, from, length));
+        }
+        else if (expected instanceof double[])
+        {
+            int length = ((double[]) expected).length;
+            return offset(from, Arrays.mismatch((double[]) expected, from, length, (double[]) actual, from, length));
+        }
+        else if (expected instanceof char[])
+        {
+            int length = ((char[]) expected).length;
+            return offset(from, Arrays.mismatch((char[]) expected, from, length, (char[]) actual, from, length));
+        }
+        else
+        {
+            throw new InternalError("Umm... did you add a new primitive type to Java or something?");
+        }
+    }
+
+    private static int offset(int from, int mismatch)
+    {
+        return mismatch < 0 ? -1 : from + mismatch;
+    }
+}
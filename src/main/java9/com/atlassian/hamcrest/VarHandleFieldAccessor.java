@@ -0,0 +1,55 @@
+package com.atlassian.hamcrest;
+
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+
+/**
+ * The template {@link FieldAccessors} copies the accessor for each field from.  This class is never used itself.  Each
+ * copy is a hidden class of its own, whose handle and kind are {@code static final}, so the JIT treats them as
+ * constants and a read compiles down to a plain field load.  A {@code VarHandle} held in an instance field is called
+ * through the generic invoker instead, which is slower than {@link Field#get(Object)}.
+ *
+ * <p>Kinds are compared with {@code if}s rather than a {@code switch}, which would refer to a synthetic class of the
+ * template's.
+ */
+final class VarHandleFieldAccessor extends FieldAccessor
+{
+    private static final VarHandle HANDLE = FieldAccessors.pendingHandle();
+    private static final Kind KIND = Kind.of(HANDLE.varType());
+
+    VarHandleFieldAccessor(Field field)
+    {
+        super(field);
+    }
+
+    @Override
+    Object get(Object target)
+    {
+        return (Object) HANDLE.get(target);
+    }
+
+    @Override
+    boolean primitiveEquals(Object expected, Object actual)
+    {
+        if (KIND == Kind.BOOLEAN)
+            return (boolean) HANDLE.get(expected) == (boolean) HANDLE.get(actual);
+        else if (KIND == Kind.BYTE)
+            return (byte) HANDLE.get(expected) == (byte) HANDLE.get(actual);
+        else if (KIND == Kind.SHORT)
+            return (short) HANDLE.get(expected) == (short) HANDLE.get(actual);
+        else if (KIND == Kind.CHAR)
+            return (char) HANDLE.get(expected) == (char) HANDLE.get(actual);
+        else if (KIND == Kind.INT)
+            return (int) HANDLE.get(expected) == (int) HANDLE.get(actual);
+        else if (KIND == Kind.LONG)
+            return (long) HANDLE.get(expected) == (long) HANDLE.get(actual);
+        else if (KIND == Kind.FLOAT)
+            return Float.floatToIntBits((float) HANDLE.get(expected))
+                == Float.floatToIntBits((float) HANDLE.get(actual));
+        else if (KIND == Kind.DOUBLE)
+            return Double.doubleToLongBits((double) HANDLE.get(expected))
+                == Double.doubleToLongBits((double) HANDLE.get(actual));
+        else
+            throw new IllegalStateException(field() + " is not a primitive field");
+    }
+}
@@ -0,0 +1,80 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class BipartiteMatchingTest
+{
+    private static final BipartiteMatching.Edges ALL_CONNECTED = new BipartiteMatching.Edges()
+    {
+        public boolean connected(int left, int right)
+        {
+            return true;
+        }
+    };
+
+    @Test
+    public void assertThatMatchingFindsAugmentingPathsWhereGreedyMatchingFails()
+    {
+        BipartiteMatching matching = BipartiteMatching.maximum(new int[][] {{0, 1}, {0}}, 2, ALL_CONNECTED);
+        assertThat(matching.isLeftMatched(0), is(true));
+        assertThat(matching.isLeftMatched(1), is(true));
+    }
+
+    @Test
+    public void assertThatMatchingLeavesAsFewVerticesUnmatchedAsPossible()
+    {
+        BipartiteMatching matching = BipartiteMatching.maximum(new int[][] {{0}, {0}, {1, 2}}, 3, ALL_CONNECTED);
+        assertThat(matching.isLeftMatched(0) ^ matching.isLeftMatched(1), is(true));
+        assertThat(matching.isLeftMatched(2), is(true));
+        assertThat(matching.isRightMatched(0), is(true));
+        assertThat(matching.isRightMatched(1) ^ matching.isRightMatched(2), is(true));
+    }
+
+    @Test
+    public void assertThatEachPairIsOnlyProbedOnce()
+    {
+        final Set<Long> probes = Sets.newHashSet();
+        final boolean[] probedTwice = new boolean[1];
+        BipartiteMatching matching = BipartiteMatching.maximum(new int[][] {{0, 1, 2}, {0, 1, 2}, {0, 1, 2}}, 3,
+            new BipartiteMatching.Edges()
+            {
+                public boolean connected(int left, int right)
+                {
+                    probedTwice[0] |= !probes.add(((long) left << 32) | right);
+                    return left == right || right == 0;
+                }
+            });
+        assertThat(probedTwice[0], is(false));
+        for (int i = 0; i < 3; i++)
+        {
+            assertThat(matching.isLeftMatched(i), is(true));
+        }
+    }
+
+    @Test
+    public void assertThatLongAugmentingPathsDoNotOverflowTheStack()
+    {
+        int size = 100000;
+        int[][] candidates = new int[size][];
+        for (int i = 0; i < size - 1; i++)
+        {
+            candidates[i] = new int[] {i + 1, i};
+        }
+        candidates[size - 1] = new int[] {size - 1};
+        BipartiteMatching matching = BipartiteMatching.maximum(candidates, size, ALL_CONNECTED);
+        int matched = 0;
+        for (int i = 0; i < size; i++)
+        {
+            matched += matching.isLeftMatched(i) ? 1 : 0;
+        }
+        assertThat(matched, is(equalTo(size)));
+    }
+}
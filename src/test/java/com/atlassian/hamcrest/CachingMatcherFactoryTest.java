@@ -0,0 +1,58 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.List;
+
+import org.hamcrest.Matcher;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class CachingMatcherFactoryTest
+{
+    @Test
+    public void assertThatTheSameExpectedValueGetsTheSameMatcher()
+    {
+        CachingMatcherFactory factory = new CachingMatcherFactory(MatcherFactories.isEqual());
+        String expected = new String("value");
+        Matcher<?> first = factory.newEqualMatcher(expected, factory, null);
+        assertThat(factory.newEqualMatcher(expected, factory, null), is(sameInstance((Object) first)));
+        assertThat(factory.hits(), is(equalTo(1L)));
+        assertThat(factory.misses(), is(equalTo(1L)));
+        assertThat(factory.matchersCreated(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void assertThatEqualButDistinctExpectedValuesGetTheirOwnMatchers()
+    {
+        CachingMatcherFactory factory = new CachingMatcherFactory(MatcherFactories.isEqual());
+        Matcher<?> first = factory.newEqualMatcher(new String("value"), factory, null);
+        assertThat(factory.newEqualMatcher(new String("value"), factory, null), is(not(sameInstance((Object) first))));
+        assertThat(factory.matchersCreated(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void assertThatMatchersAreKeptAsTheTableGrows()
+    {
+        CachingMatcherFactory factory = new CachingMatcherFactory(MatcherFactories.isEqual());
+        List<Object> values = Lists.newArrayList();
+        List<Matcher<?>> matchers = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++)
+        {
+            Object value = new Object();
+            values.add(value);
+            matchers.add(factory.newEqualMatcher(value, factory, null));
+        }
+        for (int i = 0; i < values.size(); i++)
+        {
+            assertThat(factory.newEqualMatcher(values.get(i), factory, null), is(sameInstance((Object) matchers.get(i))));
+        }
+        assertThat(factory.hits(), is(equalTo(10000L)));
+        assertThat(factory.matchersCreated(), is(equalTo(10000L)));
+    }
+}
@@ -0,0 +1,129 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import org.hamcrest.Matcher;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+public class ClassMatchPlanTest
+{
+    @Test
+    public void assertThatPlanIsSharedForTheSameClass()
+    {
+        assertThat(ClassMatchPlan.of(Child.class), is(sameInstance(ClassMatchPlan.of(Child.class))));
+    }
+
+    @Test
+    public void assertThatPlanSkipsStaticAndTransientFieldsAndListsSuperclassFieldsFirst()
+    {
+        ClassMatchPlan plan = ClassMatchPlan.of(Child.class);
+        assertThat(plan.fieldCount(), is(equalTo(2)));
+        assertThat(plan.field(0).getName(), is(equalTo("inherited")));
+        assertThat(plan.field(1).getName(), is(equalTo("own")));
+    }
+
+    @Test
+    public void assertThatExactTypeCheckRejectsSubclasses()
+    {
+        ClassMatchPlan plan = ClassMatchPlan.of(Parent.class);
+        assertThat(plan.isExactType(new Parent()), is(true));
+        assertThat(plan.isExactType(new Child()), is(false));
+    }
+
+    @Test
+    public void assertThatClassesCanStillBeUnloadedOnceTheyHaveBeenCompared() throws Exception
+    {
+        WeakReference<ClassLoader> loader = compareInDiscardedClassLoader();
+        System.gc();
+        if (loader.get() != null)
+        {
+            // soft references are only cleared once memory runs short, and always before running out
+            List<byte[]> memory = Lists.newArrayList();
+            try
+            {
+                while (true)
+                {
+                    memory.add(new byte[1 << 20]);
+                }
+            }
+            catch (OutOfMemoryError e)
+            {
+                memory.clear();
+            }
+            System.gc();
+        }
+        assertThat(loader.get(), is(nullValue()));
+    }
+
+    private static WeakReference<ClassLoader> compareInDiscardedClassLoader() throws Exception
+    {
+        IsolatingClassLoader loader = new IsolatingClassLoader();
+        Class<?> type = loader.load(Unloadable.class);
+        Object expected = type.newInstance();
+        Object actual = type.newInstance();
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            Matcher<?> matcher = DeepIsEqual.deeplyEqualTo(
+                expected, ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), engine);
+            assertThat(matcher.matches(actual), is(true));
+        }
+        DeepIsEqual.deepHashCode(expected);
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    /**
+     * Defines its own copy of a class, so the copy can be unloaded along with this loader.
+     */
+    private static final class IsolatingClassLoader extends ClassLoader
+    {
+        IsolatingClassLoader()
+        {
+            super(ClassMatchPlanTest.class.getClassLoader());
+        }
+
+        Class<?> load(Class<?> original) throws Exception
+        {
+            InputStream in = getParent().getResourceAsStream(original.getName().replace('.', '/') + ".class");
+            try
+            {
+                byte[] bytes = ByteStreams.toByteArray(in);
+                return defineClass(original.getName(), bytes, 0, bytes.length);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    public static class Unloadable
+    {
+        int value = 1;
+        String name = "one";
+        long[] values = {1, 2};
+    }
+
+    static class Parent
+    {
+        static int shared;
+        int inherited;
+    }
+
+    static class Child extends Parent
+    {
+        transient int ignored;
+        int own;
+    }
+}
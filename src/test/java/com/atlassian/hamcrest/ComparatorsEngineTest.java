@@ -0,0 +1,331 @@
+package com.atlassian.hamcrest;
+
+import static com.atlassian.hamcrest.DeepIsEqual.deeplyEqualTo;
+import static com.atlassian.hamcrest.DeepIsEqualTest.chainOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
+import org.hamcrest.StringDescription;
+import org.junit.Test;
+
+import com.atlassian.hamcrest.DeepIsEqualPrimitiveFieldsTest.AllPrimitives;
+import com.atlassian.hamcrest.DeepIsEqualTest.AnythingMatcherFactory;
+import com.atlassian.hamcrest.DeepIsEqualTest.Cyclic;
+import com.atlassian.hamcrest.DeepIsEqualTest.Matrix;
+import com.atlassian.hamcrest.DeepIsEqualTest.Simple;
+import com.atlassian.hamcrest.DeepIsEqualTest.SimpleSub;
+import com.atlassian.hamcrest.DeepIsEqualTest.SimpletonListHolder;
+import com.atlassian.hamcrest.DeepIsEqualTest.SimpletonMapHolder;
+import com.atlassian.hamcrest.DeepIsEqualTest.SimpletonSetHolder;
+import com.atlassian.hamcrest.DeepIsEqualTest.SimpletonsHolder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class ComparatorsEngineTest
+{
+    private static final Simple ONE = new Simple(1, "One");
+    private static final Simple COPY_OF_ONE = new Simple(1, "One");
+    private static final Simple TWO = new Simple(2, "Two");
+    private static final Simple THREE = new Simple(3, "Three");
+
+    @Test
+    public void assertThatComparatorsEngineMatchesNull()
+    {
+        assertThat(null, is(comparatorsDeeplyEqualTo(null)));
+        assertThat(ONE, is(not(comparatorsDeeplyEqualTo(null))));
+        assertThat(null, is(not(comparatorsDeeplyEqualTo(ONE))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineMatchesSimpleObjects()
+    {
+        assertThat(ONE, is(comparatorsDeeplyEqualTo(COPY_OF_ONE)));
+        assertThat(ONE, is(not(comparatorsDeeplyEqualTo(TWO))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineDoesNotMatchSubTypes()
+    {
+        assertThat(ONE, is(not(comparatorsDeeplyEqualTo((Simple) new SimpleSub(1, "One", "One more thing")))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineComparesAllPrimitiveTypes()
+    {
+        assertThat(new AllPrimitives(), is(comparatorsDeeplyEqualTo(new AllPrimitives())));
+        assertThat(new AllPrimitives(), is(not(comparatorsDeeplyEqualTo(new AllPrimitives().with('z')))));
+        assertThat(new AllPrimitives().with(Double.NaN), is(comparatorsDeeplyEqualTo(new AllPrimitives().with(Double.NaN))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineComparesArrays()
+    {
+        assertThat(new SimpletonsHolder(ONE, TWO), is(comparatorsDeeplyEqualTo(new SimpletonsHolder(COPY_OF_ONE, TWO))));
+        assertThat(new SimpletonsHolder(ONE, TWO), is(not(comparatorsDeeplyEqualTo(new SimpletonsHolder(ONE, THREE)))));
+        assertThat(new Matrix(new int[][] {{1, 0}, {0, 1}}), is(comparatorsDeeplyEqualTo(new Matrix(new int[][] {{1, 0}, {0, 1}}))));
+        assertThat(new Matrix(new int[][] {{1, 0}, {0, 1}}), is(not(comparatorsDeeplyEqualTo(new Matrix(new int[][] {{1, 0}, {1, 1}})))));
+        assertThat((Object) new Integer[] {1, 2}, is(comparatorsDeeplyEqualTo((Object) new int[] {1, 2})));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineMatchesVeryDeepGraphsWithoutOverflowingTheStack()
+    {
+        assertThat(chainOf(50000, 7), is(comparatorsDeeplyEqualTo(chainOf(50000, 7))));
+        assertThat(chainOf(50000, 8), is(not(comparatorsDeeplyEqualTo(chainOf(50000, 7)))));
+    }
+
+    @Test
+    public void assertThatParallelEngineMatchesLargeLists()
+    {
+        assertThat(largeList(100000, 7), is(parallelDeeplyEqualTo(largeList(100000, 7))));
+        assertThat(largeList(100000, 8), is(not(parallelDeeplyEqualTo(largeList(100000, 7)))));
+    }
+
+    @Test
+    public void assertThatParallelEngineDescribesMismatchesLikeTheOtherEngines()
+    {
+        Description parallel = new StringDescription();
+        parallelDeeplyEqualTo(largeList(20000, 7)).describeMismatch(largeList(20000, 8), parallel);
+        Description sequential = new StringDescription();
+        deeplyEqualTo(largeList(20000, 7)).describeMismatch(largeList(20000, 8), sequential);
+        assertThat(parallel.toString(), is(equalTo(sequential.toString())));
+    }
+
+    @Test
+    public void assertThatParallelEngineMatchesCyclesSpreadOverManyElements()
+    {
+        assertThat(cyclesList(20000), is(parallelDeeplyEqualTo(cyclesList(20000))));
+        assertThat((Object) cyclesList(20000).toArray(), is(parallelDeeplyEqualTo((Object) cyclesList(20000).toArray())));
+    }
+
+    @Test(timeout = 60000)
+    public void assertThatParallelMatchesStartedWhileComparingARangeDoNotDeadlock()
+    {
+        Matcher<? super List<Simple>> matcher = deeplyEqualTo(largeList(ParallelComparisons.MIN_ELEMENTS, 7),
+            ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(Matchers.<Class<?>>equalTo(Simple.class),
+                new NestedParallelMatcherFactory()), DeepIsEqual.Engine.PARALLEL);
+        assertThat(matcher.matches(largeList(ParallelComparisons.MIN_ELEMENTS, 7)), is(true));
+        assertThat(matcher.matches(largeList(ParallelComparisons.MIN_ELEMENTS, 8)), is(false));
+    }
+
+    @Test
+    public void assertThatParallelEngineStopsComparingOnceARangeDiffers()
+    {
+        SlowMatcherFactory slow = new SlowMatcherFactory(100);
+        Matcher<? super List<Simple>> matcher = deeplyEqualTo(largeList(ParallelComparisons.MIN_ELEMENTS, 7),
+            ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(Matchers.<Class<?>>equalTo(Simple.class), slow),
+            DeepIsEqual.Engine.PARALLEL);
+        assertThat(matcher.matches(largeList(ParallelComparisons.MIN_ELEMENTS, 8)), is(false));
+        // the slow elements all come first, in the range compared on the calling thread
+        assertThat(slow.slowComparisons.get(), is(lessThan(100)));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineComparesCollections()
+    {
+        assertThat(new SimpletonListHolder(ONE, TWO), is(comparatorsDeeplyEqualTo(new SimpletonListHolder(COPY_OF_ONE, TWO))));
+        assertThat(new SimpletonListHolder(ONE, TWO), is(not(comparatorsDeeplyEqualTo(new SimpletonListHolder(TWO, ONE)))));
+        assertThat(new SimpletonSetHolder(ONE, TWO), is(comparatorsDeeplyEqualTo(new SimpletonSetHolder(TWO, COPY_OF_ONE))));
+        assertThat(new SimpletonSetHolder(ONE, TWO), is(not(comparatorsDeeplyEqualTo(new SimpletonSetHolder(ONE, COPY_OF_ONE)))));
+        assertThat(
+            new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("one", ONE).put("two", TWO)),
+            is(comparatorsDeeplyEqualTo(new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("two", TWO).put("one", COPY_OF_ONE)))));
+        assertThat(
+            new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("one", ONE).put("two", TWO)),
+            is(not(comparatorsDeeplyEqualTo(new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("one", TWO).put("two", ONE))))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineComparesMapsWithKeysThatAreDeeplyCompared()
+    {
+        assertThat(
+            new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put(ImmutableList.of(ONE), ONE).put("two", TWO)),
+            is(comparatorsDeeplyEqualTo(new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("two", TWO).put(ImmutableList.of(COPY_OF_ONE), ONE)))));
+        assertThat(
+            new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put(ImmutableList.of(ONE), ONE).put("two", TWO)),
+            is(not(comparatorsDeeplyEqualTo(new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("two", TWO).put(ImmutableList.of(TWO), ONE))))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineMatchesCycles()
+    {
+        Cyclic cyclic1 = new Cyclic(3);
+        cyclic1.cycle = new Cyclic(7);
+        cyclic1.cycle.cycle = cyclic1;
+        Cyclic cyclic2 = new Cyclic(3);
+        cyclic2.cycle = new Cyclic(7);
+        cyclic2.cycle.cycle = cyclic2;
+        assertThat(cyclic1, is(comparatorsDeeplyEqualTo(cyclic2)));
+
+        cyclic2.cycle.value = 8;
+        assertThat(cyclic1, is(not(comparatorsDeeplyEqualTo(cyclic2))));
+    }
+
+    @Test
+    public void assertThatComparatorsEngineUsesCustomMatcherFactories()
+    {
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(String.class), new AnythingMatcherFactory());
+        assertThat(ONE, is(deeplyEqualTo(new Simple(1, "Uno"), factories, DeepIsEqual.Engine.COMPARATORS)));
+        assertThat(ONE, is(not(deeplyEqualTo(new Simple(2, "Uno"), factories, DeepIsEqual.Engine.COMPARATORS))));
+    }
+
+    @Test
+    public void assertThatEnginesAgreeOnPrimitiveArraysWithCustomElementFactories()
+    {
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory());
+        IntsHolder expected = new IntsHolder(1, 2);
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            assertThat(engine.toString(), deeplyEqualTo(expected, factories, engine).matches(new IntsHolder(3, 4)),
+                is(true));
+            assertThat(engine.toString(), deeplyEqualTo(expected, factories, engine).matches(new IntsHolder(3)),
+                is(false));
+        }
+    }
+
+    @Test
+    public void assertThatComparatorsEngineDescribesMismatchesLikeTheMatcherTree()
+    {
+        SimpletonListHolder expected = new SimpletonListHolder(ONE, THREE);
+        SimpletonListHolder actual = new SimpletonListHolder(ONE, TWO);
+
+        Description comparators = new StringDescription();
+        comparatorsDeeplyEqualTo(expected).describeMismatch(actual, comparators);
+        Description tree = new StringDescription();
+        deeplyEqualTo(expected).describeMismatch(actual, tree);
+        assertThat(comparators.toString(), is(equalTo(tree.toString())));
+    }
+
+    private static <T> Matcher<? super T> comparatorsDeeplyEqualTo(T expected)
+    {
+        return deeplyEqualTo(expected, ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), DeepIsEqual.Engine.COMPARATORS);
+    }
+
+    private static <T> Matcher<? super T> parallelDeeplyEqualTo(T expected)
+    {
+        return deeplyEqualTo(expected, ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), DeepIsEqual.Engine.PARALLEL);
+    }
+
+    /**
+     * Returns a list of distinct but equal elements, except for the last one, whose number is {@code lastNumber}.
+     */
+    private static List<Simple> largeList(int size, int lastNumber)
+    {
+        List<Simple> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 1; i < size; i++)
+        {
+            list.add(new Simple(i, "Simple"));
+        }
+        list.add(new Simple(lastNumber, "Simple"));
+        return list;
+    }
+
+    /**
+     * Returns a list of elements which all lead to the same cycle.
+     */
+    private static List<Cyclic> cyclesList(int size)
+    {
+        Cyclic loop = new Cyclic(0);
+        loop.cycle = loop;
+        List<Cyclic> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++)
+        {
+            Cyclic element = new Cyclic(i);
+            element.cycle = loop;
+            list.add(element);
+        }
+        return list;
+    }
+
+    /**
+     * Compares {@link Simple}s by number, and for every 256th number also runs a parallel match of a list large
+     * enough to split.
+     */
+    static class NestedParallelMatcherFactory implements MatcherFactory
+    {
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            final Simple simple = (Simple) expected;
+            return new BaseMatcher<T>()
+            {
+                public boolean matches(Object actual)
+                {
+                    if (simple.number % 256 == 0
+                        && !parallelDeeplyEqualTo(largeList(ParallelComparisons.MIN_ELEMENTS, 7)).matches(
+                            largeList(ParallelComparisons.MIN_ELEMENTS, 7)))
+                    {
+                        return false;
+                    }
+                    return actual instanceof Simple && ((Simple) actual).number == simple.number;
+                }
+
+                public void describeTo(Description description)
+                {
+                    description.appendValue(simple.number);
+                }
+            };
+        }
+    }
+
+    /**
+     * Compares {@link Simple}s by number, taking a millisecond for each number below {@code slowBelow}.
+     */
+    static class SlowMatcherFactory implements MatcherFactory
+    {
+        final AtomicInteger slowComparisons = new AtomicInteger();
+        private final int slowBelow;
+
+        SlowMatcherFactory(int slowBelow)
+        {
+            this.slowBelow = slowBelow;
+        }
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            final Simple simple = (Simple) expected;
+            return new BaseMatcher<T>()
+            {
+                public boolean matches(Object actual)
+                {
+                    if (simple.number < slowBelow)
+                    {
+                        slowComparisons.incrementAndGet();
+                        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+                    }
+                    return actual instanceof Simple && ((Simple) actual).number == simple.number;
+                }
+
+                public void describeTo(Description description)
+                {
+                    description.appendValue(simple.number);
+                }
+            };
+        }
+    }
+
+    static class IntsHolder
+    {
+        final int[] xs;
+
+        IntsHolder(int... xs)
+        {
+            this.xs = xs;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.atlassian.hamcrest;
+
+import static com.atlassian.hamcrest.DeepIsEqual.deepFingerprint;
+import static com.atlassian.hamcrest.DeepIsEqual.deepHashCode;
+import static com.atlassian.hamcrest.DeepIsEqual.deeplyEqualTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+public class DeepHashingTest
+{
+    @Test
+    public void assertThatDeeplyEqualObjectsHaveTheSameHashCode()
+    {
+        assertThat(deepHashCode(new Simple(1, "one")), is(equalTo(deepHashCode(new Simple(1, "one")))));
+    }
+
+    @Test
+    public void assertThatObjectsWithDifferentFieldsHaveDifferentHashCodes()
+    {
+        assertThat(deepHashCode(new Simple(1, "one")), is(not(equalTo(deepHashCode(new Simple(2, "one"))))));
+        assertThat(deepHashCode(new Simple(1, "one")), is(not(equalTo(deepHashCode(new Simple(1, "two"))))));
+    }
+
+    @Test
+    public void assertThatPrimitiveArraysHaveTheSameHashCodeAsEqualWrapperArrays()
+    {
+        assertThat(deeplyEqualTo(new Integer[] {1, 2, 3}).matches(new int[] {1, 2, 3}), is(true));
+        assertThat(deepHashCode(new int[] {1, 2, 3}), is(equalTo(deepHashCode(new Integer[] {1, 2, 3}))));
+    }
+
+    @Test
+    public void assertThatListOrderChangesTheHashCode()
+    {
+        assertThat(deepHashCode(ImmutableList.of(1, 2)), is(not(equalTo(deepHashCode(ImmutableList.of(2, 1))))));
+    }
+
+    @Test
+    public void assertThatSetAndMapOrderDoesNotChangeTheHashCode()
+    {
+        Set<Simple> set = Sets.newLinkedHashSet(ImmutableList.of(new Simple(1, "one"), new Simple(2, "two")));
+        Set<Simple> reversed = Sets.newLinkedHashSet(ImmutableList.of(new Simple(2, "two"), new Simple(1, "one")));
+        assertThat(deepHashCode(set), is(equalTo(deepHashCode(reversed))));
+
+        Map<String, Simple> map = ImmutableMap.of("a", new Simple(1, "one"), "b", new Simple(2, "two"));
+        Map<String, Simple> reversedMap = ImmutableMap.of("b", new Simple(2, "two"), "a", new Simple(1, "one"));
+        assertThat(deepHashCode(map), is(equalTo(deepHashCode(reversedMap))));
+    }
+
+    @Test
+    public void assertThatSetsCoveringEachOtherHaveTheSameHashCode()
+    {
+        Set<Simple> twoOnes = ImmutableSet.of(new Simple(1, "one"), new Simple(1, "one"), new Simple(2, "two"));
+        Set<Simple> twoTwos = ImmutableSet.of(new Simple(1, "one"), new Simple(2, "two"), new Simple(2, "two"));
+        assertThat(deeplyEqualTo(twoOnes).matches(twoTwos), is(true));
+        assertThat(deepHashCode(twoOnes), is(equalTo(deepHashCode(twoTwos))));
+    }
+
+    @Test
+    public void assertThatCyclesOfDifferentLengthsWhichAreDeeplyEqualHaveTheSameHashCode()
+    {
+        Cyclic loop = new Cyclic(1);
+        loop.cycle = loop;
+        Cyclic pair = new Cyclic(1);
+        pair.cycle = new Cyclic(1);
+        pair.cycle.cycle = pair;
+        Cyclic leadingToLoop = new Cyclic(1);
+        leadingToLoop.cycle = loop;
+
+        assertThat(deeplyEqualTo(loop).matches(pair), is(true));
+        assertThat(deepHashCode(loop), is(equalTo(deepHashCode(pair))));
+        assertThat(deepHashCode(loop), is(equalTo(deepHashCode(leadingToLoop))));
+    }
+
+    @Test
+    public void assertThatHashingDeepGraphsDoesNotOverflowTheStack()
+    {
+        assertThat(deepHashCode(chainOf(100000, 7)), is(equalTo(deepHashCode(chainOf(100000, 7)))));
+        assertThat(deepHashCode(chainOf(100000, 7)), is(not(equalTo(deepHashCode(chainOf(100000, 8))))));
+    }
+
+    @Test
+    public void assertThatFingerprintsOfDeeplyEqualValuesAreTheSame()
+    {
+        List<Object> value = ImmutableList.<Object>of(new Simple(1, "one"), ImmutableSet.of("a", "b"), new long[] {3});
+        List<Object> equal = ImmutableList.<Object>of(new Simple(1, "one"), ImmutableSet.of("b", "a"), new Long[] {3L});
+        assertThat(deepFingerprint(value, Hashing.sha256()), is(equalTo(deepFingerprint(equal, Hashing.sha256()))));
+        assertThat(deepFingerprint(value, Hashing.sha256()).bits(), is(256));
+    }
+
+    @Test
+    public void assertThatOnlyValuesOnCyclesAreNotOutsideCycles()
+    {
+        Cyclic loop = new Cyclic(3);
+        loop.cycle = loop;
+        Cyclic middle = new Cyclic(2);
+        middle.cycle = loop;
+        Cyclic first = new Cyclic(1);
+        first.cycle = middle;
+        List<Cyclic> shared = Lists.newArrayList(first, first, middle);
+
+        DeepHashing.CycleFinder outsideCycles = hashingWith(ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), MatcherFactories.isEqual())).cycleFinder();
+        assertThat(outsideCycles.apply(shared), is(true));
+        assertThat(outsideCycles.apply(first), is(true));
+        assertThat(outsideCycles.apply(middle), is(true));
+        assertThat(outsideCycles.apply(loop), is(false));
+    }
+
+    @Test
+    public void assertThatValuesWhichReachValuesMatchedByOtherFactoriesAreNotOutsideCycles()
+    {
+        DeepHashing hashing = hashingWith(ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new DeepIsEqualTest.AnythingMatcherFactory(),
+            Matchers.<Class<?>>equalTo(String.class), MatcherFactories.isEqual()));
+        Simple simple = new Simple(1, "one");
+        List<String> strings = Lists.newArrayList("one");
+        List<Object> both = Lists.<Object>newArrayList(simple, strings);
+
+        DeepHashing.CycleFinder outsideCycles = hashing.cycleFinder();
+        assertThat(outsideCycles.apply(both), is(false));
+        assertThat(outsideCycles.apply(simple), is(false));
+        assertThat(outsideCycles.apply(strings), is(true));
+    }
+
+    @Test
+    public void assertThatFindingCyclesGivesUpOnLongWalksUntilTheLimitHasGrownEnough()
+    {
+        Cyclic chain = chainOf(DeepHashing.FIRST_WALK_LIMIT * 3, 7);
+        DeepHashing.CycleFinder outsideCycles = hashingWith(ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), MatcherFactories.isEqual())).cycleFinder();
+
+        assertThat(outsideCycles.apply(chain), is(false));
+        assertThat(outsideCycles.valuesWalked(), is(DeepHashing.FIRST_WALK_LIMIT));
+        assertThat(outsideCycles.apply(chain), is(false));
+        assertThat(outsideCycles.apply(chain), is(true));
+        assertThat(outsideCycles.apply(chain.cycle), is(true));
+        assertThat(outsideCycles.valuesWalked(), is(DeepHashing.FIRST_WALK_LIMIT * 6));
+    }
+
+    @Test
+    public void assertThatAMatchWhichFailsFastDoesNotWalkTheWholeExpectedGraph()
+    {
+        AtomicInteger walked = new AtomicInteger();
+        List<Object> parts = Lists.newArrayList();
+        for (int i = 0; i < DeepHashing.FIRST_WALK_LIMIT * 10; i++)
+        {
+            parts.add(new CountingList(walked, "part"));
+        }
+        assertThat(new PartsHolder(2, parts), is(not(deeplyEqualTo(new PartsHolder(1, parts)))));
+        assertThat(walked.get(), is(lessThanOrEqualTo(DeepHashing.FIRST_WALK_LIMIT)));
+    }
+
+    private static DeepHashing hashingWith(Map<Matcher<Class<?>>, MatcherFactory> factories)
+    {
+        return new DeepHashing(new ReflectiveObjectMatcherFactory(ImmutableList.of(
+            factories, MatcherFactories.collectionHandlingMatcherFactories())));
+    }
+
+    private static Cyclic chainOf(int length, int lastValue)
+    {
+        Cyclic first = new Cyclic(lastValue);
+        for (int i = 1; i < length; i++)
+        {
+            Cyclic previous = new Cyclic(i);
+            previous.cycle = first;
+            first = previous;
+        }
+        return first;
+    }
+
+    static class PartsHolder
+    {
+        final int value;
+        final List<Object> parts;
+
+        PartsHolder(int value, List<Object> parts)
+        {
+            this.value = value;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Counts the times its elements are copied out, which is how a walk of the graph gets them.
+     */
+    static class CountingList extends ArrayList<Object>
+    {
+        private final AtomicInteger copies;
+
+        CountingList(AtomicInteger copies, Object... elements)
+        {
+            super(Arrays.asList(elements));
+            this.copies = copies;
+        }
+
+        @Override
+        public Object[] toArray()
+        {
+            copies.incrementAndGet();
+            return super.toArray();
+        }
+    }
+
+    static class Cyclic
+    {
+        Cyclic cycle;
+        int value;
+
+        Cyclic(int value)
+        {
+            this.value = value;
+        }
+    }
+
+    static class Simple
+    {
+        final int number;
+        final String name;
+
+        Simple(int number, String name)
+        {
+            this.number = number;
+            this.name = name;
+        }
+    }
+}
@@ -8,15 +8,25 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.Matchers;
 import org.hamcrest.StringDescription;
+import org.hamcrest.TypeSafeMatcher;
 import org.junit.Test;
 
 import com.atlassian.hamcrest.DeepIsEqualPrimitiveFieldsTest.AllPrimitives;
 
+import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DeepIsEqualTest
 {
@@ -42,6 +52,20 @@ public class DeepIsEqualTest
         assertThat(null, is(not(deeplyEqualTo(ONE))));
     }
     
+    @Test
+    public void assertThatValuesAreComparedWithEquals()
+    {
+        assertThat(deeplyEqualTo(42).matches(42), is(true));
+        assertThat(deeplyEqualTo(42).matches(43), is(false));
+        assertThat(deeplyEqualTo(42).matches(42L), is(false));
+        assertThat(deeplyEqualTo(42).matches(null), is(false));
+        assertThat(deeplyEqualTo("text").matches(new StringBuilder("text").toString()), is(true));
+
+        Description description = new StringDescription();
+        deeplyEqualTo(42).describeMismatch(43, description);
+        assertThat(description.toString(), is(equalTo("was <43>")));
+    }
+
     @Test
     public void assertThatSubTypeIsNotEqualToSuperType()
     {
@@ -110,6 +134,188 @@ public class DeepIsEqualTest
         assertThat(p1, is(deeplyEqualTo(p2)));
     }
     
+    @Test
+    public void assertThatDeepIsEqualMatchesNaNPrimitiveFields()
+    {
+        assertThat(new AllPrimitives().with(Double.NaN), is(deeplyEqualTo(new AllPrimitives().with(Double.NaN))));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualDoesNotMatchZeroAndNegativeZeroPrimitiveFields()
+    {
+        assertThat(new AllPrimitives().with(-0.0f), is(not(deeplyEqualTo(new AllPrimitives().with(0.0f)))));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualUsesCustomMatcherFactoryForPrimitiveFields()
+    {
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory());
+        assertThat(ONE, is(deeplyEqualTo(new Simple(42, "One"), factories)));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualDescribesMismatchOfPrimitiveFields()
+    {
+        Description description = new StringDescription();
+        is(deeplyEqualTo(new AllPrimitives().with(60.0))).describeMismatch(new AllPrimitives(), description);
+        assertThat(description.toString(), is(equalTo("{d was <6.0>}")));
+    }
+
+    @Test
+    public void assertThatPrimitiveFieldsPastTheSixtyFourthAreComparedWithoutMatchers()
+    {
+        Map<Matcher<Class<?>>, MatcherFactory> integers = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), MatcherFactories.isEqual());
+        CachingMatcherFactory factory = new CachingMatcherFactory(
+            new ReflectiveObjectMatcherFactory(ImmutableList.of(integers)));
+        Wide expected = new Wide();
+        expected.f69 = 69;
+        Wide actual = new Wide();
+        actual.f69 = 69;
+        assertThat(factory.newEqualMatcher(expected, factory, null).matches(actual), is(true));
+        assertThat(factory.matchersCreated(), is(equalTo(1L)));
+        actual.f69 = 70;
+        assertThat(factory.newEqualMatcher(expected, factory, null).matches(actual), is(false));
+    }
+
+    @Test
+    public void assertThatCustomMatcherFactoryKeysAreOnlyCheckedOncePerClass()
+    {
+        CountingTypeMatcher simpleType = new CountingTypeMatcher(Simple.class);
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            simpleType, MatcherFactories.isEqual());
+        SimpletonListHolder s1 = new SimpletonListHolder(ONE, TWO, THREE);
+        SimpletonListHolder s2 = new SimpletonListHolder(COPY_OF_ONE, COPY_OF_TWO, new Simple(3, "Three"));
+        assertThat(s1, is(not(deeplyEqualTo(s2, factories))));
+        assertThat(simpleType.checksOfType, is(equalTo(1)));
+    }
+
+    @Test
+    public void assertThatCustomMatcherFactoryKeysAreOnlyCheckedOncePerClassAcrossMatchersUsingTheSameFactories()
+    {
+        CountingTypeMatcher simpleType = new CountingTypeMatcher(Simple.class);
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            simpleType, MatcherFactories.isEqual());
+        for (int i = 0; i < 10; i++)
+        {
+            for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+            {
+                assertThat(new SimpletonListHolder(ONE, TWO),
+                    is(not(deeplyEqualTo(new SimpletonListHolder(COPY_OF_ONE, COPY_OF_TWO), factories, engine))));
+            }
+        }
+        assertThat(simpleType.checksOfType, is(equalTo(1)));
+    }
+
+    @Test
+    public void assertThatDescribingAMismatchDoesNotCompareTheValuesAgain()
+    {
+        Cyclic expected = chainOf(20, 7);
+        Cyclic actual = chainOf(20, 8);
+        CountingEqualMatcherFactory integers = new CountingEqualMatcherFactory();
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), integers);
+        try
+        {
+            assertThat(actual, is(deeplyEqualTo(expected, factories)));
+            throw new IllegalStateException("should not match");
+        }
+        catch (AssertionError e)
+        {
+            assertThat(e.getMessage(), containsString("{value was <8>}"));
+        }
+        // matching stops at the first difference, describing the mismatch then compares every value once
+        assertThat(integers.comparisons, is(equalTo(1 + 20)));
+    }
+
+    @Test
+    public void assertThatMatchingStopsAtTheFirstDifferentElement()
+    {
+        List<Integer> expected = Lists.newArrayList();
+        List<Integer> actual = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++)
+        {
+            expected.add(i);
+            actual.add(i == 0 ? -1 : i);
+        }
+        CountingEqualMatcherFactory integers = new CountingEqualMatcherFactory();
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), integers);
+        assertThat(deeplyEqualTo(expected, factories).matches(actual), is(false));
+        assertThat(integers.comparisons, is(equalTo(1)));
+        // element matchers are only created when their position is reached
+        assertThat(integers.matchersCreated, is(equalTo(1)));
+    }
+
+    @Test
+    public void assertThatPreparedMatchersBuildEveryMatcherUpFront()
+    {
+        CountingEqualMatcherFactory integers = new CountingEqualMatcherFactory();
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), integers);
+        Matcher<? super Cyclic> prepared = DeepIsEqual.prepare(ringOf(20, 20), factories);
+        assertThat(integers.matchersCreated, is(equalTo(20)));
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertThat(prepared.matches(ringOf(20, 20)), is(true));
+            assertThat(prepared.matches(ringOf(20, 21)), is(false));
+        }
+        assertThat(integers.matchersCreated, is(equalTo(20)));
+    }
+
+    @Test
+    public void assertThatPreparedMatchersDescribeMismatchesLikeDeeplyEqualTo()
+    {
+        SimpletonMapHolder expected = new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("one", ONE).put("two", TWO));
+        SimpletonMapHolder actual = new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder().put("one", ONE).put("two", THREE));
+        Description prepared = new StringDescription();
+        DeepIsEqual.prepare(expected).describeMismatch(actual, prepared);
+        Description lazy = new StringDescription();
+        deeplyEqualTo(expected).describeMismatch(actual, lazy);
+        assertThat(prepared.toString(), is(equalTo(lazy.toString())));
+        assertThat(DeepIsEqual.prepare(expected).matches(actual), is(false));
+    }
+
+    @Test
+    public void assertThatVeryDeepGraphsAreMatchedWithoutOverflowingTheStack()
+    {
+        assertThat(chainOf(50000, 7), is(deeplyEqualTo(chainOf(50000, 7))));
+        assertThat(deeplyEqualTo(chainOf(50000, 7)).matches(chainOf(50000, 8)), is(false));
+    }
+
+    @Test
+    public void assertThatVeryDeeplyNestedMapsAreMatchedWithoutOverflowingTheStack()
+    {
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            Matcher<? super Map<String, Object>> matcher = deeplyEqualTo(nestedMaps(50000, 7),
+                ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), engine);
+            assertThat(engine.toString(), matcher.matches(nestedMaps(50000, 7)), is(true));
+            assertThat(engine.toString(), matcher.matches(nestedMaps(50000, 8)), is(false));
+        }
+    }
+
+    private static Map<String, Object> nestedMaps(int depth, int innermostValue)
+    {
+        Map<String, Object> map = ImmutableMap.<String, Object>of("value", innermostValue);
+        for (int i = 1; i < depth; i++)
+        {
+            map = ImmutableMap.<String, Object>of("nested", map);
+        }
+        return map;
+    }
+
+    @Test
+    public void assertThatMismatchesDeepInVeryDeepGraphsAreDescribedWithTheirPath()
+    {
+        Description description = new StringDescription();
+        deeplyEqualTo(chainOf(50000, 7)).describeMismatch(chainOf(50000, 8), description);
+        assertThat(description.toString(), startsWith("{cycle {cycle {cycle "));
+        assertThat(description.toString(), containsString("{cycle {value was <8>}}"));
+    }
+
     @Test
     public void assertThatDeepIsEqualMatchesArrayOfPrimitivesField()
     {
@@ -226,6 +432,93 @@ public class DeepIsEqualTest
         assertThat(description.toString(), containsString("simpletons contains these unmatched elements: "));
     }
 
+    @Test
+    public void assertThatDeepIsEqualWithHashBucketedSetMatcherMatchesSetOfCompositeObjects()
+    {
+        SimpletonSetHolder s1 = new SimpletonSetHolder(ONE, TWO, THREE);
+        SimpletonSetHolder s2 = new SimpletonSetHolder(THREE, COPY_OF_TWO, COPY_OF_ONE);
+        assertThat(s1, is(deeplyEqualTo(s2, hashBucketedSets())));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithHashBucketedSetMatcherMatchesSetsOfObjectsWithoutLeafFields()
+    {
+        Set<SimpletonSetHolder> s1 = ImmutableSet.of(new SimpletonSetHolder(ONE), new SimpletonSetHolder(TWO));
+        Set<SimpletonSetHolder> s2 = ImmutableSet.of(new SimpletonSetHolder(COPY_OF_TWO), new SimpletonSetHolder(COPY_OF_ONE));
+        Set<SimpletonSetHolder> s3 = ImmutableSet.of(new SimpletonSetHolder(ONE), new SimpletonSetHolder(THREE));
+        assertThat(s1, is(deeplyEqualTo(s2, hashBucketedSets())));
+        assertThat(s1, is(not(deeplyEqualTo(s3, hashBucketedSets()))));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithHashBucketedSetMatcherDescribesMismatch()
+    {
+        SimpletonSetHolder s1 = new SimpletonSetHolder(ONE, TWO);
+        SimpletonSetHolder s2 = new SimpletonSetHolder(TWO, THREE);
+
+        Description description = new StringDescription();
+        is(deeplyEqualTo(s2, hashBucketedSets())).describeMismatch(s1, description);
+        assertThat(description.toString(), is(equalTo("{simpletons does not match these: [{number is <3>, name is \"Three\"}], "
+            + "and it contains these unmatched elements: [<" + ONE + ">]}")));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithPerfectlyMatchedSetMatcherRequiresEachElementToMatchADifferentMatcher()
+    {
+        Set<Simple> s1 = ImmutableSet.of(new Simple(1, "x"), new Simple(2, "y"), new Simple(3, "y"));
+        Set<Simple> s2 = ImmutableSet.of(new Simple(1, "x"), new Simple(2, "x"), new Simple(3, "y"));
+        Map<Matcher<Class<?>>, MatcherFactory> covering = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory());
+        Map<Matcher<Class<?>>, MatcherFactory> perfect = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory(),
+            Matchers.typeCompatibleWith(Set.class), MatcherFactories.perfectlyMatchedSetIsDeeplyEqual());
+        assertThat(s1, is(deeplyEqualTo(s2, covering)));
+        assertThat(s1, is(not(deeplyEqualTo(s2, perfect))));
+
+        Description description = new StringDescription();
+        deeplyEqualTo(s2, perfect).describeMismatch(s1, description);
+        assertThat(description.toString(), is(equalTo("does not match these: [{number ANYTHING, name is \"x\"}], "
+            + "and it contains these unmatched elements: [<" + s1.toArray()[2] + ">]")));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithPerfectlyMatchedSetMatcherMatchesEqualSets()
+    {
+        Map<Matcher<Class<?>>, MatcherFactory> perfect = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.typeCompatibleWith(Set.class), MatcherFactories.perfectlyMatchedSetIsDeeplyEqual());
+        SimpletonSetHolder s1 = new SimpletonSetHolder(ONE, TWO, THREE);
+        assertThat(s1, is(deeplyEqualTo(new SimpletonSetHolder(THREE, COPY_OF_ONE, COPY_OF_TWO), perfect)));
+        assertThat(s1, is(not(deeplyEqualTo(new SimpletonSetHolder(THREE, COPY_OF_ONE, new Simple(4, "Four")), perfect))));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithPerfectlyMatchedMapMatcherRequiresEachEntryToMatchADifferentMatcher()
+    {
+        Map<Integer, Simple> m1 = ImmutableMap.of(1, new Simple(1, "x"), 2, new Simple(2, "y"), 3, new Simple(3, "y"));
+        Map<Integer, Simple> m2 = ImmutableMap.of(1, new Simple(1, "x"), 2, new Simple(2, "x"), 3, new Simple(3, "y"));
+        Map<Matcher<Class<?>>, MatcherFactory> covering = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory());
+        Map<Matcher<Class<?>>, MatcherFactory> perfect = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Integer.class), new AnythingMatcherFactory(),
+            Matchers.typeCompatibleWith(Map.class), MatcherFactories.perfectlyMatchedMapIsDeeplyEqual());
+        assertThat(m1, is(deeplyEqualTo(m2, covering)));
+        assertThat(m1, is(not(deeplyEqualTo(m2, perfect))));
+        Map<Integer, Simple> m3 = ImmutableMap.of(3, new Simple(3, "y"), 1, new Simple(1, "x"), 2, new Simple(2, "y"));
+        assertThat(m1, is(deeplyEqualTo(m3, perfect)));
+    }
+
+    private static Map<Matcher<Class<?>>, MatcherFactory> hashBucketedSets()
+    {
+        return ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.typeCompatibleWith(Set.class), MatcherFactories.hashBucketedSetIsDeeplyEqual());
+    }
+
+    private static Map<Matcher<Class<?>>, MatcherFactory> hashBucketedMaps()
+    {
+        return ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.typeCompatibleWith(Map.class), MatcherFactories.hashBucketedMapIsDeeplyEqual());
+    }
+
 
     @Test
     public void assertThatDeepIsEqualWithMapMatcherDoesMatchesSetOfCompositeObjects()
@@ -400,6 +693,87 @@ public class DeepIsEqualTest
         assertThat(description.toString(), containsString("simpletons contains these unmatched elements: "));
     }
 
+    @Test
+    public void assertThatDeepIsEqualWithMapMatcherMatchesLargeMapsByKey()
+    {
+        ImmutableMap.Builder<Object, Simple> expected = ImmutableMap.builder();
+        ImmutableMap.Builder<Object, Simple> actual = ImmutableMap.builder();
+        ImmutableMap.Builder<Object, Simple> different = ImmutableMap.builder();
+        for (int i = 0; i < 5000; i++)
+        {
+            expected.put("key" + i, new Simple(i, "value" + i));
+            actual.put("key" + i, new Simple(i, "value" + i));
+            different.put("key" + i, new Simple(i, i == 42 ? "forty-two" : "value" + i));
+        }
+        assertThat(new SimpletonMapHolder(actual), is(deeplyEqualTo(new SimpletonMapHolder(expected), hashBucketedMaps())));
+
+        Description description = new StringDescription();
+        is(deeplyEqualTo(new SimpletonMapHolder(expected), hashBucketedMaps()))
+            .describeMismatch(new SimpletonMapHolder(different), description);
+        assertThat(description.toString(), containsString("simpletons does not match these: [key: is \"key42\"; value: {number is <42>, name is \"value42\"}], and it contains these unmatched elements: [key42="));
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithDefaultMapMatcherOnlyTriesEntriesWithTheSameStringKey()
+    {
+        ImmutableMap.Builder<String, Simple> expected = ImmutableMap.builder();
+        ImmutableMap.Builder<String, Simple> different = ImmutableMap.builder();
+        for (int i = 0; i < 1000; i++)
+        {
+            expected.put("key" + i, new Simple(i, "value" + i));
+            different.put("key" + i, new Simple(i, i == 42 ? "forty-two" : "value" + i));
+        }
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            KeyCountingMap<String, Simple> actual = new KeyCountingMap<String, Simple>(expected.build());
+            assertThat(engine.toString(), deeplyEqualTo(expected.build(),
+                ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), engine).matches(actual), is(true));
+            assertThat(engine.toString(), actual.keyReads, is(lessThanOrEqualTo(2 * actual.size())));
+        }
+
+        KeyCountingMap<String, Simple> actual = new KeyCountingMap<String, Simple>(different.build());
+        Description description = new StringDescription();
+        deeplyEqualTo(expected.build()).describeMismatch(actual, description);
+        assertThat(description.toString(), containsString("does not match these: [key: is \"key42\"; value: {number is <42>, name is \"value42\"}], and it contains these unmatched elements: [key42="));
+        assertThat(actual.keyReads, is(lessThanOrEqualTo(4 * actual.size())));
+    }
+
+    @Test
+    public void assertThatOnlyHashBucketedMapMatcherReliesOnConsistentKeyHashCodes()
+    {
+        Map<CaseInsensitiveKey, Integer> lower = ImmutableMap.of(new CaseInsensitiveKey("a"), 1);
+        Map<CaseInsensitiveKey, Integer> upper = ImmutableMap.of(new CaseInsensitiveKey("A"), 1);
+        Map<Matcher<Class<?>>, MatcherFactory> byEquals = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(CaseInsensitiveKey.class), MatcherFactories.isEqual());
+        Map<Matcher<Class<?>>, MatcherFactory> bucketed = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(CaseInsensitiveKey.class), MatcherFactories.isEqual(),
+            Matchers.typeCompatibleWith(Map.class), MatcherFactories.hashBucketedMapIsDeeplyEqual());
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            assertThat(engine.toString(), deeplyEqualTo(lower, byEquals, engine).matches(upper), is(true));
+            assertThat(engine.toString(), deeplyEqualTo(lower, bucketed, engine).matches(upper), is(false));
+        }
+    }
+
+    @Test
+    public void assertThatDeepIsEqualWithMapMatcherMatchesMapsWithKeysThatAreDeeplyCompared()
+    {
+        SimpletonMapHolder s1 = new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder()
+                .put(ImmutableList.of(ONE), ONE)
+                .put("two", TWO)
+        );
+        SimpletonMapHolder s2 = new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder()
+                .put("two", COPY_OF_TWO)
+                .put(Lists.newArrayList(COPY_OF_ONE), COPY_OF_ONE)
+        );
+        SimpletonMapHolder s3 = new SimpletonMapHolder(ImmutableMap.<Object, Simple>builder()
+                .put("two", COPY_OF_TWO)
+                .put(Lists.newArrayList(TWO), COPY_OF_ONE)
+        );
+        assertThat(s1, is(deeplyEqualTo(s2)));
+        assertThat(s1, is(not(deeplyEqualTo(s3))));
+    }
+
     @Test
     public void assertThatDeepIsEqualWithListMatcherDoesMatchListOfCompositeObjects()
     {
@@ -483,6 +857,39 @@ public class DeepIsEqualTest
         assertThat(identity, is(deeplyEqualTo(copyOfIdentity)));
     }
 
+    @Test
+    public void assertThatMismatchedPrimitiveArraysListTheDifferingIndexRanges()
+    {
+        Matrix identity = new Matrix(new int[][] { { 1, 0, 0, 0, 0 }, { 0, 1, 0, 0, 0 } });
+        Matrix other = new Matrix(new int[][] { { 1, 0, 0, 0, 0 }, { 2, 2, 0, 2, 0 } });
+        Description description = new StringDescription();
+        deeplyEqualTo(identity).describeMismatch(other, description);
+        assertThat(description.toString(), is(equalTo("{values [[<1>] => differs at indexes 0..1, 3]}")));
+    }
+
+    @Test
+    public void assertThatPrimitiveArraysMatchArraysOfTheirWrappers()
+    {
+        assertThat((Object) new Double[] {1.0, Double.NaN}, is(deeplyEqualTo((Object) new double[] {1.0, Double.NaN})));
+        assertThat((Object) new Double[] {1.0, 2.0}, is(not(deeplyEqualTo((Object) new double[] {1.0, Double.NaN}))));
+    }
+
+    @Test
+    public void assertThatLargePrimitiveArraysOnlyDescribeTheFirstRanges()
+    {
+        byte[] expected = new byte[4000000];
+        byte[] actual = new byte[4000000];
+        assertThat(actual, is(deeplyEqualTo(expected)));
+        for (int i = 0; i < 12; i++)
+        {
+            actual[i * 100000] = 1;
+        }
+        Description description = new StringDescription();
+        deeplyEqualTo(expected).describeMismatch(actual, description);
+        assertThat(description.toString(), is(equalTo("differs at indexes 0, 100000, 200000, 300000, 400000, 500000, "
+            + "600000, 700000, 800000, 900000 and 2 more ranges")));
+    }
+
     @Test
     public void assertThatDeepIsEqualMatchesCyclicSingletons()
     {
@@ -527,6 +934,66 @@ public class DeepIsEqualTest
         assertThat(cyclic1, is(not(deeplyEqualTo(cyclic2))));
     }
 
+    @Test
+    public void assertThatDeepIsEqualDoesNotMatchDistinctCyclicPairsThroughSets()
+    {
+        CyclicSetNode expected = cyclicSetPair(1, 1);
+        CyclicSetNode actual = cyclicSetPair(1, 2);
+
+        assertThat(deeplyEqualTo(expected).matches(actual), is(false));
+        assertThat(deeplyEqualTo(expected).matches(cyclicSetPair(1, 1)), is(true));
+    }
+
+    private static CyclicSetNode cyclicSetPair(int first, int second)
+    {
+        CyclicSetNode a = new CyclicSetNode(first);
+        CyclicSetNode b = new CyclicSetNode(second);
+        a.next.add(b);
+        b.next.add(a);
+        return a;
+    }
+
+    @Test
+    public void assertThatOneMatcherCanBeSharedByThreadsMatchingAtTheSameTime() throws Exception
+    {
+        final Matcher<? super Cyclic> matcher = deeplyEqualTo(ringOf(1000, 1000));
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for (int i = 0; i < 400; i++)
+            {
+                final boolean equal = i % 2 == 0;
+                results.add(threads.submit(new Callable<Boolean>()
+                {
+                    public Boolean call()
+                    {
+                        return matcher.matches(ringOf(1000, equal ? 1000 : 1001)) == equal;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+            {
+                assertThat(result.get(), is(true));
+            }
+        }
+        finally
+        {
+            threads.shutdown();
+        }
+    }
+
+    private static Cyclic ringOf(int length, int lastValue)
+    {
+        Cyclic first = chainOf(length, lastValue);
+        Cyclic last = first;
+        while (last.cycle != null)
+        {
+            last = last.cycle;
+        }
+        last.cycle = first;
+        return first;
+    }
 
     private Cyclic makeCyclicPair() {
         Cyclic cyclicA = new Cyclic(3);
@@ -536,6 +1003,228 @@ public class DeepIsEqualTest
         return cyclicA;
     }
 
+    @Test
+    public void assertThatCyclesThroughCustomMatchersAreStillMatched()
+    {
+        WrapperMatcherFactory wrappers = new WrapperMatcherFactory();
+        Map<Matcher<Class<?>>, MatcherFactory> factories = ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(
+            Matchers.<Class<?>>equalTo(Wrapper.class), wrappers);
+        for (DeepIsEqual.Engine engine : DeepIsEqual.Engine.values())
+        {
+            assertThat(engine.toString(), deeplyEqualTo(wrappedNode(1), factories, engine).matches(wrappedNode(1)),
+                is(true));
+            assertThat(engine.toString(), deeplyEqualTo(wrappedNode(1), factories, engine).matches(wrappedNode(2)),
+                is(false));
+        }
+        StringDescription mismatch = new StringDescription();
+        deeplyEqualTo(wrappedNode(1), factories).describeMismatch(wrappedNode(2), mismatch);
+        assertThat(mismatch.toString(), containsString("value was <2>"));
+        assertThat(wrappers.equivalences, is(notNullValue()));
+    }
+
+    private static WrappedNode wrappedNode(int value)
+    {
+        WrappedNode node = new WrappedNode();
+        node.value = value;
+        node.wrapper = new Wrapper();
+        node.wrapper.inner = node;
+        return node;
+    }
+
+    static Cyclic chainOf(int length, int lastValue)
+    {
+        Cyclic first = new Cyclic(lastValue);
+        for (int i = 1; i < length; i++)
+        {
+            Cyclic previous = new Cyclic(i);
+            previous.cycle = first;
+            first = previous;
+        }
+        return first;
+    }
+
+    static class Wide
+    {
+        int f0, f1, f2, f3, f4, f5, f6, f7, f8, f9;
+        int f10, f11, f12, f13, f14, f15, f16, f17, f18, f19;
+        int f20, f21, f22, f23, f24, f25, f26, f27, f28, f29;
+        int f30, f31, f32, f33, f34, f35, f36, f37, f38, f39;
+        int f40, f41, f42, f43, f44, f45, f46, f47, f48, f49;
+        int f50, f51, f52, f53, f54, f55, f56, f57, f58, f59;
+        int f60, f61, f62, f63, f64, f65, f66, f67, f68, f69;
+    }
+
+    static class CountingEqualMatcherFactory implements MatcherFactory
+    {
+        int comparisons;
+        int matchersCreated;
+
+        public <T> Matcher<? super T> newEqualMatcher(final T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            matchersCreated++;
+            return new BaseMatcher<T>()
+            {
+                public boolean matches(Object item)
+                {
+                    comparisons++;
+                    return expected.equals(item);
+                }
+
+                public void describeTo(Description description)
+                {
+                    description.appendValue(expected);
+                }
+            };
+        }
+    }
+
+    static class CountingTypeMatcher extends TypeSafeMatcher<Class<?>>
+    {
+        private final Class<?> type;
+        int checksOfType;
+
+        CountingTypeMatcher(Class<?> type)
+        {
+            this.type = type;
+        }
+
+        @Override
+        protected boolean matchesSafely(Class<?> item)
+        {
+            if (item == type)
+            {
+                checksOfType++;
+                return true;
+            }
+            return false;
+        }
+
+        public void describeTo(Description description)
+        {
+            description.appendValue(type);
+        }
+    }
+
+    static class AnythingMatcherFactory implements MatcherFactory
+    {
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            return anything();
+        }
+    }
+
+    /**
+     * Matches a {@link Wrapper} by its inner node, with a matcher which isn't one of the deep matchers.
+     */
+    static class WrapperMatcherFactory implements MatcherFactory
+    {
+        DisjointSet<Object> equivalences;
+
+        public <T> Matcher<? super T> newEqualMatcher(T expected, MatcherFactory baseMatcherFactory, DisjointSet<Object> equiv)
+        {
+            equivalences = equiv;
+            final Matcher<?> innerMatcher =
+                baseMatcherFactory.newEqualMatcher(((Wrapper) expected).inner, baseMatcherFactory, equiv);
+            return new BaseMatcher<T>()
+            {
+                public boolean matches(Object item)
+                {
+                    return item instanceof Wrapper && innerMatcher.matches(((Wrapper) item).inner);
+                }
+
+                @Override
+                public void describeMismatch(Object item, Description description)
+                {
+                    description.appendText("inner ");
+                    innerMatcher.describeMismatch(((Wrapper) item).inner, description);
+                }
+
+                public void describeTo(Description description)
+                {
+                    description.appendText("wrapper of ").appendDescriptionOf(innerMatcher);
+                }
+            };
+        }
+    }
+
+    static class WrappedNode
+    {
+        Wrapper wrapper;
+        int value;
+    }
+
+    static class Wrapper
+    {
+        WrappedNode inner;
+    }
+
+    /**
+     * A map which counts how often the keys of its entries are read, which is how often an entry is tried.
+     */
+    static class KeyCountingMap<K, V> extends AbstractMap<K, V>
+    {
+        private final Set<Map.Entry<K, V>> entries = Sets.newLinkedHashSet();
+        int keyReads;
+
+        KeyCountingMap(Map<K, V> contents)
+        {
+            for (Map.Entry<K, V> entry : contents.entrySet())
+            {
+                entries.add(new SimpleImmutableEntry<K, V>(entry)
+                {
+                    @Override
+                    public K getKey()
+                    {
+                        keyReads++;
+                        return super.getKey();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet()
+        {
+            return entries;
+        }
+    }
+
+    /**
+     * Equal to any key with the same name in another case, but with a hash code which isn't consistent with that.
+     */
+    static class CaseInsensitiveKey
+    {
+        final String name;
+
+        CaseInsensitiveKey(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof CaseInsensitiveKey && ((CaseInsensitiveKey) o).name.equalsIgnoreCase(name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.hashCode();
+        }
+    }
+
+    static class CyclicSetNode
+    {
+        final Set<CyclicSetNode> next = Sets.newHashSet();
+        final int value;
+
+        CyclicSetNode(int value)
+        {
+            this.value = value;
+        }
+    }
+
     static class Cyclic
     {
        Cyclic cycle;
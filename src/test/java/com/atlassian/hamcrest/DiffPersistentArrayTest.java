@@ -24,6 +24,17 @@ public class DiffPersistentArrayTest {
         assertNull(array1.get(0));
     }
 
+    @Test
+    public void assertThatSettingAnElementInAResizedCopyLeavesOriginalArrayUnchanged()
+    {
+        PersistentArray<String> array1 = new DiffPersistentArray<String>(3);
+        PersistentArray<String> array2 = array1.resize(6);
+        array2.set(0, "foo");
+
+        assertNull(array1.get(0));
+        assertNull(array2.get(0));
+    }
+
     @Test
     public void assertThatMultipleSetsUpdateValuesInNewCopies()
     {
@@ -36,6 +47,45 @@ public class DiffPersistentArrayTest {
         assertEquals("bar", array3.get(0));
     }
 
+    @Test
+    public void assertThatGettingAnElementFromAVeryOldVersionDoesNotOverflowTheStack()
+    {
+        PersistentArray<Integer> first = new DiffPersistentArray<Integer>(3);
+        PersistentArray<Integer> last = first;
+        for (int i = 0; i < 100000; i++)
+        {
+            last = last.set(i % 3, i);
+        }
+
+        assertNull(first.get(0));
+        assertEquals(Integer.valueOf(99999), last.get(0));
+    }
+
+    @Test
+    public void assertThatVersionsAtBothEndsOfACompactedChainKeepTheirValues()
+    {
+        PersistentArray<Integer> first = new DiffPersistentArray<Integer>(3).set(1, -1);
+        PersistentArray<Integer> middle = first;
+        for (int i = 0; i < 1000; i++)
+        {
+            middle = middle.set(i % 3, i);
+        }
+        PersistentArray<Integer> last = middle;
+        for (int i = 1000; i < 2000; i++)
+        {
+            last = last.set(i % 3, i);
+        }
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            assertEquals(Integer.valueOf(-1), first.get(1));
+            assertEquals(Integer.valueOf(1999), last.get(1));
+            assertEquals(Integer.valueOf(997), middle.get(1));
+            assertEquals(Integer.valueOf(1000), middle.set(0, 1000).get(0));
+            assertNull(first.get(2));
+        }
+    }
+
     @Test
     public void assertThatGettingUnrelatedElementFromDiffArrayReturnsCorrectValue()
     {
@@ -102,6 +152,32 @@ public class DiffPersistentArrayTest {
         assertEquals(array1.size(), 1);
     }
 
+    @Test
+    public void assertThatATransientMakesItsChangesAsOneVersion()
+    {
+        PersistentArray<String> array1 = new DiffPersistentArray<String>(3).set(0, "foo");
+        PersistentArray.Transient<String> batch = array1.asTransient()
+            .set(1, "bar")
+            .set(1, "baz")
+            .set(2, "qux");
+        assertEquals("baz", batch.get(1));
+        assertEquals("[foo, null, null]", array1.toString());
+        batch.set(0, "quux");
+        PersistentArray<String> array2 = batch.persistent();
+
+        assertEquals("[quux, baz, qux]", array2.toString());
+        assertEquals("[foo, null, null]", array1.toString());
+        assertEquals("[quux, baz, qux]", array2.toString());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void assertThatATransientCannotBeChangedAfterItIsMadePersistent()
+    {
+        PersistentArray.Transient<String> batch = new DiffPersistentArray<String>(3).asTransient();
+        batch.persistent();
+        batch.set(0, "foo");
+    }
+
     @Test
     public void assertThatToStringWorksWithZeroOneEmptySlotAndTwoElements()
     {
@@ -0,0 +1,66 @@
+package com.atlassian.hamcrest;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+public class DiffPersistentIntArrayTest {
+
+    @Test
+    public void assertThatSettingAnElementLeavesTheOldVersionUnchanged()
+    {
+        PersistentIntArray array1 = new DiffPersistentIntArray(3);
+        PersistentIntArray array2 = array1.set(0, 7);
+        PersistentIntArray array3 = array1.set(0, 8);
+        assertEquals(0, array1.get(0));
+        assertEquals(7, array2.get(0));
+        assertEquals(8, array3.get(0));
+        assertEquals("[7, 0, 0]", array2.toString());
+    }
+
+    @Test
+    public void assertThatResizingFillsNewElementsWithZeroInEveryVersion()
+    {
+        PersistentIntArray array1 = new DiffPersistentIntArray(1).set(0, 1);
+        PersistentIntArray array2 = array1.resize(4).set(3, 4);
+        PersistentIntArray array3 = array1.resize(4);
+        assertEquals(1, array1.size());
+        assertEquals(4, array2.get(3));
+        assertEquals(0, array3.get(3));
+        assertEquals(1, array3.get(0));
+    }
+
+    @Test
+    public void assertThatShrinkingAndGrowingAgainFillsNewElementsWithZero()
+    {
+        PersistentIntArray array1 = new DiffPersistentIntArray(4).set(3, 42);
+        PersistentIntArray array2 = array1.resize(2).resize(4);
+        assertEquals(0, array2.get(3));
+        assertEquals(42, array1.get(3));
+        assertEquals(0, array2.get(3));
+        assertEquals("[0, 0, 0, 0]", array2.toString());
+    }
+
+    @Test
+    public void assertThatVersionsAtBothEndsOfALongChainKeepTheirValues()
+    {
+        PersistentIntArray first = new DiffPersistentIntArray(3);
+        PersistentIntArray last = first;
+        for (int i = 1; i <= 100000; i++)
+        {
+            last = last.set(i % 3, i);
+        }
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            assertEquals(0, first.get(1));
+            assertEquals(100000, last.get(1));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void assertThatGettingAnElementPastTheSizeFails()
+    {
+        new DiffPersistentIntArray(2).resize(4).resize(2).get(2);
+    }
+}
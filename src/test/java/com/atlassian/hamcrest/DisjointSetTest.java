@@ -57,6 +57,21 @@ public class DisjointSetTest
     }
 
 
+    @Test
+    public void assertThatUndoingPastAResizeForgetsTheUnionsMadeAfterIt()
+    {
+        DisjointSet<String> set = new DisjointSet<String>(2);
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                assert(!set.equivalent("foo" + i, "bar" + i));
+                set.union("foo" + i, "bar" + i);
+            }
+            set.deunion(10);
+        }
+    }
+
     @Test
     public void assertThatToStringWithNoElementsLooksLikeAnEmptySet()
     {
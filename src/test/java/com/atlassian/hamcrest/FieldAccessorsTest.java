@@ -0,0 +1,121 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import org.junit.Test;
+
+/**
+ * The build runs the tests three times: against the classes directory, where only the baseline backend is visible,
+ * and twice against the packaged multi-release jar, with and without the {@code com.atlassian.hamcrest.fieldAccess}
+ * switch.  Each run says which backend it expects in the {@code com.atlassian.hamcrest.expectedFieldAccessor} property.
+ */
+public class FieldAccessorsTest
+{
+    @Test
+    public void assertThatTheBackendIsTheOneThisRunExpects()
+    {
+        String expected = System.getProperty("com.atlassian.hamcrest.expectedFieldAccessor", "ReflectiveFieldAccessor");
+        assertThat(backendOf(accessor("i")), is(equalTo(expected)));
+    }
+
+    @Test
+    public void assertThatVarHandleAccessorsAreAClassOfTheirOwnForEachField()
+    {
+        if (backendOf(accessor("i")).equals("VarHandleFieldAccessor"))
+        {
+            assertThat(accessor("i").getClass(), is(not(equalTo((Object) accessor("j").getClass()))));
+        }
+    }
+
+    @Test
+    public void assertThatAccessorsReadEveryKindOfField()
+    {
+        AllKinds kinds = new AllKinds();
+        assertThat(accessor("z").get(kinds), is(equalTo((Object) true)));
+        assertThat(accessor("b").get(kinds), is(equalTo((Object) (byte) 1)));
+        assertThat(accessor("s").get(kinds), is(equalTo((Object) (short) 2)));
+        assertThat(accessor("c").get(kinds), is(equalTo((Object) 'c')));
+        assertThat(accessor("i").get(kinds), is(equalTo((Object) 3)));
+        assertThat(accessor("j").get(kinds), is(equalTo((Object) 4L)));
+        assertThat(accessor("f").get(kinds), is(equalTo((Object) 5f)));
+        assertThat(accessor("d").get(kinds), is(equalTo((Object) 6d)));
+        assertThat(accessor("reference").get(kinds), is(equalTo((Object) "seven")));
+    }
+
+    @Test
+    public void assertThatPrimitiveFieldsAreEqualWhenTheirWrappersAre()
+    {
+        String[] fields = {"z", "b", "s", "c", "i", "j", "f", "d"};
+        AllKinds other = new AllKinds();
+        other.z = false;
+        other.b = 0;
+        other.s = 0;
+        other.c = 'd';
+        other.i = 0;
+        other.j = 0;
+        other.f = 0;
+        other.d = 0;
+        for (String field : fields)
+        {
+            assertThat(field, accessor(field).primitiveEquals(new AllKinds(), new AllKinds()), is(true));
+            assertThat(field, accessor(field).primitiveEquals(new AllKinds(), other), is(false));
+        }
+
+        AllKinds nan = new AllKinds();
+        nan.f = Float.NaN;
+        nan.d = Double.NaN;
+        AllKinds otherNan = new AllKinds();
+        otherNan.f = Float.NaN;
+        otherNan.d = Double.NaN;
+        assertThat(accessor("f").primitiveEquals(nan, otherNan), is(true));
+        assertThat(accessor("d").primitiveEquals(nan, otherNan), is(true));
+
+        AllKinds zero = new AllKinds();
+        zero.f = 0f;
+        zero.d = 0d;
+        AllKinds negativeZero = new AllKinds();
+        negativeZero.f = -0f;
+        negativeZero.d = -0d;
+        assertThat(accessor("f").primitiveEquals(zero, negativeZero), is(false));
+        assertThat(accessor("d").primitiveEquals(zero, negativeZero), is(false));
+    }
+
+    /**
+     * Returns the simple name of the accessor's class, or of the class it was copied from if it is a hidden class.
+     */
+    private static String backendOf(FieldAccessor accessor)
+    {
+        String name = accessor.getClass().getName();
+        int hiddenSuffix = name.indexOf('/');
+        return name.substring(name.lastIndexOf('.') + 1, hiddenSuffix < 0 ? name.length() : hiddenSuffix);
+    }
+
+    private static FieldAccessor accessor(String name)
+    {
+        ClassMatchPlan plan = ClassMatchPlan.of(AllKinds.class);
+        for (int i = 0; i < plan.fieldCount(); i++)
+        {
+            if (plan.field(i).getName().equals(name))
+            {
+                return plan.accessor(i);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    static class AllKinds
+    {
+        boolean z = true;
+        byte b = 1;
+        short s = 2;
+        char c = 'c';
+        int i = 3;
+        long j = 4;
+        float f = 5;
+        double d = 6;
+        String reference = "seven";
+    }
+}
@@ -1,5 +1,6 @@
 package com.atlassian.hamcrest;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.hamcrest.Matcher;
@@ -54,6 +55,14 @@ public class GraphTest {
         assertThat(graph1, is(deeplyEqualTo(graph2)));
     }
 
+    @Test
+    public void assertThatMediumIdenticalGraphsMatchWithComparatorsEngine()
+    {
+        Graph graph1 = makeMediumGraph("A");
+        Graph graph2 = makeMediumGraph("B");
+        assertThat(graph1, is(deeplyEqualTo(graph2, ImmutableMap.<Matcher<Class<?>>, MatcherFactory>of(), DeepIsEqual.Engine.COMPARATORS)));
+    }
+
     private Graph makeSmallGraph(String label) {
         return new GraphMaker().makeGraph(3, .2, .5, label);
     }
@@ -0,0 +1,45 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IdentityIndexMapTest
+{
+    @Test
+    public void assertThatElementsKeepTheIndexesTheyWereFirstGivenWhenTheTableGrows()
+    {
+        IdentityIndexMap<Object> map = new IdentityIndexMap<Object>(1);
+        Object[] elements = new Object[1000];
+        for (int i = 0; i < elements.length; i++)
+        {
+            elements[i] = new Object();
+            assertThat(map.indexOf(elements[i]), is(i));
+        }
+        for (int i = 0; i < elements.length; i++)
+        {
+            assertThat(map.indexOf(elements[i]), is(i));
+        }
+        assertThat(map.size(), is(1000));
+        assertThat(map.elements(), is(equalTo(Arrays.asList(elements))));
+    }
+
+    @Test
+    public void assertThatEqualElementsWhichAreNotTheSameObjectGetDifferentIndexes()
+    {
+        IdentityIndexMap<Object> map = new IdentityIndexMap<Object>(4);
+        String foo = "foo";
+        String otherFoo = new String("foo");
+        assertThat(map.indexOf(foo), is(0));
+        assertThat(map.indexOf(null), is(1));
+        assertThat(map.indexOf(otherFoo), is(2));
+        assertThat(map.indexOf(null), is(1));
+        List<Object> elements = map.elements();
+        assertThat(elements.get(0) == foo && elements.get(1) == null && elements.get(2) == otherFoo, is(true));
+    }
+}
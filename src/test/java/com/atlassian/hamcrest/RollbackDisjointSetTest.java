@@ -0,0 +1,77 @@
+package com.atlassian.hamcrest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class RollbackDisjointSetTest
+{
+    @Test
+    public void assertThatEquivalencesAreTransitive()
+    {
+        RollbackDisjointSet<String> set = new RollbackDisjointSet<String>();
+        set.union("foo", "bar");
+        set.union("bar", "baz");
+        assertThat(set.equivalent("foo", "baz"), is(true));
+        assertThat(set.equivalent("foo", "qux"), is(false));
+    }
+
+    @Test
+    public void assertThatDeunionUndoesTheLatestUnionsOnly()
+    {
+        RollbackDisjointSet<String> set = new RollbackDisjointSet<String>();
+        set.union("foo", "bar");
+        set.union("baz", "qux");
+        set.union("bar", "qux");
+        set.deunion();
+        assertThat(set.equivalent("foo", "qux"), is(false));
+        assertThat(set.equivalent("baz", "qux"), is(true));
+        set.deunion(2);
+        assertThat(set.equivalent("foo", "bar"), is(false));
+        assertThat(set.equivalent("baz", "qux"), is(false));
+    }
+
+    @Test
+    public void assertThatUndoingPastGrowingTheArraysForgetsTheUnionsMadeAfterIt()
+    {
+        // elements are told apart by identity, so each one has to be the same object every time
+        Object[] elements = new Object[201];
+        for (int i = 0; i < elements.length; i++)
+        {
+            elements[i] = new Object();
+        }
+        RollbackDisjointSet<Object> set = new RollbackDisjointSet<Object>(1);
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (int i = 0; i < 200; i++)
+            {
+                assertThat(set.equivalent(elements[i], elements[i + 1]), is(false));
+                set.union(elements[i], elements[i + 1]);
+            }
+            assertThat(set.equivalent(elements[0], elements[200]), is(true));
+            set.deunion(200);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatUndoingMoreUnionsThanWereMadeIsRejected()
+    {
+        RollbackDisjointSet<String> set = new RollbackDisjointSet<String>();
+        set.union("foo", "bar");
+        set.deunion(2);
+    }
+
+    @Test
+    public void assertThatToStringWithTwoEquivalentElementsLooksLikeASetOfOneSet()
+    {
+        RollbackDisjointSet<String> set = new RollbackDisjointSet<String>();
+        set.union("foo", "bar");
+        assertThat(set.toString(), anyOf(
+            is(equalTo("[[foo, bar]]")),
+            is(equalTo("[[bar, foo]]"))
+            ));
+    }
+}
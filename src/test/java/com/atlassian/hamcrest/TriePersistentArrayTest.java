@@ -0,0 +1,77 @@
+package com.atlassian.hamcrest;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class TriePersistentArrayTest {
+
+    @Test
+    public void assertThatVersionsReadInTurnKeepTheirValues()
+    {
+        PersistentArray<Integer> first = new TriePersistentArray<Integer>(100000);
+        List<PersistentArray<Integer>> versions = Lists.newArrayList();
+        PersistentArray<Integer> last = first;
+        for (int i = 0; i < 100000; i += 7)
+        {
+            last = last.set(i, i);
+            versions.add(last);
+        }
+
+        for (int i = 0; i < versions.size(); i += 1000)
+        {
+            assertEquals(Integer.valueOf(i * 7), versions.get(i).get(i * 7));
+            assertNull(versions.get(i).get(i * 7 + 7));
+            assertNull(first.get(i * 7));
+        }
+    }
+
+    @Test
+    public void assertThatResizingDropsElementsPastTheNewSize()
+    {
+        PersistentArray<String> array = new TriePersistentArray<String>(2000).set(40, "foo").set(1999, "bar");
+        PersistentArray<String> shrunk = array.resize(41).resize(2000);
+        assertEquals("foo", shrunk.get(40));
+        assertNull(shrunk.get(1999));
+        assertEquals("bar", array.get(1999));
+    }
+
+    @Test
+    public void assertThatResizingFillsNewElementsWithTheInitializer()
+    {
+        PersistentArray<Integer> array = new TriePersistentArray<Integer>(3, Identity.INSTANCE)
+            .resize(40, Identity.INSTANCE);
+        assertEquals(40, Iterables.size(array));
+        assertEquals(Integer.valueOf(39), Iterables.getLast(array));
+        assertEquals(Integer.valueOf(2), array.get(2));
+    }
+
+    @Test
+    public void assertThatATransientLeavesTheVersionItWasMadeFromUnchanged()
+    {
+        PersistentArray<String> array1 = new TriePersistentArray<String>(3).set(0, "foo");
+        PersistentArray.Transient<String> batch = array1.asTransient().set(1, "bar").set(2, "baz").set(1, "qux");
+        PersistentArray<String> array2 = batch.persistent();
+
+        assertEquals("[foo, null, null]", array1.toString());
+        assertEquals("[foo, qux, baz]", array2.toString());
+    }
+
+    private enum Identity implements Function<Integer, Integer>
+    {
+        INSTANCE;
+
+        public Integer apply(Integer index)
+        {
+            return index;
+        }
+    }
+}